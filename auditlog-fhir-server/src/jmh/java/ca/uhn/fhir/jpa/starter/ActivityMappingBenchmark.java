@@ -0,0 +1,62 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping of AuditEvents to activities and XES events without any database access
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ActivityMappingBenchmark {
+
+  private static final int EVENTS = 4096;
+
+  private final AuditEvent[] myAuditEvents = new AuditEvent[EVENTS];
+  private ActivityMapping myMapping;
+  private int myNext;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    SyntheticAuditEvents generator = new SyntheticAuditEvents();
+    for (int i = 0; i < EVENTS; i++) {
+      myAuditEvents[i] = generator.next();
+    }
+    myMapping = ActivityMapping.getConfigured();
+  }
+
+  @Benchmark
+  public int mapActivity() {
+    return myMapping.mapToId(nextAuditEvent());
+  }
+
+  @Benchmark
+  public void toXESEvent(Blackhole theBlackhole) {
+    AuditEvent auditEvent = nextAuditEvent();
+    theBlackhole.consume(AuditEventMapper.getCaseId(auditEvent));
+    theBlackhole.consume(AuditEventMapper.toXESEvent(auditEvent));
+  }
+
+  private AuditEvent nextAuditEvent() {
+    AuditEvent auditEvent = myAuditEvents[myNext];
+    myNext = (myNext + 1) & (EVENTS - 1);
+    return auditEvent;
+  }
+}
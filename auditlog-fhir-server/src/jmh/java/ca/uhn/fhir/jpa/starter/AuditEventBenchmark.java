@@ -0,0 +1,65 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Procedure;
+import org.hl7.fhir.r4.model.Reference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost that {@link MyConsentService} adds to every request by recording its AuditEvent, measured for an update of a
+ * Procedure of the radiological workflow.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class AuditEventBenchmark {
+
+  private BenchmarkServer myServer;
+  private MyConsentService myConsentService;
+  private ServletRequestDetails myRequestDetails;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    myServer = new BenchmarkServer(true);
+    myConsentService = myServer.getBean("myConsentService", MyConsentService.class);
+
+    Procedure procedure = new Procedure();
+    procedure.setId("Procedure/1");
+    procedure.setEncounter(new Reference("Encounter/1"));
+
+    myRequestDetails = myServer.newRequestDetails();
+    myRequestDetails.setRequestType(RequestTypeEnum.PUT);
+    myRequestDetails.setResourceName("Procedure");
+    myRequestDetails.setId(new IdType("Procedure/1"));
+    myRequestDetails.setResource(procedure);
+    myRequestDetails.setCompleteUrl("http://localhost:8080/hapi-fhir-jpaserver/fhir/Procedure/1");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    myServer.close();
+  }
+
+  @Benchmark
+  public void createAuditEvent() {
+    myConsentService.completeOperationSuccess(myRequestDetails, null);
+  }
+}
@@ -0,0 +1,105 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.searchparam.registry.ISearchParamRegistry;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Device;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.UUID;
+
+/**
+ * R4 server context on an in-memory H2 database for the benchmarks. Only the Spring context is started, requests are
+ * made by calling the providers and services directly.
+ */
+public class BenchmarkServer implements AutoCloseable {
+
+  public static final String DEVICE_ID = "benchmark-device";
+  public static final String PLAN_DEFINITION_ID = "benchmark-plandefinition";
+
+  private static final int TRANSACTION_SIZE = 1000;
+
+  private final AnnotationConfigApplicationContext myContext;
+
+  /**
+   * @param theStoreEnabled whether the event logs are kept in memory, see {@link HapiProperties#getXesStoreEnabled()}
+   */
+  public BenchmarkServer(boolean theStoreEnabled) {
+    HapiProperties.setProperty(HapiProperties.FHIR_VERSION, "R4");
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_URL, "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_DRIVER, "org.h2.Driver");
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_USERNAME, "");
+    HapiProperties.setProperty(HapiProperties.DATASOURCE_PASSWORD, "");
+    HapiProperties.setProperty(HapiProperties.XES_STORE_ENABLED, Boolean.toString(theStoreEnabled));
+    HapiProperties.setProperty(HapiProperties.XES_CACHE_ENABLED, "false");
+    HapiProperties.setProperty(HapiProperties.AUDITEVENT_DEVICE_ID, DEVICE_ID);
+    HapiProperties.setProperty(HapiProperties.AUDITEVENT_PLANDEFINITION_ID, PLAN_DEFINITION_ID);
+
+    myContext = new AnnotationConfigApplicationContext(FhirServerConfigR4.class, FhirServerConfigCommon.class);
+    AuditEventSearchParameters.register(getBean(DaoRegistry.class), getBean(ISearchParamRegistry.class));
+    ActivityMapping.getConfigured();
+    // started by ApplicationContext in the server
+    getBean(AuditEventWriter.class).start();
+
+    // MyConsentService refers every AuditEvent to the configured Device and PlanDefinition
+    Device device = new Device();
+    device.setId(DEVICE_ID);
+    getBean(DaoRegistry.class).getResourceDao(Device.class).update(device);
+    PlanDefinition planDefinition = new PlanDefinition();
+    planDefinition.setId(PLAN_DEFINITION_ID);
+    planDefinition.setStatus(Enumerations.PublicationStatus.ACTIVE);
+    getBean(DaoRegistry.class).getResourceDao(PlanDefinition.class).update(planDefinition);
+  }
+
+  public <T> T getBean(Class<T> theType) {
+    return myContext.getBean(theType);
+  }
+
+  public <T> T getBean(String theName, Class<T> theType) {
+    return myContext.getBean(theName, theType);
+  }
+
+  /**
+   * Creates an instance managed by the context, e.g. a second provider with different settings
+   */
+  public <T> T autowire(T theInstance) {
+    myContext.getAutowireCapableBeanFactory().autowireBean(theInstance);
+    return theInstance;
+  }
+
+  public ServletRequestDetails newRequestDetails() {
+    return new ServletRequestDetails(getBean(IInterceptorBroadcaster.class));
+  }
+
+  /**
+   * Stores the AuditEvents of the generator in transactions of {@value #TRANSACTION_SIZE} resources
+   */
+  @SuppressWarnings("unchecked")
+  public void seed(SyntheticAuditEvents theAuditEvents, int theCount) {
+    IFhirSystemDao<Bundle, ?> systemDao = getBean(DaoRegistry.class).getSystemDao();
+    Bundle transaction = null;
+    for (int i = 0; i < theCount; i++) {
+      if (transaction == null) {
+        transaction = new Bundle();
+        transaction.setType(Bundle.BundleType.TRANSACTION);
+      }
+      transaction.addEntry()
+        .setResource(theAuditEvents.next())
+        .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("AuditEvent");
+      if (transaction.getEntry().size() == TRANSACTION_SIZE || i == theCount - 1) {
+        systemDao.transaction(newRequestDetails(), transaction);
+        transaction = null;
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    myContext.close();
+  }
+}
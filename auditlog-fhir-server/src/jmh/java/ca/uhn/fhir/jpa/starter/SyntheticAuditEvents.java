@@ -0,0 +1,84 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Generates AuditEvents like {@link MyConsentService} records them for the radiological workflow. Every case runs
+ * through the seven steps of the workflow plus a few reads, which are not part of the mined log. Cases overlap in
+ * time, so the events of a case are not stored consecutively.
+ */
+public class SyntheticAuditEvents {
+
+  private static final String BASE_URL = "http://localhost:8080/hapi-fhir-jpaserver/fhir/";
+
+  /**
+   * action, resource type and operation of the requests of a case, in order
+   */
+  private static final String[][] WORKFLOW = {
+    {"C", "Appointment", null},
+    {"R", "Patient", null},
+    {"U", "Appointment", null},
+    {"U", "Procedure", null},
+    {"C", "Media", null},
+    {"R", "Media", null},
+    {"C", "DiagnosticReport", null},
+    {"U", "DiagnosticReport", null},
+    {"E", "DiagnosticReport", "$fhirToCDA"},
+  };
+
+  private static final int CONCURRENT_CASES = 50;
+
+  private final Random myRandom = new Random(42);
+  private final int[] mySteps = new int[CONCURRENT_CASES];
+  private final int[] myCases = new int[CONCURRENT_CASES];
+  private int myNextCase;
+  private long myTime = 1_596_700_000_000L;
+
+  public SyntheticAuditEvents() {
+    for (int i = 0; i < CONCURRENT_CASES; i++) {
+      myCases[i] = myNextCase++;
+    }
+  }
+
+  public AuditEvent next() {
+    int slot = myRandom.nextInt(CONCURRENT_CASES);
+    String[] step = WORKFLOW[mySteps[slot]];
+    int caseId = myCases[slot];
+    if (++mySteps[slot] == WORKFLOW.length) {
+      mySteps[slot] = 0;
+      myCases[slot] = myNextCase++;
+    }
+    myTime += 1 + myRandom.nextInt(60_000);
+    return create(step[0], step[1], step[2], caseId, new Date(myTime));
+  }
+
+  private static AuditEvent create(String theAction, String theResourceType, String theOperation, int theCase, Date theRecorded) {
+    AuditEvent auditEvent = new AuditEvent();
+    auditEvent.setType(new Coding("Query", "110112", "Audit event: Query has been made"));
+    auditEvent.setRecorded(theRecorded);
+    auditEvent.addExtension(new Extension(AuditEventSearchParameters.ENCOUNTER_EXTENSION_URL, new Reference("Encounter/" + theCase)));
+    auditEvent.addExtension(new Extension(AuditEventSearchParameters.BASED_ON_EXTENSION_URL, new Reference("PlanDefinition/" + BenchmarkServer.PLAN_DEFINITION_ID)));
+    auditEvent.addAgent().setRequestor(false);
+
+    AuditEvent.AuditEventEntityComponent entity = auditEvent.addEntity();
+    String url = BASE_URL + theResourceType;
+    if (theOperation != null) {
+      url += "/" + theCase + "/" + theOperation;
+    } else {
+      entity.getWhat().setType(theResourceType);
+    }
+    entity.addDetail().setType("RequestedURL").setValue(new StringType(url));
+
+    auditEvent.setAction(AuditEvent.AuditEventAction.fromCode(theAction));
+    auditEvent.setOutcome(AuditEvent.AuditEventOutcome._0);
+    auditEvent.getSource().setObserver(new Reference("Device/" + BenchmarkServer.DEVICE_ID));
+    return auditEvent;
+  }
+}
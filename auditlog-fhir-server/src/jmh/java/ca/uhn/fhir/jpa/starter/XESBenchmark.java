@@ -0,0 +1,82 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generation of the complete XES log of a PlanDefinition with 10k, 100k and 1M AuditEvents.
+ * <ul>
+ * <li>fromStore - the log is served from the {@link EventLogStore}, only rendering is measured</li>
+ * <li>fromDatabase - the log is loaded from the AuditEvents in the database on every call, like with
+ * <code>xes.store.enabled=false</code></li>
+ * </ul>
+ * Seeding the database with 1M AuditEvents takes several minutes, restrict the run with
+ * <code>-p auditEvents=10000</code> while iterating.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class XESBenchmark {
+
+  @Param({"10000", "100000", "1000000"})
+  int auditEvents;
+
+  private BenchmarkServer myServer;
+  private XESProvider myStoreProvider;
+  private XESProvider myDatabaseProvider;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    myServer = new BenchmarkServer(true);
+    myServer.seed(new SyntheticAuditEvents(), auditEvents);
+    myStoreProvider = myServer.getBean(XESProvider.class);
+
+    // a second provider reading through a store that does not keep the logs
+    HapiProperties.setProperty(HapiProperties.XES_STORE_ENABLED, "false");
+    EventLogStore databaseStore = myServer.autowire(new EventLogStore());
+    myDatabaseProvider = myServer.autowire(new XESProvider());
+    myDatabaseProvider.myEventLogStore = databaseStore;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    myStoreProvider.shutdown();
+    myDatabaseProvider.shutdown();
+    myServer.close();
+  }
+
+  @Benchmark
+  public long fromStore() throws IOException {
+    return writeXES(myStoreProvider);
+  }
+
+  @Benchmark
+  public long fromDatabase() throws IOException {
+    return writeXES(myDatabaseProvider);
+  }
+
+  private static long writeXES(XESProvider theProvider) throws IOException {
+    CountingOutputStream outputStream = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+    theProvider.writeXES(BenchmarkServer.PLAN_DEFINITION_ID, EventLogFilter.ALL, outputStream);
+    return outputStream.getByteCount();
+  }
+}
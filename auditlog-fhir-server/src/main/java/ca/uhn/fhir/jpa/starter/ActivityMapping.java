@@ -0,0 +1,192 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Type;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled mapping of AuditEvents to the activities of the mined workflow. Rules are given as
+ * <code>action:type[:detail suffix]=activity</code>, separated by commas, e.g.
+ * <code>C:Appointment=Schedule Appointment,E:*:$fhirToCDA=Report Transmission</code>.
+ * <ul>
+ * <li>action - code of the AuditEvent action (C, R, U, D, E)</li>
+ * <li>type - resource type of the first entity, <code>*</code> matches any type</li>
+ * <li>detail suffix - optional, the first detail of the first entity (the requested URL) has to end with it</li>
+ * </ul>
+ * The rules are compiled into a table indexed by action and type, so mapping an event costs one hash probe (two if
+ * only a wildcard rule exists). Every activity gets a dense numeric id, which the exporters can use instead of
+ * comparing names.
+ */
+public class ActivityMapping {
+
+  public static final String WILDCARD = "*";
+
+  private static final Rule[] NO_RULES = new Rule[0];
+
+  private static volatile ActivityMapping ourConfigured;
+
+  private final Map<AuditEvent.AuditEventAction, Map<String, Rule[]>> myTable = new EnumMap<>(AuditEvent.AuditEventAction.class);
+  private final List<String> myActivities = new ArrayList<>();
+  private final Map<String, Integer> myActivityIds = new HashMap<>();
+
+  private ActivityMapping() {
+  }
+
+  /**
+   * @return the mapping configured in <code>xes.mapping.rules</code>
+   */
+  public static ActivityMapping getConfigured() {
+    ActivityMapping mapping = ourConfigured;
+    if (mapping == null) {
+      mapping = parse(HapiProperties.getXesMappingRules());
+      ourConfigured = mapping;
+    }
+    return mapping;
+  }
+
+  /**
+   * Compiles the given rules
+   *
+   * @throws IllegalArgumentException if a rule is malformed
+   */
+  public static ActivityMapping parse(String theRules) {
+    ActivityMapping mapping = new ActivityMapping();
+    if (theRules == null) {
+      return mapping;
+    }
+    for (String rule : theRules.split(",")) {
+      rule = rule.trim();
+      if (rule.isEmpty()) {
+        continue;
+      }
+      int separator = rule.indexOf('=');
+      if (separator < 0) {
+        throw new IllegalArgumentException("XES mapping rule '" + rule + "' does not assign an activity");
+      }
+      String[] condition = rule.substring(0, separator).trim().split(":", 3);
+      String activity = rule.substring(separator + 1).trim();
+      if (condition.length < 2 || activity.isEmpty()) {
+        throw new IllegalArgumentException("XES mapping rule '" + rule + "' is not of the form action:type[:detail suffix]=activity");
+      }
+      AuditEvent.AuditEventAction action;
+      try {
+        action = AuditEvent.AuditEventAction.valueOf(condition[0].trim());
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("XES mapping rule '" + rule + "' has an unknown action", e);
+      }
+      String detailSuffix = condition.length > 2 && !condition[2].trim().isEmpty() ? condition[2].trim() : null;
+      mapping.add(action, condition[1].trim(), detailSuffix, activity);
+    }
+    return mapping;
+  }
+
+  private void add(AuditEvent.AuditEventAction theAction, String theType, String theDetailSuffix, String theActivity) {
+    Integer activityId = myActivityIds.get(theActivity);
+    if (activityId == null) {
+      activityId = myActivities.size();
+      myActivities.add(theActivity);
+      myActivityIds.put(theActivity, activityId);
+    }
+    Rule rule = new Rule(theDetailSuffix, activityId);
+
+    Rule[] rules = myTable.computeIfAbsent(theAction, a -> new HashMap<>()).getOrDefault(theType, NO_RULES);
+    Rule[] extended = new Rule[rules.length + 1];
+    // rules with a detail suffix are more specific and have to be checked first
+    int position = 0;
+    while (position < rules.length && rules[position].myDetailSuffix != null) {
+      position++;
+    }
+    if (theDetailSuffix == null) {
+      position = rules.length;
+    }
+    System.arraycopy(rules, 0, extended, 0, position);
+    extended[position] = rule;
+    System.arraycopy(rules, position, extended, position + 1, rules.length - position);
+    myTable.get(theAction).put(theType, extended);
+  }
+
+  /**
+   * @return name of the activity or null if the event is not part of the workflow
+   */
+  public String map(AuditEvent theEvent) {
+    int activityId = mapToId(theEvent);
+    return activityId >= 0 ? myActivities.get(activityId) : null;
+  }
+
+  /**
+   * @return id of the activity or -1 if the event is not part of the workflow
+   */
+  public int mapToId(AuditEvent theEvent) {
+    if (theEvent.getAction() == null) {
+      return -1;
+    }
+    Map<String, Rule[]> byType = myTable.get(theEvent.getAction());
+    if (byType == null) {
+      return -1;
+    }
+    // instance level requests do not carry a type
+    String type = theEvent.getEntityFirstRep().getWhat().getType();
+    Rule[] rules = type != null ? byType.get(type) : null;
+    int activityId = rules != null ? match(rules, theEvent) : -1;
+    if (activityId < 0 && (rules = byType.get(WILDCARD)) != null) {
+      activityId = match(rules, theEvent);
+    }
+    return activityId;
+  }
+
+  private static int match(Rule[] theRules, AuditEvent theEvent) {
+    String detail = null;
+    for (Rule rule : theRules) {
+      if (rule.myDetailSuffix == null) {
+        return rule.myActivityId;
+      }
+      if (detail == null) {
+        Type value = theEvent.getEntityFirstRep().getDetailFirstRep().getValue();
+        detail = value != null && value.primitiveValue() != null ? value.primitiveValue() : "";
+      }
+      if (detail.endsWith(rule.myDetailSuffix)) {
+        return rule.myActivityId;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return name of the activity with the given id
+   */
+  public String getActivity(int theActivityId) {
+    return myActivities.get(theActivityId);
+  }
+
+  /**
+   * @return id of the activity or -1 if no rule maps to it
+   */
+  public int getActivityId(String theActivity) {
+    Integer activityId = myActivityIds.get(theActivity);
+    return activityId != null ? activityId : -1;
+  }
+
+  /**
+   * @return all activities, indexed by their id
+   */
+  public List<String> getActivities() {
+    return Collections.unmodifiableList(myActivities);
+  }
+
+  private static class Rule {
+
+    private final String myDetailSuffix;
+    private final int myActivityId;
+
+    Rule(String theDetailSuffix, int theActivityId) {
+      myDetailSuffix = theDetailSuffix;
+      myActivityId = theActivityId;
+    }
+  }
+}
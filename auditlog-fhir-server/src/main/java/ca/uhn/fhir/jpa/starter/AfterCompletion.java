@@ -0,0 +1,35 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.function.Consumer;
+
+/**
+ * Runs callbacks of the storage hooks once the transaction of the current thread is completed, so caches are only
+ * changed after the database is
+ */
+final class AfterCompletion {
+
+  private AfterCompletion() {
+  }
+
+  /**
+   * Runs the callback once the transaction of the current thread is completed, or right away if there is no
+   * transaction
+   *
+   * @param theCallback called with true if the transaction was committed
+   */
+  static void run(Consumer<Boolean> theCallback) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      theCallback.accept(true);
+      return;
+    }
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+      @Override
+      public void afterCompletion(int theStatus) {
+        theCallback.accept(theStatus == STATUS_COMMITTED);
+      }
+    });
+  }
+}
@@ -0,0 +1,215 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Discovers a Petri net from a {@link DirectlyFollowsGraph} with the alpha algorithm. As the algorithm is sensitive
+ * to noise, infrequent directly-follows relations are removed first: a relation is kept if it occurs at least
+ * <code>noise</code> times as often as the most frequent relation leaving the same activity, start and end
+ * activities are filtered the same way.
+ * <p>
+ * Like every alpha miner it cannot discover loops of length one, these relations are ignored.
+ */
+public class AlphaMiner {
+
+  /**
+   * Activities are handled as bits of a long
+   */
+  public static final int MAX_ACTIVITIES = 64;
+
+  private static final int MAX_CANDIDATES = 100_000;
+
+  private AlphaMiner() {
+  }
+
+  /**
+   * @param theGraph directly-follows graph of the log
+   * @param theNoise between 0 and 1, 0 keeps every relation
+   * @throws IllegalArgumentException if the log has more than {@link #MAX_ACTIVITIES} activities or is too complex
+   */
+  public static PetriNet discover(DirectlyFollowsGraph theGraph, double theNoise) {
+    // only activities that occurred take part, indexed 0..n-1
+    List<Integer> activities = new ArrayList<>();
+    for (int activity = 0; activity < theGraph.getActivities().size(); activity++) {
+      if (theGraph.getActivityCount(activity) > 0) {
+        activities.add(activity);
+      }
+    }
+    int n = activities.size();
+    if (n > MAX_ACTIVITIES) {
+      throw new IllegalArgumentException("Discovery supports at most " + MAX_ACTIVITIES + " activities, the log has " + n);
+    }
+
+    // filtered directly-follows relation without self loops
+    long[] follows = new long[n];
+    long maxStart = 0;
+    long maxEnd = 0;
+    for (int i = 0; i < n; i++) {
+      long maxOutgoing = 0;
+      for (int j = 0; j < n; j++) {
+        maxOutgoing = Math.max(maxOutgoing, theGraph.getEdgeCount(activities.get(i), activities.get(j)));
+      }
+      for (int j = 0; j < n; j++) {
+        long count = theGraph.getEdgeCount(activities.get(i), activities.get(j));
+        if (i != j && count > 0 && count >= theNoise * maxOutgoing) {
+          follows[i] |= 1L << j;
+        }
+      }
+      maxStart = Math.max(maxStart, theGraph.getStartCount(activities.get(i)));
+      maxEnd = Math.max(maxEnd, theGraph.getEndCount(activities.get(i)));
+    }
+
+    long[] causal = new long[n];
+    long[] choice = new long[n];
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < n; j++) {
+        boolean ij = (follows[i] & 1L << j) != 0;
+        boolean ji = (follows[j] & 1L << i) != 0;
+        if (ij && !ji) {
+          causal[i] |= 1L << j;
+        }
+        if (!ij && !ji) {
+          choice[i] |= 1L << j;
+        }
+      }
+    }
+
+    List<Pair> places = maximalPairs(n, causal, choice);
+
+    PetriNet net = new PetriNet(theGraph.getName());
+    int start = net.addPlace("start");
+    int end = net.addPlace("end");
+    net.setInitialMarking(start, 1);
+    net.setFinalMarking(end, 1);
+    int[] transitions = new int[n];
+    for (int i = 0; i < n; i++) {
+      String activity = theGraph.getActivities().get(activities.get(i));
+      transitions[i] = net.addTransition(activity);
+      long startCount = theGraph.getStartCount(activities.get(i));
+      if (startCount > 0 && startCount >= theNoise * maxStart) {
+        net.addInputArc(start, transitions[i]);
+      }
+      long endCount = theGraph.getEndCount(activities.get(i));
+      if (endCount > 0 && endCount >= theNoise * maxEnd) {
+        net.addOutputArc(transitions[i], end);
+      }
+    }
+    for (Pair pair : places) {
+      int place = net.addPlace(pair.toString(theGraph, activities));
+      for (int i = 0; i < n; i++) {
+        if ((pair.myFrom & 1L << i) != 0) {
+          net.addOutputArc(transitions[i], place);
+        }
+        if ((pair.myTo & 1L << i) != 0) {
+          net.addInputArc(place, transitions[i]);
+        }
+      }
+    }
+    return net;
+  }
+
+  /**
+   * Computes the maximal pairs (A, B) where every activity of A causally precedes every activity of B and the
+   * activities within A and within B never follow each other. A subset of such a pair is such a pair as well, so a
+   * pair is maximal exactly if no single activity can be added to either side. Every candidate is checked once for
+   * the activities that extend it, which costs O(n) with the relations as bitmasks.
+   */
+  private static List<Pair> maximalPairs(int theActivities, long[] theCausal, long[] theChoice) {
+    Set<Pair> candidates = new HashSet<>();
+    Deque<Pair> open = new ArrayDeque<>();
+    for (int i = 0; i < theActivities; i++) {
+      for (int j = 0; j < theActivities; j++) {
+        if ((theCausal[i] & 1L << j) != 0 && (theChoice[i] & 1L << i) != 0 && (theChoice[j] & 1L << j) != 0) {
+          Pair pair = new Pair(1L << i, 1L << j);
+          candidates.add(pair);
+          open.add(pair);
+        }
+      }
+    }
+
+    // grow the pairs one activity at a time, the pairs that cannot grow are the maximal ones
+    List<Pair> maximal = new ArrayList<>();
+    while (!open.isEmpty()) {
+      Pair pair = open.poll();
+      // activities every activity of A causally precedes
+      long successors = -1L;
+      for (long from = pair.myFrom; from != 0; from &= from - 1) {
+        successors &= theCausal[Long.numberOfTrailingZeros(from)];
+      }
+      boolean isMaximal = true;
+      for (int x = 0; x < theActivities; x++) {
+        long bit = 1L << x;
+        long from = pair.myFrom | bit;
+        if ((pair.myFrom & bit) == 0 && (theCausal[x] & pair.myTo) == pair.myTo && (theChoice[x] & from) == from) {
+          isMaximal = false;
+          Pair extended = new Pair(from, pair.myTo);
+          if (candidates.add(extended)) {
+            open.add(extended);
+          }
+        }
+        long to = pair.myTo | bit;
+        if ((pair.myTo & bit) == 0 && (successors & bit) != 0 && (theChoice[x] & to) == to) {
+          isMaximal = false;
+          Pair extended = new Pair(pair.myFrom, to);
+          if (candidates.add(extended)) {
+            open.add(extended);
+          }
+        }
+      }
+      if (isMaximal) {
+        maximal.add(pair);
+      }
+      if (candidates.size() > MAX_CANDIDATES) {
+        throw new IllegalArgumentException("The log is too complex for discovery, try a higher noise threshold");
+      }
+    }
+    // deterministic order of the places
+    maximal.sort((a, b) -> a.myFrom != b.myFrom ? Long.compareUnsigned(a.myFrom, b.myFrom) : Long.compareUnsigned(a.myTo, b.myTo));
+    return maximal;
+  }
+
+  private static class Pair {
+
+    private final long myFrom;
+    private final long myTo;
+
+    Pair(long theFrom, long theTo) {
+      myFrom = theFrom;
+      myTo = theTo;
+    }
+
+    String toString(DirectlyFollowsGraph theGraph, List<Integer> theActivities) {
+      return "(" + names(myFrom, theGraph, theActivities) + ", " + names(myTo, theGraph, theActivities) + ")";
+    }
+
+    private static String names(long theSet, DirectlyFollowsGraph theGraph, List<Integer> theActivities) {
+      List<String> names = new ArrayList<>();
+      for (int i = 0; i < theActivities.size(); i++) {
+        if ((theSet & 1L << i) != 0) {
+          names.add(theGraph.getActivities().get(theActivities.get(i)));
+        }
+      }
+      return "{" + String.join(", ", names) + "}";
+    }
+
+    @Override
+    public boolean equals(Object theOther) {
+      if (!(theOther instanceof Pair)) {
+        return false;
+      }
+      Pair other = (Pair) theOther;
+      return myFrom == other.myFrom && myTo == other.myTo;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(myFrom, myTo);
+    }
+  }
+}
@@ -37,4 +37,14 @@ public class ApplicationContext extends AnnotationConfigWebApplicationContext {
 
   }
 
+  @Override
+  protected void finishRefresh() {
+    super.finishRefresh();
+
+    // AuditEvents journaled before the last shutdown or crash are stored now that the DAOs are ready
+    if (HapiProperties.getFhirVersion() == FhirVersionEnum.R4) {
+      getBean("auditEventWriter", AuditEventWriter.class).start();
+    }
+  }
+
 }
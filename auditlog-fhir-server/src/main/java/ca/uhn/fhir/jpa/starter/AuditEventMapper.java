@@ -0,0 +1,81 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+
+/**
+ * Reads the process mining relevant parts out of the AuditEvents created by {@link MyConsentService}
+ */
+public class AuditEventMapper {
+
+  private AuditEventMapper() {
+  }
+
+  /**
+   * @return id part of the PlanDefinition the event is based on, or null if there is none
+   */
+  public static String getPlanDefinitionId(AuditEvent theEvent) {
+    Reference reference = getReference(theEvent, AuditEventSearchParameters.BASED_ON_EXTENSION_URL);
+    String planDefinition = toReferenceString(reference);
+    return planDefinition != null ? new IdType(planDefinition).getIdPart() : null;
+  }
+
+  /**
+   * @return the encounter reference that is used as case id, or null if there is none
+   */
+  public static String getCaseId(AuditEvent theEvent) {
+    Reference reference = getReference(theEvent, AuditEventSearchParameters.ENCOUNTER_EXTENSION_URL);
+    return reference != null ? reference.getReference() : null;
+  }
+
+  /**
+   * Maps the event to an {@link XESEvent}
+   *
+   * @return mapped event or null if the event is not part of the workflow
+   */
+  public static XESEvent toXESEvent(AuditEvent theEvent) {
+    String activity = mapActivity(theEvent);
+    if (activity == null) {
+      return null;
+    }
+    String resource = theEvent.hasSource() ? toReferenceString(theEvent.getSource().getObserver()) : null;
+    return new XESEvent(activity, "complete", theEvent.getRecorded(), resource, theEvent.getIdElement().getIdPart());
+  }
+
+  /**
+   * Maps events to XES activities with the rules configured in <code>xes.mapping.rules</code>
+   *
+   * @param x event to be mapped
+   * @return name of the activity or null if the event is not part of the workflow
+   * @see ActivityMapping
+   */
+  public static String mapActivity(AuditEvent x) {
+    return ActivityMapping.getConfigured().map(x);
+  }
+
+  /**
+   * @return the reference as unqualified versionless string, e.g. <code>Device/1</code>
+   */
+  private static String toReferenceString(Reference theReference) {
+    if (theReference == null) {
+      return null;
+    }
+    if (theReference.getReference() != null) {
+      return new IdType(theReference.getReference()).toUnqualifiedVersionless().getValue();
+    }
+    // events that were not read back from the database still hold the resource instead of the reference
+    IBaseResource resource = theReference.getResource();
+    return resource != null ? resource.getIdElement().toUnqualifiedVersionless().getValue() : null;
+  }
+
+  private static Reference getReference(AuditEvent theEvent, String theExtensionUrl) {
+    Extension extension = theEvent.getExtensionByUrl(theExtensionUrl);
+    if (extension == null || !(extension.getValue() instanceof Reference)) {
+      return null;
+    }
+    return (Reference) extension.getValue();
+  }
+}
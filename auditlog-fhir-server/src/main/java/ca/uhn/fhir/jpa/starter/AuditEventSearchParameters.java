@@ -0,0 +1,58 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.registry.ISearchParamRegistry;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.SearchParameter;
+
+/**
+ * Extensions that {@link MyConsentService} attaches to every AuditEvent and the custom SearchParameter that indexes
+ * the PlanDefinition, so event logs can be filtered by the database instead of in Java. The encounter is not
+ * indexed, the events are grouped into cases while the log is built.
+ */
+public class AuditEventSearchParameters {
+
+  public static final String BASED_ON_EXTENSION_URL = "https://fhirserver.com/extensions/auditevent-basedon";
+  public static final String ENCOUNTER_EXTENSION_URL = "https://fhirserver.com/extensions/auditevent-encounter";
+
+  /**
+   * Search parameter on the PlanDefinition an AuditEvent is based on
+   */
+  public static final String SP_BASED_ON = "basedon";
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(AuditEventSearchParameters.class);
+
+  private AuditEventSearchParameters() {
+  }
+
+  /**
+   * Creates or updates the SearchParameter. It has a fixed id, so calling this on every startup does not create
+   * new versions unless the definition changed. Existing AuditEvents are reindexed by the server in the background.
+   */
+  public static void register(DaoRegistry theDaoRegistry, ISearchParamRegistry theSearchParamRegistry) {
+    IFhirResourceDao<SearchParameter> searchParameterDao = theDaoRegistry.getResourceDao(SearchParameter.class);
+
+    searchParameterDao.update(createSearchParameter("auditevent-basedon", SP_BASED_ON, BASED_ON_EXTENSION_URL, "PlanDefinition",
+      "The PlanDefinition the audited request was executed for"));
+
+    theSearchParamRegistry.forceRefresh();
+    ourLog.info("Registered AuditEvent search parameter '{}'", SP_BASED_ON);
+  }
+
+  private static SearchParameter createSearchParameter(String theId, String theCode, String theExtensionUrl, String theTarget, String theDescription) {
+    SearchParameter searchParameter = new SearchParameter();
+    searchParameter.setId("SearchParameter/" + theId);
+    searchParameter.setUrl("https://fhirserver.com/SearchParameter/" + theId);
+    searchParameter.setName(theCode);
+    searchParameter.setStatus(Enumerations.PublicationStatus.ACTIVE);
+    searchParameter.setDescription(theDescription);
+    searchParameter.setCode(theCode);
+    searchParameter.addBase("AuditEvent");
+    searchParameter.addTarget(theTarget);
+    searchParameter.setType(Enumerations.SearchParamType.REFERENCE);
+    searchParameter.setExpression("AuditEvent.extension('" + theExtensionUrl + "').value");
+    searchParameter.setXpathUsage(SearchParameter.XPathUsageType.NORMAL);
+    return searchParameter;
+  }
+}
@@ -0,0 +1,418 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists the AuditEvents created by {@link MyConsentService} and hands them to the {@link ConformanceMonitor} once
+ * they are stored. The {@link EventLogStore} picks them up through its storage hooks.
+ * <p>
+ * If <code>auditevent.async.enabled</code> is set, events are put into a bounded queue instead of being stored on
+ * the request thread. A background thread stores them in batches of up to <code>auditevent.async.batch_size</code>
+ * events per transaction, an event waits at most <code>auditevent.async.flush_interval_ms</code> for its batch to
+ * fill up. If the queue is full the request thread stores its event itself, which slows down the requests as long as
+ * the writer cannot keep up without losing any event. On shutdown the queue is drained before the server stops.
+ * <p>
+ * If <code>auditevent.journal.enabled</code> is set, events are appended to an {@link AuditJournal} on disk instead,
+ * so they survive a crash of the JVM. A power loss or a crash of the operating system loses the events appended since
+ * the journal was last forced to disk, see <code>auditevent.journal.force_interval_ms</code>. Every event gets a random
+ * id before it is journaled and is created with that id. Before a batch is stored the ids are looked up, events that
+ * were stored before a crash are skipped instead of being stored again as a new version. The background thread stores
+ * the journaled events in batches the same way and checkpoints the journal after the last event that is stored with
+ * all events before it. Events
+ * that cannot be stored because the database fails are retried, with pauses growing up to a minute, for as long as
+ * it takes. Events the server rejects are moved to the dead letter file of the journal instead. Events that were not
+ * stored before the server stopped are stored once it is started again. If the journal is full the request thread
+ * stores its event itself.
+ * <p>
+ * The background thread is started by the {@link ApplicationContext} once it is refreshed, so events left in the
+ * journal are only stored when the DAOs are ready.
+ */
+public class AuditEventWriter {
+
+  @Autowired
+  FhirContext myFhirContext;
+
+  @Autowired
+  IFhirResourceDao<AuditEvent> myAuditEventDao;
+
+  @Autowired
+  PlatformTransactionManager myTransactionManager;
+
+  @Autowired
+  ConformanceMonitor myConformanceMonitor;
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(AuditEventWriter.class);
+
+  private static final long SHUTDOWN_TIMEOUT_MILLIS = 30_000;
+  private static final long MAX_RETRY_PAUSE_MILLIS = 60_000;
+
+  private final boolean myAsync;
+  private final BlockingQueue<AuditEvent> myQueue;
+  private final int myBatchSize;
+  private final long myFlushIntervalMillis;
+  private final AuditJournal myJournal;
+  private final CountDownLatch myStopped = new CountDownLatch(1);
+  private Thread myThread;
+  private volatile boolean myRunning;
+
+  /**
+   * @param theAsync               store the events on a background thread
+   * @param theQueueCapacity       maximum number of events waiting to be stored
+   * @param theBatchSize           maximum number of events stored in one transaction
+   * @param theFlushIntervalMillis maximum time an event waits for its batch to fill up
+   * @param theJournal             journal the events are appended to instead of the queue, or null
+   */
+  public AuditEventWriter(boolean theAsync, int theQueueCapacity, int theBatchSize, long theFlushIntervalMillis, AuditJournal theJournal) {
+    myAsync = theAsync || theJournal != null;
+    myQueue = theAsync && theJournal == null ? new ArrayBlockingQueue<>(theQueueCapacity) : null;
+    myBatchSize = Math.max(1, theBatchSize);
+    myFlushIntervalMillis = theFlushIntervalMillis;
+    myJournal = theJournal;
+  }
+
+  /**
+   * Starts the background thread, events that were journaled before the last shutdown are stored first
+   */
+  public synchronized void start() {
+    if (!myAsync || myThread != null) {
+      return;
+    }
+    myRunning = true;
+    myThread = new Thread(myJournal != null ? this::runJournal : this::run, "auditevent-writer");
+    myThread.setDaemon(true);
+    myThread.start();
+  }
+
+  /**
+   * Stores the event, asynchronously if enabled
+   */
+  public void write(AuditEvent theAuditEvent) {
+    if (myJournal != null) {
+      // journaled events are stored once the writer runs, also after a restart
+      theAuditEvent.setId(UUID.randomUUID().toString());
+      try {
+        if (myJournal.append(myFhirContext.newJsonParser().encodeResourceToString(theAuditEvent).getBytes(StandardCharsets.UTF_8))) {
+          return;
+        }
+      } catch (IOException e) {
+        ourLog.error("Could not journal AuditEvent, storing it directly", e);
+      }
+      theAuditEvent.setId((String) null);
+    } else if (myAsync && myRunning && myQueue.offer(theAuditEvent)) {
+      return;
+    }
+    // synchronous, queue or journal full or shutting down
+    myAuditEventDao.create(theAuditEvent);
+    stored(theAuditEvent);
+  }
+
+  /**
+   * @return number of events waiting to be stored
+   */
+  public int getQueueSize() {
+    return myQueue != null ? myQueue.size() : 0;
+  }
+
+  private void run() {
+    List<AuditEvent> batch = new ArrayList<>(myBatchSize);
+    while (myRunning || !myQueue.isEmpty()) {
+      try {
+        AuditEvent first = myQueue.poll(myFlushIntervalMillis, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = System.currentTimeMillis() + myFlushIntervalMillis;
+        while (batch.size() < myBatchSize) {
+          if (myQueue.drainTo(batch, myBatchSize - batch.size()) > 0) {
+            continue;
+          }
+          long remaining = deadline - System.currentTimeMillis();
+          AuditEvent next = remaining > 0 && myRunning ? myQueue.poll(remaining, TimeUnit.MILLISECONDS) : null;
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        // interrupted by a shutdown that timed out, whatever was taken is still stored
+        myRunning = false;
+      }
+      if (!batch.isEmpty()) {
+        store(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  private void runJournal() {
+    int failures = 0;
+    while (myRunning) {
+      List<AuditJournal.Record> records;
+      try {
+        records = myJournal.read(myBatchSize, myFlushIntervalMillis);
+      } catch (InterruptedException e) {
+        // interrupted by a shutdown that timed out, the journal keeps what is not stored
+        return;
+      }
+      // also while no events are appended, the last ones must not stay in the page cache only
+      myJournal.forceIfDue();
+      if (records.isEmpty()) {
+        continue;
+      }
+      int handled = storeJournaled(records);
+      if (handled > 0) {
+        try {
+          myJournal.checkpoint(records.get(handled - 1));
+        } catch (IOException e) {
+          // the events are stored again after a restart, with the same ids
+          ourLog.warn("Could not checkpoint the AuditEvent journal", e);
+        }
+      }
+      if (handled == records.size()) {
+        failures = 0;
+        continue;
+      }
+
+      // the first event that was not stored and all after it are read again after a pause
+      myJournal.rewind();
+      failures++;
+      long pause = Math.min(MAX_RETRY_PAUSE_MILLIS, Math.max(1, myFlushIntervalMillis) << Math.min(failures - 1, 16));
+      ourLog.warn("Could not store {} journaled AuditEvents, retrying in {} ms", records.size() - handled, pause);
+      try {
+        if (myStopped.await(pause, TimeUnit.MILLISECONDS)) {
+          return;
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Stores the events of the records in their order, moving those that are rejected to the dead letters
+   *
+   * @return number of leading records that are stored or dead lettered, the others have to be retried
+   */
+  private int storeJournaled(List<AuditJournal.Record> theRecords) {
+    List<AuditEvent> events = new ArrayList<>(theRecords.size());
+    for (AuditJournal.Record record : theRecords) {
+      AuditEvent event;
+      try {
+        event = myFhirContext.newJsonParser().parseResource(AuditEvent.class, new String(record.getData(), StandardCharsets.UTF_8));
+      } catch (RuntimeException e) {
+        ourLog.error("Journaled AuditEvent cannot be parsed", e);
+        event = null;
+      }
+      events.add(event);
+    }
+
+    Set<String> existing;
+    try {
+      existing = findExisting(events);
+    } catch (RuntimeException e) {
+      ourLog.warn("Could not look up {} journaled AuditEvents: {}", events.size(), e.getMessage());
+      return 0;
+    }
+
+    if (!events.contains(null)) {
+      try {
+        new TransactionTemplate(myTransactionManager).execute(status -> {
+          for (AuditEvent event : events) {
+            if (!existing.contains(event.getIdElement().getIdPart())) {
+              persist(event);
+            }
+          }
+          return null;
+        });
+        for (AuditEvent event : events) {
+          if (!existing.contains(event.getIdElement().getIdPart())) {
+            stored(event);
+          }
+        }
+        return events.size();
+      } catch (RuntimeException e) {
+        ourLog.warn("Storing a batch of {} journaled AuditEvents failed, storing them one by one: {}", events.size(), e.getMessage());
+      }
+    }
+
+    for (int i = 0; i < events.size(); i++) {
+      AuditEvent event = events.get(i);
+      if (event != null && existing.contains(event.getIdElement().getIdPart())) {
+        continue;
+      }
+      if (event != null) {
+        try {
+          // the failed transaction assigned versions, the event keeps its own id
+          event.setId(event.getIdElement().getIdPart());
+          persist(event);
+          stored(event);
+          continue;
+        } catch (RuntimeException e) {
+          if (!isRejected(e)) {
+            ourLog.warn("Could not store journaled AuditEvent recorded at {}: {}", event.getRecorded(), e.getMessage());
+            return i;
+          }
+          ourLog.error("AuditEvent recorded at {} is rejected, moving it to {}", event.getRecorded(), myJournal.getDeadLetterFile(), e);
+        }
+      }
+      try {
+        myJournal.deadLetter(theRecords.get(i));
+      } catch (IOException e) {
+        ourLog.error("Could not write to {}", myJournal.getDeadLetterFile(), e);
+        return i;
+      }
+    }
+    return events.size();
+  }
+
+  /**
+   * @return id parts of the events that are stored already, by an attempt that was not checkpointed before a crash
+   */
+  private Set<String> findExisting(List<AuditEvent> theEvents) {
+    TokenOrListParam ids = new TokenOrListParam();
+    int count = 0;
+    for (AuditEvent event : theEvents) {
+      if (event != null) {
+        ids.addOr(new TokenParam(null, event.getIdElement().getIdPart()));
+        count++;
+      }
+    }
+    Set<String> existing = new HashSet<>();
+    if (count == 0) {
+      return existing;
+    }
+    SearchParameterMap searchParameterMap = SearchParameterMap.newSynchronous();
+    searchParameterMap.add(IAnyResource.SP_RES_ID, ids);
+    for (IBaseResource resource : myAuditEventDao.search(searchParameterMap).getResources(0, count)) {
+      existing.add(resource.getIdElement().getIdPart());
+    }
+    return existing;
+  }
+
+  /**
+   * @return whether storing the event failed because of the event itself, so it would fail on every attempt
+   */
+  private static boolean isRejected(RuntimeException theException) {
+    if (theException instanceof ResourceVersionConflictException) {
+      // a concurrent change, gone on the next attempt
+      return false;
+    }
+    if (theException instanceof BaseServerResponseException) {
+      int status = ((BaseServerResponseException) theException).getStatusCode();
+      return status >= 400 && status < 500;
+    }
+    return false;
+  }
+
+  private void store(List<AuditEvent> theBatch) {
+    try {
+      new TransactionTemplate(myTransactionManager).execute(status -> {
+        for (AuditEvent auditEvent : theBatch) {
+          persist(auditEvent);
+        }
+        return null;
+      });
+    } catch (RuntimeException e) {
+      // one invalid event must not take the others with it, store them one by one
+      ourLog.warn("Storing a batch of {} AuditEvents failed, storing them one by one: {}", theBatch.size(), e.getMessage());
+      for (AuditEvent auditEvent : theBatch) {
+        try {
+          auditEvent.setId((String) null);
+          persist(auditEvent);
+        } catch (RuntimeException eventException) {
+          ourLog.error("Could not store AuditEvent recorded at {}", auditEvent.getRecorded(), eventException);
+          continue;
+        }
+        stored(auditEvent);
+      }
+      return;
+    }
+    for (AuditEvent auditEvent : theBatch) {
+      stored(auditEvent);
+    }
+  }
+
+  private void persist(AuditEvent theAuditEvent) {
+    // journaled events carry their id and are created with it, the ones that exist already are skipped before
+    if (theAuditEvent.getIdElement().hasIdPart()) {
+      myAuditEventDao.update(theAuditEvent);
+    } else {
+      myAuditEventDao.create(theAuditEvent);
+    }
+  }
+
+  private void stored(AuditEvent theAuditEvent) {
+    try {
+      myConformanceMonitor.append(theAuditEvent);
+    } catch (RuntimeException e) {
+      // the event is stored, it must neither be stored again nor stop the writer
+      ourLog.error("Could not check the conformance of the AuditEvent recorded at {}", theAuditEvent.getRecorded(), e);
+    }
+  }
+
+  /**
+   * Stops accepting events and waits until the queued ones are stored, journaled events are only stored until the
+   * current batch is done, the others are stored after the next start
+   */
+  @PreDestroy
+  public void shutdown() {
+    if (myThread == null) {
+      return;
+    }
+    myRunning = false;
+    myStopped.countDown();
+    if (myJournal != null) {
+      myJournal.stopWaiting();
+    }
+    try {
+      myThread.join(SHUTDOWN_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (myJournal != null) {
+      // whatever is not stored yet stays in the journal until the next start
+      if (myThread.isAlive()) {
+        myThread.interrupt();
+      }
+      myJournal.close();
+      return;
+    }
+    if (myThread.isAlive()) {
+      myThread.interrupt();
+      ourLog.warn("AuditEvent writer did not finish within {} ms, {} events are not stored", SHUTDOWN_TIMEOUT_MILLIS, myQueue.size());
+      return;
+    }
+    // events offered while the writer was finishing
+    List<AuditEvent> remaining = new ArrayList<>();
+    myQueue.drainTo(remaining);
+    if (!remaining.isEmpty()) {
+      store(remaining);
+    }
+  }
+}
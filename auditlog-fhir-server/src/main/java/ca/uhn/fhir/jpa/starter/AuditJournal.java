@@ -0,0 +1,341 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the AuditEvents that are not stored yet, so they survive a crash of the JVM. Records are
+ * appended to memory-mapped segment files of a fixed size, a new segment is started when the current one is full.
+ * Every record is written as its length, its CRC32 and its bytes, a record cut short by a crash fails the check and
+ * ends its segment.
+ * <p>
+ * The records are read in the order they were appended. Once a record and all records before it are stored,
+ * {@link #checkpoint(Record)} persists that reading continues after it and deletes the segments that were read
+ * completely. When the journal is opened, reading continues at the last checkpoint, records that were read but not
+ * checkpointed are read again. New records always go into a new segment. Records that can never be stored are moved
+ * to a separate dead letter file with {@link #deadLetter(Record)}, in the same format as the segments.
+ * <p>
+ * A record is written to the page cache of the operating system, it survives a crash of the JVM but only survives
+ * a power loss or a crash of the operating system once its segment is forced to disk. That happens when the segment
+ * is full, when the journal is closed and with {@link #forceIfDue()} once the force interval elapsed, which
+ * {@link #append(byte[])} and the thread reading the journal call. A force interval of 0 forces every record before
+ * <code>append</code> returns.
+ */
+public class AuditJournal {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(AuditJournal.class);
+
+  private static final String SEGMENT_SUFFIX = ".journal";
+  private static final String CHECKPOINT = "checkpoint";
+  // not numbered, so it is never taken for a segment
+  private static final String DEAD_LETTER = "dead-letter" + SEGMENT_SUFFIX;
+  // length and CRC32 of a record
+  private static final int HEADER = 8;
+
+  private final File myDirectory;
+  private final int mySegmentSize;
+  private final int myMaximumSegments;
+  private final long myForceIntervalMillis;
+  private final TreeMap<Long, MappedByteBuffer> mySegments = new TreeMap<>();
+  private final CRC32 myChecksum = new CRC32();
+  private long myWriteSegment;
+  private MappedByteBuffer myWriteBuffer;
+  private long myReadSegment;
+  private int myReadOffset;
+  private long myCheckpointSegment;
+  private int myCheckpointOffset;
+  private boolean myWaiting = true;
+  private boolean myUnforced;
+  private long myLastForce;
+
+  /**
+   * @param theDirectory           directory the segments are kept in
+   * @param theSegmentSize         size of a segment in bytes
+   * @param theMaximumSize         maximum size of all segments that are not read completely in bytes, at least one segment
+   * @param theForceIntervalMillis maximum time appended records stay in the page cache only, see {@link #forceIfDue()}
+   */
+  public AuditJournal(File theDirectory, int theSegmentSize, long theMaximumSize, long theForceIntervalMillis) throws IOException {
+    myDirectory = theDirectory;
+    mySegmentSize = theSegmentSize;
+    myMaximumSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, theMaximumSize / theSegmentSize));
+    myForceIntervalMillis = theForceIntervalMillis;
+
+    if (!myDirectory.isDirectory() && !myDirectory.mkdirs()) {
+      throw new IllegalStateException("Could not create audit journal directory " + myDirectory.getAbsolutePath());
+    }
+    File checkpoint = new File(myDirectory, CHECKPOINT);
+    if (checkpoint.exists()) {
+      try (DataInputStream input = new DataInputStream(new FileInputStream(checkpoint))) {
+        myCheckpointSegment = input.readLong();
+        myCheckpointOffset = input.readInt();
+      }
+    }
+
+    File[] files = myDirectory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+    if (files != null) {
+      for (File file : files) {
+        long segment;
+        try {
+          segment = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+          continue;
+        }
+        if (segment < myCheckpointSegment) {
+          Files.deleteIfExists(file.toPath());
+        } else {
+          mySegments.put(segment, map(file, file.length()));
+        }
+      }
+    }
+
+    if (!mySegments.containsKey(myCheckpointSegment)) {
+      // the checkpointed segment is gone, whatever is left is read from its start
+      Long first = mySegments.ceilingKey(myCheckpointSegment);
+      myCheckpointSegment = first != null ? first : myCheckpointSegment;
+      myCheckpointOffset = 0;
+    }
+    myReadSegment = myCheckpointSegment;
+    myReadOffset = myCheckpointOffset;
+    if (!mySegments.isEmpty()) {
+      ourLog.info("Audit journal {} has {} segments that are not stored completely, they are replayed", myDirectory.getAbsolutePath(), mySegments.size());
+    }
+
+    // a segment that was written when the server stopped may end with a torn record, it is never appended to
+    myWriteSegment = mySegments.isEmpty() ? myCheckpointSegment : mySegments.lastKey() + 1;
+    myWriteBuffer = createSegment(myWriteSegment);
+  }
+
+  private static MappedByteBuffer map(File theFile, long theSize) throws IOException {
+    try (FileChannel channel = FileChannel.open(theFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // the mapping stays valid after the channel is closed
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, theSize);
+    }
+  }
+
+  private MappedByteBuffer createSegment(long theSegment) throws IOException {
+    MappedByteBuffer buffer = map(getSegmentFile(theSegment), mySegmentSize);
+    mySegments.put(theSegment, buffer);
+    return buffer;
+  }
+
+  private File getSegmentFile(long theSegment) {
+    // zero padded, the segments sort by name
+    return new File(myDirectory, String.format("%019d", theSegment) + SEGMENT_SUFFIX);
+  }
+
+  /**
+   * Appends a record
+   *
+   * @return false if the record is larger than a segment or the journal is full
+   */
+  public synchronized boolean append(byte[] theRecord) throws IOException {
+    int size = HEADER + theRecord.length;
+    if (size > mySegmentSize) {
+      return false;
+    }
+    if (myWriteBuffer.remaining() < size) {
+      if (mySegments.size() >= myMaximumSegments) {
+        return false;
+      }
+      force();
+      myWriteSegment++;
+      myWriteBuffer = createSegment(myWriteSegment);
+    }
+
+    int position = myWriteBuffer.position();
+    myWriteBuffer.position(position + HEADER);
+    myWriteBuffer.put(theRecord);
+    myWriteBuffer.putInt(position + 4, checksum(theRecord));
+    // the length comes last, until it is written the record does not exist
+    myWriteBuffer.putInt(position, theRecord.length);
+    myUnforced = true;
+    forceIfDue();
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * Forces the segment that is written to disk if records were appended to it and the force interval elapsed since
+   * it was forced last
+   */
+  public synchronized void forceIfDue() {
+    if (myUnforced && System.currentTimeMillis() - myLastForce >= myForceIntervalMillis) {
+      force();
+    }
+  }
+
+  private void force() {
+    myWriteBuffer.force();
+    myUnforced = false;
+    myLastForce = System.currentTimeMillis();
+  }
+
+  private int checksum(byte[] theRecord) {
+    myChecksum.reset();
+    myChecksum.update(theRecord, 0, theRecord.length);
+    return (int) myChecksum.getValue();
+  }
+
+  /**
+   * Reads the next records, waiting until the maximum number of records is available, the wait time elapsed or
+   * {@link #stopWaiting()} is called
+   *
+   * @return the records in the order they were appended, empty if there are none
+   */
+  public synchronized List<Record> read(int theMaximum, long theMaximumWaitMillis) throws InterruptedException {
+    List<Record> records = new ArrayList<>();
+    long deadline = System.currentTimeMillis() + theMaximumWaitMillis;
+    while (true) {
+      readAvailable(records, theMaximum);
+      long remaining = deadline - System.currentTimeMillis();
+      if (records.size() >= theMaximum || remaining <= 0 || !myWaiting) {
+        return records;
+      }
+      wait(remaining);
+    }
+  }
+
+  private void readAvailable(List<Record> theRecords, int theMaximum) {
+    while (theRecords.size() < theMaximum) {
+      byte[] record = readRecord(mySegments.get(myReadSegment), myReadOffset);
+      if (record != null) {
+        myReadOffset += HEADER + record.length;
+        theRecords.add(new Record(record, myReadSegment, myReadOffset));
+      } else if (myReadSegment < myWriteSegment) {
+        // end of a complete segment or of one that was written when the server stopped
+        myReadSegment = mySegments.higherKey(myReadSegment);
+        myReadOffset = 0;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private byte[] readRecord(ByteBuffer theSegment, int theOffset) {
+    if (theSegment == null || theOffset + HEADER > theSegment.capacity()) {
+      return null;
+    }
+    int length = theSegment.getInt(theOffset);
+    if (length <= 0 || length > theSegment.capacity() - theOffset - HEADER) {
+      return null;
+    }
+    byte[] record = new byte[length];
+    ByteBuffer source = theSegment.duplicate();
+    source.position(theOffset + HEADER);
+    source.get(record);
+    if (checksum(record) != theSegment.getInt(theOffset + 4)) {
+      ourLog.warn("Audit journal segment {} ends with a record that was not written completely", myReadSegment);
+      return null;
+    }
+    return record;
+  }
+
+  /**
+   * Records that the record and all records before it are stored, they are not read again after a restart
+   */
+  public synchronized void checkpoint(Record theRecord) throws IOException {
+    if (theRecord.mySegment < myCheckpointSegment
+      || (theRecord.mySegment == myCheckpointSegment && theRecord.myNextOffset <= myCheckpointOffset)) {
+      return;
+    }
+    File checkpoint = new File(myDirectory, CHECKPOINT);
+    File temp = new File(myDirectory, CHECKPOINT + ".tmp");
+    try (FileOutputStream file = new FileOutputStream(temp); DataOutputStream output = new DataOutputStream(file)) {
+      output.writeLong(theRecord.mySegment);
+      output.writeInt(theRecord.myNextOffset);
+      output.flush();
+      // on disk before it replaces the previous checkpoint, a torn checkpoint would skip or lose records
+      file.getFD().sync();
+    }
+    Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    myCheckpointSegment = theRecord.mySegment;
+    myCheckpointOffset = theRecord.myNextOffset;
+
+    while (mySegments.firstKey() < myCheckpointSegment) {
+      long segment = mySegments.pollFirstEntry().getKey();
+      Files.deleteIfExists(getSegmentFile(segment).toPath());
+    }
+  }
+
+  /**
+   * Appends a record that can never be stored to the dead letter file, it is forced to disk before this returns.
+   * The record still has to be {@link #checkpoint(Record) checkpointed}.
+   */
+  public synchronized void deadLetter(Record theRecord) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER + theRecord.myData.length);
+    buffer.putInt(theRecord.myData.length);
+    buffer.putInt(checksum(theRecord.myData));
+    buffer.put(theRecord.myData);
+    buffer.flip();
+    try (FileChannel channel = FileChannel.open(getDeadLetterFile().toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+    }
+  }
+
+  /**
+   * @return file the records are appended to that can never be stored
+   */
+  public File getDeadLetterFile() {
+    return new File(myDirectory, DEAD_LETTER);
+  }
+
+  /**
+   * Continues reading at the last checkpoint, the records read since are read again
+   */
+  public synchronized void rewind() {
+    myReadSegment = myCheckpointSegment;
+    myReadOffset = myCheckpointOffset;
+  }
+
+  /**
+   * Makes waiting and future {@link #read} calls return immediately
+   */
+  public synchronized void stopWaiting() {
+    myWaiting = false;
+    notifyAll();
+  }
+
+  /**
+   * Forces the segment that is written to disk
+   */
+  public synchronized void close() {
+    force();
+  }
+
+  /**
+   * A record and its position in the journal
+   */
+  public static class Record {
+
+    private final byte[] myData;
+    private final long mySegment;
+    private final int myNextOffset;
+
+    Record(byte[] theData, long theSegment, int theNextOffset) {
+      myData = theData;
+      mySegment = theSegment;
+      myNextOffset = theNextOffset;
+    }
+
+    public byte[] getData() {
+      return myData;
+    }
+  }
+}
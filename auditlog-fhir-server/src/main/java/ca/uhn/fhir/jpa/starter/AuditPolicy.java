@@ -0,0 +1,241 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.hl7.fhir.r4.model.AuditEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compiled policy deciding which requests are audited. Rules are given as
+ * <code>action:type[:operation[:outcome]]=decision</code>, separated by commas, e.g.
+ * <code>R:AuditEvent=never,E:*:$xes=never,R:*=5%</code>.
+ * <ul>
+ * <li>action - code of the AuditEvent action (C, R, U, D, E)</li>
+ * <li>type - resource type of the request</li>
+ * <li>operation - optional, name of the operation, e.g. <code>$xes</code></li>
+ * <li>outcome - optional, <code>success</code> or <code>failure</code></li>
+ * <li>decision - <code>always</code>, <code>never</code> or the percentage of requests that are sampled</li>
+ * </ul>
+ * <code>*</code> matches any action, type, operation or outcome, an omitted operation or outcome as well. If several
+ * rules apply the most specific one wins, a specific operation is more specific than a specific type, which is more
+ * specific than a specific action and outcome. Of equally specific rules the last one wins. Requests no rule applies
+ * to are always audited.
+ * <p>
+ * The rules are compiled into a table that holds the decision for every combination of action, outcome, type and
+ * operation the rules mention, so deciding costs at most four hash probes independent of the number of rules.
+ */
+public class AuditPolicy {
+
+  public static final String WILDCARD = "*";
+
+  private static final int SCALE = 10_000;
+  private static final int ALWAYS = SCALE;
+  private static final int NEVER = 0;
+
+  private static final AuditEvent.AuditEventAction[] ACTIONS = {
+    AuditEvent.AuditEventAction.C, AuditEvent.AuditEventAction.R, AuditEvent.AuditEventAction.U,
+    AuditEvent.AuditEventAction.D, AuditEvent.AuditEventAction.E
+  };
+  // requests without an action code are only matched by wildcard rules
+  private static final int NO_ACTION = ACTIONS.length;
+
+  private static volatile AuditPolicy ourConfigured;
+
+  // [action][failed] -> type -> operation -> share of requests audited, out of SCALE
+  private final Map<String, Map<String, Integer>>[][] myTable;
+
+  private AuditPolicy(Map<String, Map<String, Integer>>[][] theTable) {
+    myTable = theTable;
+  }
+
+  /**
+   * @return the policy configured in <code>auditevent.policy.rules</code>
+   */
+  public static AuditPolicy getConfigured() {
+    AuditPolicy policy = ourConfigured;
+    if (policy == null) {
+      policy = parse(HapiProperties.getAuditEventPolicyRules());
+      ourConfigured = policy;
+    }
+    return policy;
+  }
+
+  /**
+   * Compiles the given rules
+   *
+   * @throws IllegalArgumentException if a rule is malformed
+   */
+  public static AuditPolicy parse(String theRules) {
+    List<Rule> rules = new ArrayList<>();
+    if (theRules != null) {
+      for (String rule : theRules.split(",")) {
+        rule = rule.trim();
+        if (!rule.isEmpty()) {
+          rules.add(parseRule(rule));
+        }
+      }
+    }
+    return compile(rules);
+  }
+
+  private static Rule parseRule(String theRule) {
+    int separator = theRule.indexOf('=');
+    if (separator < 0) {
+      throw new IllegalArgumentException("Audit policy rule '" + theRule + "' does not assign a decision");
+    }
+    String[] condition = theRule.substring(0, separator).trim().split(":", 4);
+    if (condition.length < 2 || condition[1].trim().isEmpty()) {
+      throw new IllegalArgumentException("Audit policy rule '" + theRule + "' is not of the form action:type[:operation[:outcome]]=decision");
+    }
+
+    int action = parseAction(theRule, condition[0].trim());
+    String type = condition[1].trim();
+    String operation = condition.length > 2 && !condition[2].trim().isEmpty() ? normalizeOperation(condition[2].trim()) : WILDCARD;
+    Boolean failed = null;
+    if (condition.length > 3 && !condition[3].trim().isEmpty() && !condition[3].trim().equals(WILDCARD)) {
+      String outcome = condition[3].trim().toLowerCase(Locale.US);
+      if (!outcome.equals("success") && !outcome.equals("failure")) {
+        throw new IllegalArgumentException("Audit policy rule '" + theRule + "' has an unknown outcome, expected success or failure");
+      }
+      failed = outcome.equals("failure");
+    }
+    return new Rule(action, type, operation, failed, parseDecision(theRule, theRule.substring(separator + 1).trim()));
+  }
+
+  private static int parseAction(String theRule, String theAction) {
+    if (theAction.equals(WILDCARD)) {
+      return -1;
+    }
+    for (int action = 0; action < ACTIONS.length; action++) {
+      if (ACTIONS[action].name().equals(theAction)) {
+        return action;
+      }
+    }
+    throw new IllegalArgumentException("Audit policy rule '" + theRule + "' has an unknown action");
+  }
+
+  private static int parseDecision(String theRule, String theDecision) {
+    String decision = theDecision.toLowerCase(Locale.US);
+    if (decision.equals("always")) {
+      return ALWAYS;
+    }
+    if (decision.equals("never")) {
+      return NEVER;
+    }
+    if (decision.endsWith("%")) {
+      try {
+        double percentage = Double.parseDouble(decision.substring(0, decision.length() - 1).trim());
+        if (percentage >= 0 && percentage <= 100) {
+          return (int) Math.round(percentage * SCALE / 100);
+        }
+      } catch (NumberFormatException e) {
+        // reported below
+      }
+    }
+    throw new IllegalArgumentException("Audit policy rule '" + theRule + "' has an unknown decision, expected always, never or a percentage");
+  }
+
+  private static String normalizeOperation(String theOperation) {
+    return theOperation.equals(WILDCARD) || theOperation.startsWith("$") ? theOperation : "$" + theOperation;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static AuditPolicy compile(List<Rule> theRules) {
+    // every type and operation a rule mentions gets its own row, the wildcard row stands for all others
+    Set<String> types = new LinkedHashSet<>();
+    Set<String> operations = new LinkedHashSet<>();
+    types.add(WILDCARD);
+    operations.add(WILDCARD);
+    for (Rule rule : theRules) {
+      types.add(rule.myType);
+      operations.add(rule.myOperation);
+    }
+
+    Map<String, Map<String, Integer>>[][] table = new Map[NO_ACTION + 1][2];
+    for (int action = 0; action <= NO_ACTION; action++) {
+      for (int failed = 0; failed < 2; failed++) {
+        Map<String, Map<String, Integer>> byType = new HashMap<>();
+        for (String type : types) {
+          Map<String, Integer> byOperation = new HashMap<>();
+          for (String operation : operations) {
+            byOperation.put(operation, decide(theRules, action, failed == 1, type, operation));
+          }
+          byType.put(type, byOperation);
+        }
+        table[action][failed] = byType;
+      }
+    }
+    return new AuditPolicy(table);
+  }
+
+  private static int decide(List<Rule> theRules, int theAction, boolean theFailed, String theType, String theOperation) {
+    int decision = ALWAYS;
+    int specificity = -1;
+    for (Rule rule : theRules) {
+      if (rule.matches(theAction, theFailed, theType, theOperation) && rule.getSpecificity() >= specificity) {
+        decision = rule.myDecision;
+        specificity = rule.getSpecificity();
+      }
+    }
+    return decision;
+  }
+
+  /**
+   * @param theAction     action code of the request, null if it has none
+   * @param theType       resource type of the request, null for system level requests
+   * @param theOperation  name of the operation, null if it is none
+   * @param theSuccessful whether the request succeeded
+   * @return whether an AuditEvent should be created for the request, sampled requests are chosen at random
+   */
+  public boolean isAudited(AuditEvent.AuditEventAction theAction, String theType, String theOperation, boolean theSuccessful) {
+    int action = 0;
+    while (action < NO_ACTION && ACTIONS[action] != theAction) {
+      action++;
+    }
+    Map<String, Map<String, Integer>> byType = myTable[action][theSuccessful ? 0 : 1];
+    Map<String, Integer> byOperation = theType != null ? byType.get(theType) : null;
+    if (byOperation == null) {
+      byOperation = byType.get(WILDCARD);
+    }
+    Integer decision = theOperation != null && !theOperation.isEmpty() ? byOperation.get(normalizeOperation(theOperation)) : null;
+    if (decision == null) {
+      decision = byOperation.get(WILDCARD);
+    }
+    return decision == ALWAYS || (decision != NEVER && ThreadLocalRandom.current().nextInt(SCALE) < decision);
+  }
+
+  private static class Rule {
+
+    private final int myAction;
+    private final String myType;
+    private final String myOperation;
+    private final Boolean myFailed;
+    private final int myDecision;
+
+    Rule(int theAction, String theType, String theOperation, Boolean theFailed, int theDecision) {
+      myAction = theAction;
+      myType = theType;
+      myOperation = theOperation;
+      myFailed = theFailed;
+      myDecision = theDecision;
+    }
+
+    boolean matches(int theAction, boolean theFailed, String theType, String theOperation) {
+      return (myAction < 0 || myAction == theAction)
+        && (myFailed == null || myFailed == theFailed)
+        && (myType.equals(WILDCARD) || myType.equals(theType))
+        && (myOperation.equals(WILDCARD) || myOperation.equals(theOperation));
+    }
+
+    int getSpecificity() {
+      return (myOperation.equals(WILDCARD) ? 0 : 8) + (myType.equals(WILDCARD) ? 0 : 4)
+        + (myAction < 0 ? 0 : 2) + (myFailed == null ? 0 : 1);
+    }
+  }
+}
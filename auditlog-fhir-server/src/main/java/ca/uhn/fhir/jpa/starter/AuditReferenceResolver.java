@@ -0,0 +1,144 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Device;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.hl7.fhir.r4.model.Reference;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves the Device that records the AuditEvents and the PlanDefinition they are based on, configured through
+ * <code>auditevent.device.id</code> and <code>auditevent.plandefinition.id</code>. Each one is read once and the
+ * result is kept, also if it does not exist, until a resource of the same type and id is created, updated or deleted.
+ * <p>
+ * Registered as storage interceptor, see {@link BaseJpaRestfulServer}.
+ */
+public class AuditReferenceResolver {
+
+  @Autowired
+  IFhirResourceDao<Device> myDeviceDao;
+
+  @Autowired
+  IFhirResourceDao<PlanDefinition> myPlanDefinitionDao;
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(AuditReferenceResolver.class);
+
+  private final Resolved myDevice;
+  private final Resolved myPlanDefinition;
+
+  public AuditReferenceResolver(String theDeviceId, String thePlanDefinitionId) {
+    myDevice = new Resolved(new IdType("Device", theDeviceId));
+    myPlanDefinition = new Resolved(new IdType("PlanDefinition", thePlanDefinitionId));
+  }
+
+  /**
+   * @return reference to the Device that records the AuditEvents, or null if it does not exist
+   */
+  public Reference getDeviceReference() {
+    return myDevice.getReference(myDeviceDao);
+  }
+
+  /**
+   * @return reference to the PlanDefinition the AuditEvents are based on, or null if it does not exist
+   */
+  public Reference getPlanDefinitionReference() {
+    return myPlanDefinition.getReference(myPlanDefinitionDao);
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+  public void resourceCreated(IBaseResource theResource) {
+    invalidate(theResource);
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+  public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+    invalidate(theNewResource);
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+  public void resourceDeleted(IBaseResource theResource) {
+    invalidate(theResource);
+  }
+
+  private void invalidate(IBaseResource theResource) {
+    IIdType id = theResource.getIdElement();
+    Resolved resolved;
+    if (myDevice.matches(id)) {
+      resolved = myDevice;
+    } else if (myPlanDefinition.matches(id)) {
+      resolved = myPlanDefinition;
+    } else {
+      return;
+    }
+    resolved.invalidate();
+    // requests that read the resource before the change is committed must not keep the old state
+    AfterCompletion.run(committed -> resolved.invalidate());
+  }
+
+  private static class Resolved {
+
+    private final IdType myId;
+    private final AtomicInteger myInvalidations = new AtomicInteger();
+    private volatile State myState;
+
+    Resolved(IdType theId) {
+      myId = theId;
+    }
+
+    boolean matches(IIdType theId) {
+      return myId.getResourceType().equals(theId.getResourceType()) && myId.getIdPart().equals(theId.getIdPart());
+    }
+
+    void invalidate() {
+      myInvalidations.incrementAndGet();
+    }
+
+    Reference getReference(IFhirResourceDao<?> theDao) {
+      State state = myState;
+      if (state == null || state.myInvalidations != myInvalidations.get()) {
+        state = resolve(theDao);
+      }
+      return state.myExists ? new Reference(myId) : null;
+    }
+
+    private synchronized State resolve(IFhirResourceDao<?> theDao) {
+      // counted before reading, a change during the read makes the next call read again
+      int invalidations = myInvalidations.get();
+      State state = myState;
+      if (state != null && state.myInvalidations == invalidations) {
+        return state;
+      }
+      boolean exists;
+      try {
+        theDao.read(myId);
+        exists = true;
+      } catch (ResourceNotFoundException | ResourceGoneException e) {
+        ourLog.error("{} does not exist, AuditEvents are created without it", myId.getValue());
+        exists = false;
+      }
+      state = new State(invalidations, exists);
+      myState = state;
+      return state;
+    }
+  }
+
+  private static class State {
+
+    private final int myInvalidations;
+    private final boolean myExists;
+
+    State(int theInvalidations, boolean theExists) {
+      myInvalidations = theInvalidations;
+      myExists = theExists;
+    }
+  }
+}
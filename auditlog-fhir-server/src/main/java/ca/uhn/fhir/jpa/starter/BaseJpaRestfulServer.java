@@ -95,6 +95,7 @@ public class BaseJpaRestfulServer extends RestfulServer {
 
     registerProviders(resourceProviders.createProviders());
     registerProvider(appCtx.getBean("xesOperations", XESProvider.class));
+    registerProvider(appCtx.getBean("processMiningOperations", ProcessMiningProvider.class));
     registerProvider(appCtx.getBean("fhirToCDA", CDAProvider.class));
     registerProvider(systemProvider);
 
@@ -141,6 +142,22 @@ public class BaseJpaRestfulServer extends RestfulServer {
 
       registerInterceptor(consentInterceptor);
 
+      // Search parameters on the process mining extensions of the AuditEvents
+      if (fhirVersion == FhirVersionEnum.R4) {
+        AuditEventSearchParameters.register(appCtx.getBean(DaoRegistry.class), searchParamRegistry);
+        // the Device, PlanDefinition and encounters of DiagnosticReports used by the AuditEvents are cached until they change
+        IInterceptorService storageInterceptors = appCtx.getBean(IInterceptorService.class);
+        storageInterceptors.registerInterceptor(appCtx.getBean("auditReferenceResolver", AuditReferenceResolver.class));
+        storageInterceptors.registerInterceptor(appCtx.getBean("encounterReferenceCache", EncounterReferenceCache.class));
+        // AuditEvents created, updated or deleted by any request keep the stored event logs up to date
+        storageInterceptors.registerInterceptor(appCtx.getBean("eventLogStore", EventLogStore.class));
+        // changed PlanDefinitions are compiled again for the conformance checked while AuditEvents are created
+        storageInterceptors.registerInterceptor(appCtx.getBean("conformanceMonitor", ConformanceMonitor.class));
+        // compile the activity mapping and the audit policy now, a broken rule should stop the server and not the first request
+        ActivityMapping.getConfigured();
+        AuditPolicy.getConfigured();
+      }
+
     }
 
     /*
@@ -234,6 +251,7 @@ public class BaseJpaRestfulServer extends RestfulServer {
       config.addAllowedHeader(HttpHeaders.CONTENT_TYPE);
       config.addAllowedHeader(HttpHeaders.AUTHORIZATION);
       config.addAllowedHeader(HttpHeaders.CACHE_CONTROL);
+      config.addAllowedHeader(HttpHeaders.IF_NONE_MATCH);
       config.addAllowedHeader("x-fhir-starter");
       config.addAllowedHeader("X-Requested-With");
       config.addAllowedHeader("Prefer");
@@ -245,6 +263,10 @@ public class BaseJpaRestfulServer extends RestfulServer {
 
       config.addExposedHeader("Location");
       config.addExposedHeader("Content-Location");
+      config.addExposedHeader(XESProvider.CONTINUATION_TOKEN_HEADER);
+      config.addExposedHeader(HttpHeaders.ETAG);
+      config.addExposedHeader(XESProvider.PROGRESS_HEADER);
+      config.addExposedHeader(HttpHeaders.RETRY_AFTER);
       config.setAllowedMethods(
         Arrays.asList("GET", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "HEAD"));
       config.setAllowCredentials(HapiProperties.getCorsAllowedCredentials());
@@ -0,0 +1,74 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Writes an event log as flat CSV table (RFC 4180) with one row per event. The columns are
+ * <code>case_id, activity, lifecycle, timestamp, resource</code>, timestamps are ISO-8601 instants in UTC.
+ */
+public class CSVEventLogWriter {
+
+  private final Writer myWriter;
+
+  public CSVEventLogWriter(OutputStream theOutputStream) {
+    myWriter = new BufferedWriter(new OutputStreamWriter(theOutputStream, StandardCharsets.UTF_8));
+  }
+
+  public void writeHeader() throws IOException {
+    myWriter.write("case_id,activity,lifecycle,timestamp,resource\r\n");
+  }
+
+  /**
+   * Writes the events of all traces in the time window of the filter, trace by trace ordered by case id
+   */
+  public void writeTraces(EventLog theEventLog, EventLogFilter theFilter) throws IOException {
+    Trace.Events events = new Trace.Events();
+    for (Trace trace : theEventLog.getSortedTraces()) {
+      trace.copyEvents(theFilter, events);
+      for (int i = 0; i < events.size(); i++) {
+        writeRow(trace.getCaseId(), events, i);
+      }
+    }
+  }
+
+  public void flush() throws IOException {
+    myWriter.flush();
+  }
+
+  private void writeRow(String theCaseId, Trace.Events theEvents, int theIndex) throws IOException {
+    writeField(theCaseId);
+    myWriter.write(',');
+    writeField(theEvents.getActivity(theIndex));
+    myWriter.write(',');
+    writeField(theEvents.getTransition(theIndex));
+    myWriter.write(',');
+    myWriter.write(Instant.ofEpochMilli(theEvents.getTimestamp(theIndex)).toString());
+    myWriter.write(',');
+    writeField(theEvents.getResource(theIndex));
+    myWriter.write("\r\n");
+  }
+
+  private void writeField(String theValue) throws IOException {
+    if (theValue == null) {
+      return;
+    }
+    boolean quote = false;
+    for (int i = 0; i < theValue.length() && !quote; i++) {
+      char c = theValue.charAt(i);
+      quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+    }
+    if (!quote) {
+      myWriter.write(theValue);
+      return;
+    }
+    myWriter.write('"');
+    myWriter.write(theValue.replace("\"", "\"\""));
+    myWriter.write('"');
+  }
+}
@@ -0,0 +1,202 @@
+package ca.uhn.fhir.jpa.starter;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Conformance of an event log to a {@link PetriNet}: the fitness of every case as computed by {@link TokenReplay} and
+ * for every transition in how many cases it was executed although it was not enabled, skipped or repeated, and for
+ * every activity that is not part of the net in how many cases it occurred. Large logs are split into chunks of
+ * traces that are replayed in parallel and merged.
+ */
+public class ConformanceCheck {
+
+  private final String myName;
+  private final TokenReplay myReplay;
+  private final List<String> myCaseIds = new ArrayList<>();
+  private double[] myFitness = new double[16];
+  private int[] myMissing = new int[16];
+  private int[] myRemaining = new int[16];
+  private final long[] myNotEnabledCases;
+  private final long[] mySkippedCases;
+  private final long[] myRepeatedCases;
+  private final Map<String, Long> myUnmodelledCases = new HashMap<>();
+  private double myFitnessSum;
+  private long myFittingCount;
+  // reused for every trace added
+  private final Trace.Events myEvents = new Trace.Events();
+
+  public ConformanceCheck(String theName, TokenReplay theReplay) {
+    myName = theName;
+    myReplay = theReplay;
+    int transitions = theReplay.getNet().getTransitionCount();
+    myNotEnabledCases = new long[transitions];
+    mySkippedCases = new long[transitions];
+    myRepeatedCases = new long[transitions];
+  }
+
+  /**
+   * Replays all traces of the log, only the events in the time window of the filter are considered
+   */
+  public static ConformanceCheck of(EventLog theEventLog, EventLogFilter theFilter, TokenReplay theReplay) {
+    String name = theEventLog.getName();
+    return new ArrayList<>(theEventLog.getTraces()).parallelStream().collect(
+      () -> new ConformanceCheck(name, theReplay),
+      (check, trace) -> check.addTrace(trace, theFilter),
+      ConformanceCheck::merge);
+  }
+
+  /**
+   * Replays the events of the trace that are in the time window of the filter
+   */
+  public void addTrace(Trace theTrace, EventLogFilter theFilter) {
+    theTrace.copyEvents(theFilter, myEvents);
+    if (myEvents.size() == 0) {
+      return;
+    }
+    TokenReplay.CaseReplay replay = myReplay.start(theTrace.getCaseId());
+    for (int i = 0; i < myEvents.size(); i++) {
+      replay.fire(myEvents.getActivity(i));
+    }
+    add(replay);
+  }
+
+  /**
+   * Adds the result of a replayed case
+   */
+  public void add(TokenReplay.CaseReplay theCase) {
+    int index = myCaseIds.size();
+    if (index == myFitness.length) {
+      myFitness = Arrays.copyOf(myFitness, index * 2);
+      myMissing = Arrays.copyOf(myMissing, index * 2);
+      myRemaining = Arrays.copyOf(myRemaining, index * 2);
+    }
+    double fitness = theCase.getFitness();
+    myCaseIds.add(theCase.getCaseId());
+    myFitness[index] = fitness;
+    myMissing[index] = theCase.getMissing();
+    myRemaining[index] = theCase.getRemaining();
+    myFitnessSum += fitness;
+    if (myMissing[index] == 0 && myRemaining[index] == 0 && theCase.getUnmodelled().isEmpty()) {
+      myFittingCount++;
+    }
+
+    for (int transition = 0; transition < myNotEnabledCases.length; transition++) {
+      if (theCase.getMissingFirings(transition) > 0) {
+        myNotEnabledCases[transition]++;
+      }
+      if (theCase.getFirings(transition) == 0) {
+        mySkippedCases[transition]++;
+      } else if (theCase.getFirings(transition) > 1) {
+        myRepeatedCases[transition]++;
+      }
+    }
+    for (String activity : theCase.getUnmodelled().keySet()) {
+      myUnmodelledCases.merge(activity, 1L, Long::sum);
+    }
+  }
+
+  /**
+   * Adds all cases of the other instance to this one, both have to replay on the same net
+   */
+  public void merge(ConformanceCheck theOther) {
+    int size = myCaseIds.size();
+    int otherSize = theOther.myCaseIds.size();
+    if (size + otherSize > myFitness.length) {
+      int capacity = Math.max(size + otherSize, myFitness.length * 2);
+      myFitness = Arrays.copyOf(myFitness, capacity);
+      myMissing = Arrays.copyOf(myMissing, capacity);
+      myRemaining = Arrays.copyOf(myRemaining, capacity);
+    }
+    myCaseIds.addAll(theOther.myCaseIds);
+    System.arraycopy(theOther.myFitness, 0, myFitness, size, otherSize);
+    System.arraycopy(theOther.myMissing, 0, myMissing, size, otherSize);
+    System.arraycopy(theOther.myRemaining, 0, myRemaining, size, otherSize);
+    for (int transition = 0; transition < myNotEnabledCases.length; transition++) {
+      myNotEnabledCases[transition] += theOther.myNotEnabledCases[transition];
+      mySkippedCases[transition] += theOther.mySkippedCases[transition];
+      myRepeatedCases[transition] += theOther.myRepeatedCases[transition];
+    }
+    theOther.myUnmodelledCases.forEach((activity, count) -> myUnmodelledCases.merge(activity, count, Long::sum));
+    myFitnessSum += theOther.myFitnessSum;
+    myFittingCount += theOther.myFittingCount;
+  }
+
+  public long getTraceCount() {
+    return myCaseIds.size();
+  }
+
+  /**
+   * @return mean fitness of all cases, 1 if there are none
+   */
+  public double getFitness() {
+    return myCaseIds.isEmpty() ? 1 : myFitnessSum / myCaseIds.size();
+  }
+
+  /**
+   * @return number of cases that follow the net without any deviation
+   */
+  public long getFittingCount() {
+    return myFittingCount;
+  }
+
+  /**
+   * Writes the result as JSON, the cases ordered by their id
+   */
+  public void writeJson(Writer theWriter) throws IOException {
+    JsonWriter json = new JsonWriter(theWriter);
+    json.setIndent("  ");
+    json.beginObject();
+    json.name("name").value(myName);
+    json.name("traces").value(myCaseIds.size());
+    json.name("fittingTraces").value(myFittingCount);
+    json.name("fitness").value(getFitness());
+
+    PetriNet net = myReplay.getNet();
+    json.name("deviations").beginArray();
+    for (int transition = 0; transition < myNotEnabledCases.length; transition++) {
+      if (myNotEnabledCases[transition] == 0 && mySkippedCases[transition] == 0 && myRepeatedCases[transition] == 0) {
+        continue;
+      }
+      json.beginObject();
+      json.name("activity").value(net.getTransition(transition));
+      json.name("notEnabled").value(myNotEnabledCases[transition]);
+      json.name("skipped").value(mySkippedCases[transition]);
+      json.name("repeated").value(myRepeatedCases[transition]);
+      json.endObject();
+    }
+    for (Map.Entry<String, Long> unmodelled : new TreeMap<>(myUnmodelledCases).entrySet()) {
+      json.beginObject();
+      json.name("activity").value(unmodelled.getKey());
+      json.name("unmodelled").value(unmodelled.getValue());
+      json.endObject();
+    }
+    json.endArray();
+
+    Integer[] order = new Integer[myCaseIds.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> myCaseIds.get(a).compareTo(myCaseIds.get(b)));
+    json.name("cases").beginArray();
+    for (int i : order) {
+      json.beginObject();
+      json.name("case").value(myCaseIds.get(i));
+      json.name("fitness").value(myFitness[i]);
+      json.name("missing").value(myMissing[i]);
+      json.name("remaining").value(myRemaining[i]);
+      json.endObject();
+    }
+    json.endArray();
+    json.endObject();
+    json.flush();
+  }
+}
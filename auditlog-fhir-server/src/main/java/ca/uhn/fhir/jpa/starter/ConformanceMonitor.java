@@ -0,0 +1,274 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Checks the conformance of the cases while their AuditEvents are created. Every event is replayed on the compiled
+ * PlanDefinition as soon as {@link MyConsentService} creates it, a case is flagged the first time one of its
+ * activities is executed although it was not enabled or is not part of the PlanDefinition at all.
+ * <p>
+ * The PlanDefinition is read and compiled with the first event that refers to it. If that fails, it is tried again
+ * with a later event, waiting twice as long after every failure up to 10 minutes. Creating, updating or deleting the
+ * PlanDefinition drops the compiled one once the change is committed, the following events are replayed on the new
+ * version.
+ * <p>
+ * The replay state of every case is kept in memory, a few ints per place and transition of the PlanDefinition. Per
+ * PlanDefinition at most <code>xes.conformance.streaming.max_cases</code> cases and as many flagged cases are kept,
+ * the ones that got their last event longest ago are dropped first. A dropped case that gets another event is
+ * replayed from that event on, it is only flagged for activities that are not part of the PlanDefinition as the
+ * tokens of its earlier events are missing. The ids of as many dropped cases are remembered to tell them from new
+ * ones. Disabled unless <code>xes.conformance.streaming.enabled</code> is set.
+ * <p>
+ * Registered as storage interceptor, see {@link BaseJpaRestfulServer}.
+ */
+public class ConformanceMonitor {
+
+  @Autowired
+  IFhirResourceDao<PlanDefinition> myPlanDefinitionDao;
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ConformanceMonitor.class);
+
+  private static final long MAX_RETRY_DELAY_MILLIS = 10 * 60 * 1000;
+
+  /**
+   * Wait before the first retry of a PlanDefinition that could not be compiled
+   */
+  long myRetryDelayMillis = 1000;
+
+  private final boolean myEnabled;
+
+  private final Map<String, Monitor> myMonitors = new ConcurrentHashMap<>();
+
+  // counts the committed changes of PlanDefinitions, a monitor compiled before one is not kept
+  private final AtomicInteger myInvalidations = new AtomicInteger();
+
+  private final int myMaximumCases;
+
+  /**
+   * @param theMaximumCases maximum number of cases per PlanDefinition whose replay state is kept
+   */
+  public ConformanceMonitor(int theMaximumCases) {
+    this(HapiProperties.getXesConformanceStreamingEnabled(), theMaximumCases);
+  }
+
+  ConformanceMonitor(boolean theEnabled, int theMaximumCases) {
+    myEnabled = theEnabled;
+    myMaximumCases = theMaximumCases;
+  }
+
+  public boolean isEnabled() {
+    return myEnabled;
+  }
+
+  /**
+   * Replays a newly created AuditEvent on the PlanDefinition it is based on
+   */
+  public void append(AuditEvent theAuditEvent) {
+    if (!myEnabled) {
+      return;
+    }
+    String planDefinitionId = AuditEventMapper.getPlanDefinitionId(theAuditEvent);
+    String caseId = AuditEventMapper.getCaseId(theAuditEvent);
+    if (planDefinitionId == null || caseId == null) {
+      return;
+    }
+    XESEvent event = AuditEventMapper.toXESEvent(theAuditEvent);
+    if (event == null) {
+      return;
+    }
+    Monitor monitor = getMonitor(planDefinitionId);
+    if (monitor.myReplay == null) {
+      return;
+    }
+    MonitoredCase monitored = monitor.getCase(caseId);
+    TokenReplay.CaseReplay replay = monitored.myReplay;
+    synchronized (replay) {
+      if (!replay.fire(event.getActivity())
+        && (!monitored.myRestarted || replay.getUnmodelled().containsKey(event.getActivity()))
+        && monitor.flag(caseId, replay)) {
+        ourLog.warn("Case {} of PlanDefinition/{} does not conform, '{}' was not expected", caseId, planDefinitionId, event.getActivity());
+      }
+    }
+  }
+
+  /**
+   * Replaces the compiled PlanDefinition if it changed since it was compiled. The replay state of its cases is
+   * dropped in that case, only events created afterwards are replayed on the new version.
+   */
+  public void update(PlanDefinition thePlanDefinition, TokenReplay theReplay) {
+    if (!myEnabled) {
+      return;
+    }
+    String version = thePlanDefinition.getIdElement().getVersionIdPart();
+    myMonitors.compute(thePlanDefinition.getIdElement().getIdPart(), (id, monitor) ->
+      monitor != null && monitor.myReplay != null && version != null && version.equals(monitor.myVersion) ? monitor : new Monitor(version, theReplay, myMaximumCases));
+  }
+
+  /**
+   * @return the cases flagged so far, with their fitness as if they ended now
+   */
+  public ConformanceCheck getFlaggedCases(String thePlanDefinitionId) {
+    Monitor monitor = myMonitors.get(thePlanDefinitionId);
+    if (monitor == null || monitor.myReplay == null) {
+      return null;
+    }
+    ConformanceCheck check = new ConformanceCheck("PlanDefinition/" + thePlanDefinitionId, monitor.myReplay);
+    List<TokenReplay.CaseReplay> flagged;
+    synchronized (monitor) {
+      flagged = new ArrayList<>(monitor.myFlagged.values());
+    }
+    for (TokenReplay.CaseReplay replay : flagged) {
+      synchronized (replay) {
+        check.add(replay);
+      }
+    }
+    return check;
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+  public void resourceCreated(IBaseResource theResource) {
+    invalidate(theResource);
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+  public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+    invalidate(theNewResource);
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+  public void resourceDeleted(IBaseResource theResource) {
+    invalidate(theResource);
+  }
+
+  private void invalidate(IBaseResource theResource) {
+    if (!myEnabled || !(theResource instanceof PlanDefinition)) {
+      return;
+    }
+    String planDefinitionId = theResource.getIdElement().getIdPart();
+    AfterCompletion.run(committed -> {
+      if (committed) {
+        myInvalidations.incrementAndGet();
+        myMonitors.remove(planDefinitionId);
+      }
+    });
+  }
+
+  /**
+   * @return the monitor of the PlanDefinition, read and compiled outside of the map if there is none yet or the last
+   * attempt failed long enough ago
+   */
+  private Monitor getMonitor(String thePlanDefinitionId) {
+    Monitor monitor = myMonitors.get(thePlanDefinitionId);
+    if (monitor != null && (monitor.myReplay != null || System.currentTimeMillis() < monitor.myRetryAt)) {
+      return monitor;
+    }
+    // counted before reading, a PlanDefinition changed during the read is read again with the next event
+    int invalidations = myInvalidations.get();
+    Monitor created = createMonitor(thePlanDefinitionId, monitor != null ? monitor.myFailures : 0);
+    Monitor current = myMonitors.compute(thePlanDefinitionId, (id, existing) ->
+      existing == monitor && myInvalidations.get() == invalidations ? created : existing);
+    return current != null ? current : created;
+  }
+
+  private Monitor createMonitor(String thePlanDefinitionId, int theFailures) {
+    try {
+      PlanDefinition planDefinition = myPlanDefinitionDao.read(new IdType("PlanDefinition", thePlanDefinitionId));
+      return new Monitor(planDefinition.getIdElement().getVersionIdPart(), new TokenReplay(PlanDefinitionCompiler.compile(planDefinition)), myMaximumCases);
+    } catch (RuntimeException e) {
+      long delay = Math.min(MAX_RETRY_DELAY_MILLIS, myRetryDelayMillis << Math.min(theFailures, 20));
+      ourLog.warn("Conformance of PlanDefinition/{} is not monitored, trying again in {} ms: {}", thePlanDefinitionId, delay, e.getMessage());
+      return new Monitor(theFailures + 1, System.currentTimeMillis() + delay);
+    }
+  }
+
+  private static class Monitor {
+
+    private final String myVersion;
+    private final TokenReplay myReplay;
+    private final int myFailures;
+    private final long myRetryAt;
+    // guarded by the monitor, ordered by the last event of the case
+    private final Map<String, MonitoredCase> myCases;
+    private final Map<String, TokenReplay.CaseReplay> myFlagged;
+    private final Map<String, Boolean> myEvicted;
+
+    Monitor(String theVersion, TokenReplay theReplay, int theMaximumCases) {
+      this(theVersion, theReplay, theMaximumCases, 0, 0);
+    }
+
+    /**
+     * Monitor of a PlanDefinition that could not be compiled
+     */
+    Monitor(int theFailures, long theRetryAt) {
+      this(null, null, 0, theFailures, theRetryAt);
+    }
+
+    private Monitor(String theVersion, TokenReplay theReplay, int theMaximumCases, int theFailures, long theRetryAt) {
+      myVersion = theVersion;
+      myReplay = theReplay;
+      myFailures = theFailures;
+      myRetryAt = theRetryAt;
+      myEvicted = newLeastRecentlyUsedMap(theMaximumCases, theCaseId -> {
+      });
+      myCases = newLeastRecentlyUsedMap(theMaximumCases, theCaseId -> myEvicted.put(theCaseId, Boolean.TRUE));
+      myFlagged = newLeastRecentlyUsedMap(theMaximumCases, theCaseId -> {
+      });
+    }
+
+    synchronized MonitoredCase getCase(String theCaseId) {
+      MonitoredCase monitored = myCases.get(theCaseId);
+      if (monitored == null) {
+        monitored = new MonitoredCase(myReplay.start(theCaseId), myEvicted.remove(theCaseId) != null);
+        myCases.put(theCaseId, monitored);
+      }
+      return monitored;
+    }
+
+    /**
+     * @return true if the case was not flagged yet
+     */
+    synchronized boolean flag(String theCaseId, TokenReplay.CaseReplay theReplay) {
+      return myFlagged.putIfAbsent(theCaseId, theReplay) == null;
+    }
+
+    private static <V> Map<String, V> newLeastRecentlyUsedMap(int theMaximumSize, Consumer<String> theEvicted) {
+      return new LinkedHashMap<String, V>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> theEldest) {
+          if (size() <= theMaximumSize) {
+            return false;
+          }
+          theEvicted.accept(theEldest.getKey());
+          return true;
+        }
+      };
+    }
+  }
+
+  private static class MonitoredCase {
+
+    private final TokenReplay.CaseReplay myReplay;
+    // replayed from the middle of the case, after its earlier events were dropped
+    private final boolean myRestarted;
+
+    MonitoredCase(TokenReplay.CaseReplay theReplay, boolean theRestarted) {
+      myReplay = theReplay;
+      myRestarted = theRestarted;
+    }
+  }
+}
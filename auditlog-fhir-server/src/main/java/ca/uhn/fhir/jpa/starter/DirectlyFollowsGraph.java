@@ -0,0 +1,364 @@
+package ca.uhn.fhir.jpa.starter;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Directly-follows graph of an event log: how often every activity occurred, how often a case started or ended with
+ * it and how often and after how long one activity was directly followed by another within a case.
+ * <p>
+ * The graph is built in a single pass over the traces. Activities are identified by the dense ids of the
+ * {@link ActivityMapping}, all counters are primitive arrays indexed by these ids, edges by
+ * <code>from * capacity + to</code>. Large logs are split into chunks of traces whose graphs are built in parallel
+ * and merged.
+ */
+public class DirectlyFollowsGraph {
+
+  private final String myName;
+  private final List<String> myActivities = new ArrayList<>();
+  private final Map<String, Integer> myActivityIds = new HashMap<>();
+  private int myCapacity;
+  private long[] myActivityCounts;
+  private long[] myStartCounts;
+  private long[] myEndCounts;
+  private long[] myEdgeCounts;
+  private DurationHistogram[] myEdgeDurations;
+  private long myTraceCount;
+  private long myEventCount;
+  // reused for every trace added
+  private final Trace.Events myEvents = new Trace.Events();
+
+  /**
+   * @param theName       name of the graph, e.g. the name of the log
+   * @param theActivities activities known up front, they keep their index as id
+   */
+  public DirectlyFollowsGraph(String theName, List<String> theActivities) {
+    myName = theName;
+    myCapacity = Math.max(8, theActivities.size());
+    myActivityCounts = new long[myCapacity];
+    myStartCounts = new long[myCapacity];
+    myEndCounts = new long[myCapacity];
+    myEdgeCounts = new long[myCapacity * myCapacity];
+    myEdgeDurations = new DurationHistogram[myCapacity * myCapacity];
+    for (String activity : theActivities) {
+      getActivityId(activity);
+    }
+  }
+
+  /**
+   * Builds the graph of all traces in the log, only the events in the time window of the filter are considered
+   */
+  public static DirectlyFollowsGraph of(EventLog theEventLog, EventLogFilter theFilter) {
+    String name = theEventLog.getName();
+    List<String> activities = ActivityMapping.getConfigured().getActivities();
+    return new ArrayList<>(theEventLog.getTraces()).parallelStream().collect(
+      () -> new DirectlyFollowsGraph(name, activities),
+      (graph, trace) -> graph.addTrace(trace, theFilter),
+      DirectlyFollowsGraph::merge);
+  }
+
+  /**
+   * Adds the events of the trace that are in the time window of the filter
+   */
+  public void addTrace(Trace theTrace, EventLogFilter theFilter) {
+    theTrace.copyEvents(theFilter, myEvents);
+    addTrace(myEvents);
+  }
+
+  /**
+   * Adds the events of one case, they are ordered by their timestamp
+   */
+  public void addTrace(Trace.Events theEvents) {
+    if (theEvents.size() == 0) {
+      return;
+    }
+
+    myTraceCount++;
+    myEventCount += theEvents.size();
+    int previous = -1;
+    long previousTimestamp = 0;
+    for (int i = 0; i < theEvents.size(); i++) {
+      int activity = getActivityId(theEvents.getActivity(i));
+      long timestamp = theEvents.getTimestamp(i);
+      myActivityCounts[activity]++;
+      if (previous < 0) {
+        myStartCounts[activity]++;
+      } else {
+        int edge = previous * myCapacity + activity;
+        myEdgeCounts[edge]++;
+        DurationHistogram durations = myEdgeDurations[edge];
+        if (durations == null) {
+          durations = myEdgeDurations[edge] = new DurationHistogram();
+        }
+        durations.add(timestamp - previousTimestamp);
+      }
+      previous = activity;
+      previousTimestamp = timestamp;
+    }
+    myEndCounts[previous]++;
+  }
+
+  /**
+   * Appends an event to the end of a trace that is already part of the graph
+   *
+   * @param thePrevious latest event of the trace so far, null if the event starts a new trace
+   * @param theEvent    event that happened at the same time or after the previous one
+   */
+  public void append(XESEvent thePrevious, XESEvent theEvent) {
+    int activity = getActivityId(theEvent.getActivity());
+    myActivityCounts[activity]++;
+    myEndCounts[activity]++;
+    myEventCount++;
+    if (thePrevious == null) {
+      myTraceCount++;
+      myStartCounts[activity]++;
+      return;
+    }
+    int previous = getActivityId(thePrevious.getActivity());
+    // the trace ended with the previous activity so far
+    myEndCounts[previous]--;
+    int edge = previous * myCapacity + activity;
+    myEdgeCounts[edge]++;
+    if (myEdgeDurations[edge] == null) {
+      myEdgeDurations[edge] = new DurationHistogram();
+    }
+    myEdgeDurations[edge].add(theEvent.getTimestamp().getTime() - thePrevious.getTimestamp().getTime());
+  }
+
+  /**
+   * Adds all counts of the other graph to this one
+   */
+  public void merge(DirectlyFollowsGraph theOther) {
+    int[] ids = new int[theOther.myActivities.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = getActivityId(theOther.myActivities.get(i));
+    }
+    for (int from = 0; from < ids.length; from++) {
+      myActivityCounts[ids[from]] += theOther.myActivityCounts[from];
+      myStartCounts[ids[from]] += theOther.myStartCounts[from];
+      myEndCounts[ids[from]] += theOther.myEndCounts[from];
+      for (int to = 0; to < ids.length; to++) {
+        int otherEdge = from * theOther.myCapacity + to;
+        if (theOther.myEdgeCounts[otherEdge] == 0) {
+          continue;
+        }
+        int edge = ids[from] * myCapacity + ids[to];
+        myEdgeCounts[edge] += theOther.myEdgeCounts[otherEdge];
+        if (myEdgeDurations[edge] == null) {
+          myEdgeDurations[edge] = new DurationHistogram();
+        }
+        myEdgeDurations[edge].merge(theOther.myEdgeDurations[otherEdge]);
+      }
+    }
+    myTraceCount += theOther.myTraceCount;
+    myEventCount += theOther.myEventCount;
+  }
+
+  /**
+   * @return independent copy of the graph
+   */
+  public DirectlyFollowsGraph copy() {
+    DirectlyFollowsGraph copy = new DirectlyFollowsGraph(myName, myActivities);
+    copy.merge(this);
+    return copy;
+  }
+
+  static void sortByTimestamp(List<XESEvent> theEvents) {
+    for (int i = 1; i < theEvents.size(); i++) {
+      if (theEvents.get(i).getTimestamp().before(theEvents.get(i - 1).getTimestamp())) {
+        // stable, events at the same time keep the order they were recorded in
+        theEvents.sort((a, b) -> a.getTimestamp().compareTo(b.getTimestamp()));
+        return;
+      }
+    }
+  }
+
+  private int getActivityId(String theActivity) {
+    Integer id = myActivityIds.get(theActivity);
+    if (id != null) {
+      return id;
+    }
+    // activities that are no longer part of the mapping but still in the log
+    int newId = myActivities.size();
+    if (newId == myCapacity) {
+      grow();
+    }
+    myActivities.add(theActivity);
+    myActivityIds.put(theActivity, newId);
+    return newId;
+  }
+
+  private void grow() {
+    int capacity = myCapacity * 2;
+    long[] edgeCounts = new long[capacity * capacity];
+    DurationHistogram[] edgeDurations = new DurationHistogram[capacity * capacity];
+    for (int from = 0; from < myCapacity; from++) {
+      System.arraycopy(myEdgeCounts, from * myCapacity, edgeCounts, from * capacity, myCapacity);
+      System.arraycopy(myEdgeDurations, from * myCapacity, edgeDurations, from * capacity, myCapacity);
+    }
+    myActivityCounts = Arrays.copyOf(myActivityCounts, capacity);
+    myStartCounts = Arrays.copyOf(myStartCounts, capacity);
+    myEndCounts = Arrays.copyOf(myEndCounts, capacity);
+    myEdgeCounts = edgeCounts;
+    myEdgeDurations = edgeDurations;
+    myCapacity = capacity;
+  }
+
+  public String getName() {
+    return myName;
+  }
+
+  public long getTraceCount() {
+    return myTraceCount;
+  }
+
+  public long getEventCount() {
+    return myEventCount;
+  }
+
+  /**
+   * @return all activities, indexed by their id. Activities that never occurred are included with a count of 0.
+   */
+  public List<String> getActivities() {
+    return myActivities;
+  }
+
+  public long getActivityCount(int theActivity) {
+    return myActivityCounts[theActivity];
+  }
+
+  public long getStartCount(int theActivity) {
+    return myStartCounts[theActivity];
+  }
+
+  public long getEndCount(int theActivity) {
+    return myEndCounts[theActivity];
+  }
+
+  /**
+   * @return how often the activity <code>theFrom</code> was directly followed by <code>theTo</code>
+   */
+  public long getEdgeCount(int theFrom, int theTo) {
+    return myEdgeCounts[theFrom * myCapacity + theTo];
+  }
+
+  /**
+   * @return durations between the two activities or null if the edge does not exist
+   */
+  public DurationHistogram getEdgeDurations(int theFrom, int theTo) {
+    return myEdgeDurations[theFrom * myCapacity + theTo];
+  }
+
+  /**
+   * Writes the graph as JSON. Only activities and edges that occurred are written, durations are in milliseconds.
+   */
+  public void writeJson(Writer theWriter) throws IOException {
+    JsonWriter json = new JsonWriter(theWriter);
+    json.setIndent("  ");
+    json.beginObject();
+    json.name("name").value(myName);
+    json.name("traces").value(myTraceCount);
+    json.name("events").value(myEventCount);
+
+    json.name("activities").beginArray();
+    for (int activity = 0; activity < myActivities.size(); activity++) {
+      if (myActivityCounts[activity] == 0) {
+        continue;
+      }
+      json.beginObject();
+      json.name("name").value(myActivities.get(activity));
+      json.name("count").value(myActivityCounts[activity]);
+      json.name("start").value(myStartCounts[activity]);
+      json.name("end").value(myEndCounts[activity]);
+      json.endObject();
+    }
+    json.endArray();
+
+    json.name("edges").beginArray();
+    for (int from = 0; from < myActivities.size(); from++) {
+      for (int to = 0; to < myActivities.size(); to++) {
+        long count = getEdgeCount(from, to);
+        if (count == 0) {
+          continue;
+        }
+        json.beginObject();
+        json.name("from").value(myActivities.get(from));
+        json.name("to").value(myActivities.get(to));
+        json.name("count").value(count);
+        json.name("duration");
+        getEdgeDurations(from, to).writeJson(json);
+        json.endObject();
+      }
+    }
+    json.endArray();
+    json.endObject();
+    json.flush();
+  }
+
+  /**
+   * Writes the graph in the Graphviz dot language. Activities are labelled with their frequency, edges with their
+   * frequency and mean duration, start and end of the cases are drawn as separate nodes.
+   */
+  public void writeDot(Writer theWriter) throws IOException {
+    theWriter.write("digraph " + quote(myName) + " {\n");
+    theWriter.write("  rankdir=LR;\n");
+    theWriter.write("  node [shape=box, style=rounded];\n");
+    theWriter.write("  start [shape=circle, label=\"\", style=filled, fillcolor=green];\n");
+    theWriter.write("  end [shape=doublecircle, label=\"\", style=filled, fillcolor=red];\n");
+    for (int activity = 0; activity < myActivities.size(); activity++) {
+      if (myActivityCounts[activity] == 0) {
+        continue;
+      }
+      theWriter.write("  a" + activity + " [label=" + quote(myActivities.get(activity) + "\n" + myActivityCounts[activity]) + "];\n");
+      if (myStartCounts[activity] > 0) {
+        theWriter.write("  start -> a" + activity + " [label=\"" + myStartCounts[activity] + "\"];\n");
+      }
+      if (myEndCounts[activity] > 0) {
+        theWriter.write("  a" + activity + " -> end [label=\"" + myEndCounts[activity] + "\"];\n");
+      }
+    }
+    for (int from = 0; from < myActivities.size(); from++) {
+      for (int to = 0; to < myActivities.size(); to++) {
+        long count = getEdgeCount(from, to);
+        if (count > 0) {
+          String label = count + " (" + formatDuration(Math.round(getEdgeDurations(from, to).getMean())) + ")";
+          theWriter.write("  a" + from + " -> a" + to + " [label=" + quote(label) + "];\n");
+        }
+      }
+    }
+    theWriter.write("}\n");
+    theWriter.flush();
+  }
+
+  private static String quote(String theValue) {
+    return "\"" + theValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+  }
+
+  /**
+   * @return the duration in the largest unit it has at least one of, e.g. <code>3.5 h</code>
+   */
+  static String formatDuration(long theMillis) {
+    if (theMillis < 1000) {
+      return theMillis + " ms";
+    }
+    double seconds = theMillis / 1000.0;
+    if (seconds < 60) {
+      return String.format(Locale.ROOT, "%.1f s", seconds);
+    }
+    if (seconds < 3600) {
+      return String.format(Locale.ROOT, "%.1f min", seconds / 60);
+    }
+    if (seconds < 86400) {
+      return String.format(Locale.ROOT, "%.1f h", seconds / 3600);
+    }
+    return String.format(Locale.ROOT, "%.1f d", seconds / 86400);
+  }
+}
@@ -0,0 +1,122 @@
+package ca.uhn.fhir.jpa.starter;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Histogram of durations in milliseconds with logarithmic buckets. Durations below 16 ms are counted exactly, every
+ * power of two above is split into eight buckets, so percentiles are accurate to 12.5% from milliseconds to years
+ * with fewer than 500 counters. Mean, minimum and maximum are exact. Histograms of the same kind can be merged,
+ * e.g. after they were filled concurrently.
+ */
+public class DurationHistogram {
+
+  private static final int EXACT = 16;
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = EXACT + (63 - 4) * SUB_BUCKETS;
+
+  private final long[] myCounts = new long[BUCKETS];
+  private long myCount;
+  private long mySum;
+  private long myMin = Long.MAX_VALUE;
+  private long myMax = Long.MIN_VALUE;
+
+  /**
+   * @param theMillis duration, negative durations are counted as zero
+   */
+  public void add(long theMillis) {
+    long millis = Math.max(0, theMillis);
+    myCounts[bucket(millis)]++;
+    myCount++;
+    mySum += millis;
+    myMin = Math.min(myMin, millis);
+    myMax = Math.max(myMax, millis);
+  }
+
+  public void merge(DurationHistogram theOther) {
+    for (int i = 0; i < BUCKETS; i++) {
+      myCounts[i] += theOther.myCounts[i];
+    }
+    myCount += theOther.myCount;
+    mySum += theOther.mySum;
+    myMin = Math.min(myMin, theOther.myMin);
+    myMax = Math.max(myMax, theOther.myMax);
+  }
+
+  public long getCount() {
+    return myCount;
+  }
+
+  /**
+   * @return mean duration, 0 if nothing was added
+   */
+  public double getMean() {
+    return myCount > 0 ? (double) mySum / myCount : 0;
+  }
+
+  public long getMin() {
+    return myCount > 0 ? myMin : 0;
+  }
+
+  public long getMax() {
+    return myCount > 0 ? myMax : 0;
+  }
+
+  /**
+   * @param thePercentile percentile between 0 and 100
+   * @return estimated duration at the percentile, 0 if nothing was added
+   */
+  public long getPercentile(double thePercentile) {
+    if (myCount == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(thePercentile / 100 * myCount));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += myCounts[i];
+      if (seen >= rank) {
+        // middle of the bucket, within the range actually seen
+        long value = lowerBound(i) + (lowerBound(i + 1) - lowerBound(i)) / 2;
+        return Math.max(myMin, Math.min(myMax, value));
+      }
+    }
+    return myMax;
+  }
+
+  /**
+   * Writes mean, minimum, 50th/90th/99th percentile and maximum as JSON object
+   */
+  public void writeJson(JsonWriter theJson) throws IOException {
+    theJson.beginObject();
+    theJson.name("mean").value(Math.round(getMean()));
+    theJson.name("min").value(getMin());
+    theJson.name("p50").value(getPercentile(50));
+    theJson.name("p90").value(getPercentile(90));
+    theJson.name("p99").value(getPercentile(99));
+    theJson.name("max").value(getMax());
+    theJson.endObject();
+  }
+
+  private static int bucket(long theMillis) {
+    if (theMillis < EXACT) {
+      return (int) theMillis;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(theMillis);
+    int subBucket = (int) (theMillis >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return EXACT + (exponent - 4) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long lowerBound(int theBucket) {
+    if (theBucket < EXACT) {
+      return theBucket;
+    }
+    if (theBucket >= BUCKETS) {
+      return Long.MAX_VALUE;
+    }
+    int exponent = (theBucket - EXACT) / SUB_BUCKETS + 4;
+    int subBucket = (theBucket - EXACT) % SUB_BUCKETS;
+    return (1L << exponent) + ((long) subBucket << (exponent - SUB_BUCKET_BITS));
+  }
+}
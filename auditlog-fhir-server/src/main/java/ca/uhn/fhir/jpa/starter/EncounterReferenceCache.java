@@ -0,0 +1,128 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Reference;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded cache of the encounter references of DiagnosticReports, so auditing an operation on a DiagnosticReport
+ * does not read and parse the whole resource again. DiagnosticReports are cached when they are read on a miss and
+ * whenever they are created or updated, deleted ones are removed. A read that overlaps with a change is not cached.
+ * When the cache grows beyond its maximum number of entries the least recently used ones are evicted.
+ * <p>
+ * Registered as storage interceptor, see {@link BaseJpaRestfulServer}.
+ */
+public class EncounterReferenceCache {
+
+  @Autowired
+  IFhirResourceDao<DiagnosticReport> myDiagnosticReportDao;
+
+  private final int myMaximumEntries;
+  private final LinkedHashMap<String, Reference> myEntries = new LinkedHashMap<String, Reference>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Reference> theEldest) {
+      return size() > myMaximumEntries;
+    }
+  };
+
+  /**
+   * Counts the changes of cached entries, a read that overlaps with one is not cached
+   */
+  private int myInvalidations;
+
+  /**
+   * @param theMaximumEntries maximum number of cached DiagnosticReports
+   */
+  public EncounterReferenceCache(int theMaximumEntries) {
+    myMaximumEntries = theMaximumEntries;
+  }
+
+  /**
+   * @return the encounter of the DiagnosticReport, read from the database if it is not cached or a specific version
+   * is requested
+   */
+  public Reference getEncounter(IIdType theDiagnosticReportId) {
+    if (theDiagnosticReportId.hasVersionIdPart()) {
+      return myDiagnosticReportDao.read(theDiagnosticReportId).getEncounter();
+    }
+    String id = theDiagnosticReportId.getIdPart();
+    Reference encounter;
+    int invalidations;
+    synchronized (this) {
+      encounter = myEntries.get(id);
+      invalidations = myInvalidations;
+    }
+    if (encounter == null) {
+      encounter = myDiagnosticReportDao.read(theDiagnosticReportId).getEncounter().copy();
+      synchronized (this) {
+        // a DiagnosticReport stored while it was read is more recent, one deleted while it was read must not be put
+        // back
+        Reference stored = myEntries.get(id);
+        if (stored != null) {
+          encounter = stored;
+        } else if (myInvalidations == invalidations) {
+          myEntries.put(id, encounter);
+        }
+      }
+    }
+    return encounter.copy();
+  }
+
+  public synchronized int size() {
+    return myEntries.size();
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+  public void resourceCreated(IBaseResource theResource) {
+    stored(theResource);
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+  public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+    stored(theNewResource);
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+  public void resourceDeleted(IBaseResource theResource) {
+    if (theResource instanceof DiagnosticReport) {
+      String id = theResource.getIdElement().getIdPart();
+      remove(id);
+      AfterCompletion.run(committed -> remove(id));
+    }
+  }
+
+  private void stored(IBaseResource theResource) {
+    if (!(theResource instanceof DiagnosticReport)) {
+      return;
+    }
+    String id = theResource.getIdElement().getIdPart();
+    Reference encounter = ((DiagnosticReport) theResource).getEncounter().copy();
+    // until the transaction is committed the previous version is the current one
+    remove(id);
+    AfterCompletion.run(committed -> {
+      if (committed) {
+        put(id, encounter);
+      } else {
+        remove(id);
+      }
+    });
+  }
+
+  private synchronized void put(String theId, Reference theEncounter) {
+    myInvalidations++;
+    myEntries.put(theId, theEncounter);
+  }
+
+  private synchronized void remove(String theId) {
+    myInvalidations++;
+    myEntries.remove(theId);
+  }
+}
@@ -0,0 +1,125 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mapped event log of one PlanDefinition, traces are keyed by their case id (encounter)
+ */
+public class EventLog {
+
+  private static final AtomicLong ourInstances = new AtomicLong();
+
+  /**
+   * Tells apart the logs of a PlanDefinition that was dropped and loaded again
+   */
+  private final long myInstance = ourInstances.incrementAndGet();
+
+  private final String myPlanDefinitionId;
+  private final Map<String, Trace> myTraces = new ConcurrentHashMap<>();
+
+  /**
+   * Values of the events of all traces, dropped together with the log
+   */
+  private final Trace.Values myValues = new Trace.Values();
+
+  /**
+   * Directly-follows graph of the complete log, built on first use and kept up to date while events are added
+   */
+  private DirectlyFollowsGraph myDirectlyFollowsGraph;
+
+  /**
+   * Number of events added, tells whether the log changed while the graph was built
+   */
+  private int myVersion;
+
+  public EventLog(String thePlanDefinitionId) {
+    myPlanDefinitionId = thePlanDefinitionId;
+  }
+
+  public String getPlanDefinitionId() {
+    return myPlanDefinitionId;
+  }
+
+  /**
+   * @return name of the log as used in the XES
+   */
+  public String getName() {
+    return "PlanDefinition/" + myPlanDefinitionId;
+  }
+
+  /**
+   * Adds the event to the trace of the case. Events are added one at a time, so the directly-follows graph can be
+   * updated in step with the traces.
+   *
+   * @param theStored time the AuditEvent was stored, null if it was just stored
+   * @return false if the trace already contains the event
+   */
+  public synchronized boolean add(String theCaseId, XESEvent theEvent, Date theStored) {
+    Trace trace = myTraces.computeIfAbsent(theCaseId, caseId -> new Trace(caseId, myValues));
+    XESEvent latest = trace.getLatestEvent();
+    if (!trace.add(theEvent, theStored)) {
+      return false;
+    }
+    myVersion++;
+    if (myDirectlyFollowsGraph != null) {
+      if (latest == null || !theEvent.getTimestamp().before(latest.getTimestamp())) {
+        myDirectlyFollowsGraph.append(latest, theEvent);
+      } else {
+        // recorded out of order, the edges of the trace change. Rebuilt on the next request.
+        myDirectlyFollowsGraph = null;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return validator that changes whenever an event is added. A log that is loaded again gets a new one, even if it
+   * has the same events.
+   */
+  public synchronized String getValidator() {
+    return myInstance + "-" + myVersion;
+  }
+
+  /**
+   * @return copy of the directly-follows graph of the complete log
+   */
+  public DirectlyFollowsGraph getDirectlyFollowsGraph() {
+    int version;
+    synchronized (this) {
+      if (myDirectlyFollowsGraph != null) {
+        return myDirectlyFollowsGraph.copy();
+      }
+      version = myVersion;
+    }
+    // built without holding the lock, events keep being added meanwhile
+    DirectlyFollowsGraph graph = DirectlyFollowsGraph.of(this, EventLogFilter.ALL);
+    synchronized (this) {
+      if (myDirectlyFollowsGraph == null && myVersion == version) {
+        // no event was added while it was built, from now on it is kept up to date
+        myDirectlyFollowsGraph = graph;
+        return graph.copy();
+      }
+    }
+    return graph;
+  }
+
+  public Collection<Trace> getTraces() {
+    return myTraces.values();
+  }
+
+  /**
+   * @return snapshot of the traces ordered by their case id, so the same log is always exported the same way
+   */
+  public List<Trace> getSortedTraces() {
+    List<Trace> traces = new ArrayList<>(myTraces.values());
+    traces.sort(Comparator.comparing(Trace::getCaseId));
+    return traces;
+  }
+}
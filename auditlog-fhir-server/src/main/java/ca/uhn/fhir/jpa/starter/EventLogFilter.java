@@ -0,0 +1,139 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import org.hl7.fhir.r4.model.AuditEvent;
+
+import java.util.Date;
+
+/**
+ * Restricts the events of an event log to a time window on their recorded date and the traces to those that changed
+ * after a continuation token. Both bounds of the window are inclusive and optional.
+ */
+public class EventLogFilter {
+
+  /**
+   * Filter that accepts every event
+   */
+  public static final EventLogFilter ALL = new EventLogFilter(null, null);
+
+  private final Date myLowerBound;
+  private final Date myUpperBound;
+  private final Date mySince;
+
+  public EventLogFilter(Date theLowerBound, Date theUpperBound) {
+    this(theLowerBound, theUpperBound, null);
+  }
+
+  /**
+   * @param theLowerBound first recorded date in the window or null
+   * @param theUpperBound last recorded date in the window or null
+   * @param theSince      only traces that changed in the store after this instant are included, or null
+   */
+  public EventLogFilter(Date theLowerBound, Date theUpperBound, Date theSince) {
+    myLowerBound = theLowerBound;
+    myUpperBound = theUpperBound;
+    mySince = theSince;
+  }
+
+  /**
+   * Creates the filter of an export request. <code>_since</code> is the continuation token of a previous export,
+   * the traces that changed after it are exported completely, as far as they are in the time window.
+   *
+   * @param theStart start of the time window or null
+   * @param theEnd   end of the time window or null, given with less than millisecond precision it covers the whole
+   *                 year, month, day, minute or second
+   * @param theSince continuation token of the last export or null
+   */
+  public static EventLogFilter of(DateParam theStart, DateParam theEnd, DateParam theSince) {
+    return new EventLogFilter(
+      theStart != null ? theStart.getValue() : null,
+      theEnd != null ? getUpperBound(theEnd) : null,
+      theSince != null ? theSince.getValue() : null);
+  }
+
+  private static Date getUpperBound(DateParam theEnd) {
+    Date end = theEnd.getValue();
+    TemporalPrecisionEnum precision = theEnd.getPrecision();
+    if (end == null || precision == null || precision == TemporalPrecisionEnum.MILLI) {
+      return end;
+    }
+    // last millisecond before the next year, month, day, minute or second
+    return new Date(precision.add(end, 1).getTime() - 1);
+  }
+
+  /**
+   * @return new continuation token for an export that reads the log after this call, see
+   * {@link #newContinuationToken(long, long)}
+   */
+  public static Date newContinuationToken() {
+    return newContinuationToken(System.currentTimeMillis(), HapiProperties.getXesDeltaSafetyMarginMs());
+  }
+
+  /**
+   * Traces are stamped when they change, see {@link Trace#getLastStored()}. Traces that are loaded from the database
+   * are stamped with the last update of their AuditEvents, which is taken when the AuditEvent is written, not when
+   * its transaction commits. An event that is committed after an export read the log can therefore be stamped before
+   * the export started. The token lies the safety margin before the export, so such events are part of the next
+   * delta as long as no transaction writing AuditEvents takes longer than the margin. Traces that changed within the
+   * margin are exported again by the next delta, clients replace them like any other changed trace.
+   * <p>
+   * Deleted AuditEvents are not reflected in a delta, a trace that only lost events is not exported again. Clients
+   * that have to see deletes export the complete log.
+   *
+   * @param theNow                epoch millis the export starts
+   * @param theSafetyMarginMillis longest time a transaction writing AuditEvents may take
+   */
+  static Date newContinuationToken(long theNow, long theSafetyMarginMillis) {
+    return new Date(theNow - Math.max(1, theSafetyMarginMillis));
+  }
+
+  public boolean isEmpty() {
+    return myLowerBound == null && myUpperBound == null && mySince == null;
+  }
+
+  public boolean isValid() {
+    return myLowerBound == null || myUpperBound == null || !myLowerBound.after(myUpperBound);
+  }
+
+  public boolean includes(Date theRecorded) {
+    return includes(theRecorded.getTime());
+  }
+
+  /**
+   * @param theRecorded epoch millis
+   */
+  public boolean includes(long theRecorded) {
+    return (myLowerBound == null || theRecorded >= myLowerBound.getTime()) &&
+      (myUpperBound == null || theRecorded <= myUpperBound.getTime());
+  }
+
+  /**
+   * @param theLastStored epoch millis the trace changed last
+   * @return whether the trace changed after the continuation token
+   */
+  public boolean includesTrace(long theLastStored) {
+    return mySince == null || theLastStored > mySince.getTime();
+  }
+
+  /**
+   * Pushes the time window down to the database. The continuation token selects whole traces, which the database
+   * cannot tell apart, it is applied to the loaded traces.
+   */
+  public void addTo(SearchParameterMap theSearchParameterMap) {
+    if (myLowerBound == null && myUpperBound == null) {
+      return;
+    }
+    DateRangeParam range = new DateRangeParam();
+    if (myLowerBound != null) {
+      range.setLowerBound(new DateParam(ParamPrefixEnum.GREATERTHAN_OR_EQUALS, myLowerBound));
+    }
+    if (myUpperBound != null) {
+      range.setUpperBound(new DateParam(ParamPrefixEnum.LESSTHAN_OR_EQUALS, myUpperBound));
+    }
+    theSearchParameterMap.add(AuditEvent.SP_DATE, range);
+  }
+}
@@ -0,0 +1,344 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Materialised event logs per PlanDefinition. A log is loaded from the AuditEvents in the database the first time it
+ * is requested, afterwards it is kept up to date by {@link #append(AuditEvent)} whenever an AuditEvent is created,
+ * by {@link MyConsentService} as well as through the REST API. A log with an AuditEvent that is updated or deleted is
+ * dropped and loaded again when it is requested next. Serving a log therefore neither scans the audit table nor
+ * parses any FHIR resources.
+ * <p>
+ * If the store is disabled (see {@link HapiProperties#getXesStoreEnabled()}) every request loads the log from the
+ * database.
+ * <p>
+ * Registered as storage interceptor, see {@link BaseJpaRestfulServer}.
+ */
+public class EventLogStore {
+
+  @Autowired
+  IFhirResourceDao<AuditEvent> myAuditEventDao;
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(EventLogStore.class);
+
+  private final Map<String, EventLog> myEventLogs = new ConcurrentHashMap<>();
+
+  private final boolean myEnabled = HapiProperties.getXesStoreEnabled();
+
+  /**
+   * Part of every validator, the logs of another run of the server may have the same versions
+   */
+  private final String myStartId = Long.toString(System.currentTimeMillis(), 36);
+
+  private final Object myLoadLock = new Object();
+
+  /**
+   * Logs being loaded by {@link #getEventLogs}, null if no load is in progress
+   */
+  private volatile Map<String, EventLog> myLoadingEventLogs;
+
+  /**
+   * Whether the load in progress loads the logs of all PlanDefinitions
+   */
+  private volatile boolean myLoadingAll;
+
+  /**
+   * Set once the logs of all PlanDefinitions were loaded
+   */
+  private volatile boolean myAllLoaded;
+
+  /**
+   * Counts the logs that were dropped, a load that overlaps with one is not kept
+   */
+  private final AtomicInteger myInvalidations = new AtomicInteger();
+
+  /**
+   * @param thePlanDefinitionId id part of the PlanDefinition
+   * @param theFilter           time window the caller is interested in. The stored logs are always complete, only
+   *                            logs loaded for a single request are restricted to the window by the database, so the
+   *                            caller still has to apply the filter.
+   * @return event log of the PlanDefinition
+   */
+  public EventLog getEventLog(String thePlanDefinitionId, EventLogFilter theFilter) {
+    if (!myEnabled) {
+      return loadEventLog(thePlanDefinitionId, theFilter);
+    }
+    EventLog eventLog = myEventLogs.get(thePlanDefinitionId);
+    if (eventLog != null) {
+      return eventLog;
+    }
+    // not loaded inside the map, appends to the logs must not wait for the database
+    return getEventLogs(Collections.singleton(thePlanDefinitionId), EventLogFilter.ALL).get(thePlanDefinitionId);
+  }
+
+  /**
+   * Event logs of several PlanDefinitions, built in a single pass over the database for all logs that are not stored
+   * yet
+   *
+   * @param thePlanDefinitionIds id parts of the PlanDefinitions, null for all PlanDefinitions with AuditEvents
+   * @param theFilter            time window the caller is interested in, see {@link #getEventLog}
+   * @return event logs ordered by the id of their PlanDefinition. Every requested PlanDefinition has a log, even if
+   * it has no events.
+   */
+  public Map<String, EventLog> getEventLogs(Set<String> thePlanDefinitionIds, EventLogFilter theFilter) {
+    Map<String, EventLog> eventLogs = new TreeMap<>();
+    if (!myEnabled) {
+      if (thePlanDefinitionIds != null) {
+        for (String planDefinitionId : thePlanDefinitionIds) {
+          eventLogs.put(planDefinitionId, new EventLog(planDefinitionId));
+        }
+      }
+      loadEventLogs(thePlanDefinitionIds, theFilter, eventLogs);
+      return eventLogs;
+    }
+
+    // one load at a time, appends go to the logs of the load in progress
+    synchronized (myLoadLock) {
+      if (thePlanDefinitionIds == null && myAllLoaded) {
+        eventLogs.putAll(myEventLogs);
+        return eventLogs;
+      }
+      Map<String, EventLog> loading = new ConcurrentHashMap<>();
+      if (thePlanDefinitionIds != null) {
+        for (String planDefinitionId : thePlanDefinitionIds) {
+          EventLog eventLog = myEventLogs.get(planDefinitionId);
+          if (eventLog != null) {
+            eventLogs.put(planDefinitionId, eventLog);
+          } else {
+            loading.put(planDefinitionId, new EventLog(planDefinitionId));
+          }
+        }
+        if (loading.isEmpty()) {
+          return eventLogs;
+        }
+      }
+
+      myLoadingAll = thePlanDefinitionIds == null;
+      myLoadingEventLogs = loading;
+      int invalidations = myInvalidations.get();
+      try {
+        loadEventLogs(thePlanDefinitionIds != null ? loading.keySet() : null, EventLogFilter.ALL, loading);
+        for (EventLog eventLog : loading.values()) {
+          // a log started by append in the meantime is just as complete
+          EventLog stored = myEventLogs.putIfAbsent(eventLog.getPlanDefinitionId(), eventLog);
+          eventLogs.put(eventLog.getPlanDefinitionId(), stored != null ? stored : eventLog);
+        }
+        if (thePlanDefinitionIds == null) {
+          eventLogs.putAll(myEventLogs);
+          myAllLoaded = true;
+        }
+        // checked after the logs are published, an invalidation is either seen here or removes them itself
+        if (myInvalidations.get() != invalidations) {
+          for (EventLog eventLog : loading.values()) {
+            myEventLogs.remove(eventLog.getPlanDefinitionId(), eventLog);
+          }
+          myAllLoaded = false;
+        }
+      } finally {
+        myLoadingEventLogs = null;
+        myLoadingAll = false;
+      }
+    }
+    return eventLogs;
+  }
+
+  /**
+   * Adds a newly created AuditEvent to the log of its PlanDefinition, called by the storage hook once the event is
+   * committed. Logs that were never requested are not touched, they will read the event from the database when they
+   * are loaded. Once the logs of all PlanDefinitions were loaded, an event of a PlanDefinition without a log starts a
+   * new one.
+   */
+  public void append(AuditEvent theAuditEvent) {
+    if (!myEnabled) {
+      return;
+    }
+    String planDefinitionId = AuditEventMapper.getPlanDefinitionId(theAuditEvent);
+    String caseId = AuditEventMapper.getCaseId(theAuditEvent);
+    if (planDefinitionId == null || caseId == null) {
+      return;
+    }
+    XESEvent event = AuditEventMapper.toXESEvent(theAuditEvent);
+    if (event != null) {
+      if (myAllLoaded) {
+        myEventLogs.putIfAbsent(planDefinitionId, new EventLog(planDefinitionId));
+      }
+      myEventLogs.computeIfPresent(planDefinitionId, (id, log) -> {
+        log.add(caseId, event, null);
+        return log;
+      });
+      // events that are committed while the logs are loaded may not be found by the search, a log being loaded is not
+      // in the map yet
+      Map<String, EventLog> loading = myLoadingEventLogs;
+      if (loading != null) {
+        EventLog eventLog = myLoadingAll ? loading.computeIfAbsent(planDefinitionId, EventLog::new) : loading.get(planDefinitionId);
+        if (eventLog != null) {
+          eventLog.add(caseId, event, null);
+        }
+      }
+    }
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+  public void resourceCreated(IBaseResource theResource) {
+    if (myEnabled && theResource instanceof AuditEvent) {
+      AuditEvent auditEvent = (AuditEvent) theResource;
+      AfterCompletion.run(committed -> {
+        if (committed) {
+          append(auditEvent);
+        }
+      });
+    }
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+  public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+    if (myEnabled && theNewResource instanceof AuditEvent) {
+      AuditEvent oldAuditEvent = (AuditEvent) theOldResource;
+      AuditEvent newAuditEvent = (AuditEvent) theNewResource;
+      if (isUnchanged(oldAuditEvent, newAuditEvent)) {
+        return;
+      }
+      // the event may have moved to another PlanDefinition or case
+      invalidate(AuditEventMapper.getPlanDefinitionId(oldAuditEvent));
+      invalidate(AuditEventMapper.getPlanDefinitionId(newAuditEvent));
+    }
+  }
+
+  /**
+   * @return whether both versions of the AuditEvent end up as the same event of the same case in the logs
+   */
+  private static boolean isUnchanged(AuditEvent theOldAuditEvent, AuditEvent theNewAuditEvent) {
+    if (!Objects.equals(AuditEventMapper.getPlanDefinitionId(theOldAuditEvent), AuditEventMapper.getPlanDefinitionId(theNewAuditEvent))
+      || !Objects.equals(AuditEventMapper.getCaseId(theOldAuditEvent), AuditEventMapper.getCaseId(theNewAuditEvent))) {
+      return false;
+    }
+    XESEvent oldEvent = AuditEventMapper.toXESEvent(theOldAuditEvent);
+    XESEvent newEvent = AuditEventMapper.toXESEvent(theNewAuditEvent);
+    if (oldEvent == null || newEvent == null) {
+      return oldEvent == newEvent;
+    }
+    return oldEvent.getActivity().equals(newEvent.getActivity())
+      && oldEvent.getTransition().equals(newEvent.getTransition())
+      && Objects.equals(oldEvent.getTimestamp(), newEvent.getTimestamp())
+      && Objects.equals(oldEvent.getResource(), newEvent.getResource());
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+  public void resourceDeleted(IBaseResource theResource) {
+    if (myEnabled && theResource instanceof AuditEvent) {
+      invalidate(AuditEventMapper.getPlanDefinitionId((AuditEvent) theResource));
+    }
+  }
+
+  /**
+   * Drops the log of the PlanDefinition now and once the transaction is completed, so a load that reads the
+   * AuditEvents before the change is committed is not kept
+   */
+  private void invalidate(String thePlanDefinitionId) {
+    if (thePlanDefinitionId != null) {
+      drop(thePlanDefinitionId);
+      AfterCompletion.run(committed -> drop(thePlanDefinitionId));
+    }
+  }
+
+  private void drop(String thePlanDefinitionId) {
+    myInvalidations.incrementAndGet();
+    myAllLoaded = false;
+    myEventLogs.remove(thePlanDefinitionId);
+  }
+
+  /**
+   * Validator of the stored log of a PlanDefinition, loaded if it is not stored yet. It changes whenever an event is
+   * added to the log or the log is loaded again, and between runs of the server. It is taken from the same log that
+   * is exported afterwards, so it never announces events the export does not have yet.
+   *
+   * @return validator of the log, or null if the store is disabled
+   */
+  public String getValidator(String thePlanDefinitionId) {
+    if (!myEnabled) {
+      return null;
+    }
+    return myStartId + "-" + getEventLog(thePlanDefinitionId, EventLogFilter.ALL).getValidator();
+  }
+
+  /**
+   * Builds the event log from the database, see {@link #loadEventLogs}
+   */
+  private EventLog loadEventLog(String thePlanDefinitionId, EventLogFilter theFilter) {
+    Map<String, EventLog> eventLogs = new HashMap<>();
+    eventLogs.put(thePlanDefinitionId, new EventLog(thePlanDefinitionId));
+    loadEventLogs(Collections.singleton(thePlanDefinitionId), theFilter, eventLogs);
+    return eventLogs.get(thePlanDefinitionId);
+  }
+
+  /**
+   * Builds the event logs of several PlanDefinitions in a single pass over the database. Only the events of the
+   * PlanDefinitions are loaded, the filtering is done by the database on the
+   * {@link AuditEventSearchParameters#SP_BASED_ON} search parameter. They are walked in pages of
+   * {@link HapiProperties#getXesPageSize()}, every page is mapped to {@link XESEvent}s, partitioned by the
+   * PlanDefinition they are based on and dropped before the next one is loaded.
+   *
+   * @param thePlanDefinitionIds id parts of the PlanDefinitions, null loads the logs of all PlanDefinitions
+   * @param theEventLogs         logs the events are added to, a log is added for every PlanDefinition without one
+   */
+  private void loadEventLogs(Set<String> thePlanDefinitionIds, EventLogFilter theFilter, Map<String, EventLog> theEventLogs) {
+    int pageSize = HapiProperties.getXesPageSize();
+
+    // not synchronous, the search is persisted and pages are only loaded when requested. A search with the same
+    // parameters is reused for a while, it would miss the events stored since, so the cache is bypassed, see
+    // NoCacheRequestDetails.
+    SearchParameterMap searchParameterMap = new SearchParameterMap();
+    if (thePlanDefinitionIds != null) {
+      ReferenceOrListParam planDefinitions = new ReferenceOrListParam();
+      for (String planDefinitionId : thePlanDefinitionIds) {
+        planDefinitions.addOr(new ReferenceParam("PlanDefinition/" + planDefinitionId));
+      }
+      searchParameterMap.add(AuditEventSearchParameters.SP_BASED_ON, planDefinitions);
+    }
+    theFilter.addTo(searchParameterMap);
+    IBundleProvider search = myAuditEventDao.search(searchParameterMap, new NoCacheRequestDetails());
+    int loaded = 0;
+    for (int from = 0; ; from += pageSize) {
+      List<IBaseResource> page = search.getResources(from, from + pageSize);
+      if (page.isEmpty()) {
+        break;
+      }
+      for (IBaseResource resource : page) {
+        if (resource instanceof AuditEvent) {
+          AuditEvent auditEvent = (AuditEvent) resource;
+          String planDefinitionId = AuditEventMapper.getPlanDefinitionId(auditEvent);
+          String caseId = AuditEventMapper.getCaseId(auditEvent);
+          XESEvent event;
+          if (planDefinitionId != null && caseId != null &&
+            (thePlanDefinitionIds == null || thePlanDefinitionIds.contains(planDefinitionId)) &&
+            (event = AuditEventMapper.toXESEvent(auditEvent)) != null) {
+            theEventLogs.computeIfAbsent(planDefinitionId, EventLog::new).add(caseId, event, auditEvent.getMeta().getLastUpdated());
+            loaded++;
+          }
+        }
+      }
+    }
+
+    ourLog.info("Loaded {} events of {} from the database", loaded,
+      thePlanDefinitionIds == null ? "all PlanDefinitions" : "PlanDefinition/" + String.join(", PlanDefinition/", thePlanDefinitionIds));
+  }
+}
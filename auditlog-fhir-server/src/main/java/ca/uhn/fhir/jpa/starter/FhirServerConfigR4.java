@@ -1,6 +1,7 @@
 package ca.uhn.fhir.jpa.starter;
 
 import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.jpa.binstore.IBinaryStorageSvc;
 import ca.uhn.fhir.jpa.config.BaseJavaConfigR4;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -11,6 +12,8 @@ import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
 
 import javax.persistence.EntityManagerFactory;
 import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
 
 @Configuration
 public class FhirServerConfigR4 extends BaseJavaConfigR4 {
@@ -65,4 +68,50 @@ public class FhirServerConfigR4 extends BaseJavaConfigR4 {
     return new XESProvider();
   }
 
+  @Bean(name = "xesTraceRenderer")
+  public XESTraceRenderer xesTraceRenderer() {
+    return new XESTraceRenderer(HapiProperties.getXesRenderThreads());
+  }
+
+  @Bean(name = "processMiningOperations")
+  public ProcessMiningProvider processMiningProvider() {
+    return new ProcessMiningProvider();
+  }
+
+  @Bean(name = "eventLogStore")
+  public EventLogStore eventLogStore() {
+    return new EventLogStore();
+  }
+
+  @Bean(name = "conformanceMonitor")
+  public ConformanceMonitor conformanceMonitor() {
+    return new ConformanceMonitor(HapiProperties.getXesConformanceStreamingMaxCases());
+  }
+
+  @Bean(name = "auditEventWriter")
+  public AuditEventWriter auditEventWriter() throws IOException {
+    AuditJournal journal = HapiProperties.getAuditEventJournalEnabled()
+      ? new AuditJournal(new File(HapiProperties.getAuditEventJournalDirectory()), HapiProperties.getAuditEventJournalSegmentSizeMb() * 1024 * 1024,
+      HapiProperties.getAuditEventJournalMaxSizeMb() * 1024L * 1024L, HapiProperties.getAuditEventJournalForceIntervalMs())
+      : null;
+    return new AuditEventWriter(HapiProperties.getAuditEventAsyncEnabled(), HapiProperties.getAuditEventAsyncQueueCapacity(),
+      HapiProperties.getAuditEventAsyncBatchSize(), HapiProperties.getAuditEventAsyncFlushIntervalMs(), journal);
+  }
+
+  @Bean(name = "auditReferenceResolver")
+  public AuditReferenceResolver auditReferenceResolver() {
+    return new AuditReferenceResolver(HapiProperties.getAuditEventDeviceId(), HapiProperties.getAuditEventPlanDefinitionId());
+  }
+
+  @Bean(name = "encounterReferenceCache")
+  public EncounterReferenceCache encounterReferenceCache() {
+    return new EncounterReferenceCache(HapiProperties.getAuditEventEncounterCacheMaxEntries());
+  }
+
+  @Bean(name = "xesExportJobSvc")
+  public XESExportJobSvc xesExportJobSvc(IBinaryStorageSvc theBinaryStorageSvc) {
+    return new XESExportJobSvc(theBinaryStorageSvc, HapiProperties.getXesAsyncMaxConcurrentJobs(),
+      HapiProperties.getXesAsyncRetentionMinutes() * 60 * 1000L);
+  }
+
 }
@@ -71,6 +71,34 @@ public class HapiProperties {
   static final String MAX_BINARY_SIZE = "max_binary_size";
   static final String PARTITIONING_MULTITENANCY_ENABLED = "partitioning.multitenancy.enabled";
   static final String CLIENT_ID_STRATEGY = "daoconfig.client_id_strategy";
+  static final String XES_PAGE_SIZE = "xes.page_size";
+  static final String XES_STORE_ENABLED = "xes.store.enabled";
+  static final String XES_DELTA_SAFETY_MARGIN_MS = "xes.delta.safety_margin_ms";
+  static final String XES_RENDER_THREADS = "xes.render_threads";
+  static final String XES_CACHE_ENABLED = "xes.cache.enabled";
+  static final String XES_CACHE_DIRECTORY = "xes.cache.directory";
+  static final String XES_CACHE_MAX_SIZE_MB = "xes.cache.max_size_mb";
+  static final String XES_MAPPING_RULES = "xes.mapping.rules";
+  static final String DEFAULT_XES_MAPPING_RULES = "C:Appointment=Schedule Appointment,C:Media=Diagnosis,"
+    + "C:DiagnosticReport=Report Writing,U:Appointment=Patient Admission,U:Procedure=Radiological Examination,"
+    + "U:DiagnosticReport=Report Attestation,E:*:$fhirToCDA=Report Transmission";
+  static final String XES_ASYNC_MAX_CONCURRENT_JOBS = "xes.async.max_concurrent_jobs";
+  static final String XES_ASYNC_RETENTION_MINUTES = "xes.async.retention_minutes";
+  static final String XES_CONFORMANCE_STREAMING_ENABLED = "xes.conformance.streaming.enabled";
+  static final String XES_CONFORMANCE_STREAMING_MAX_CASES = "xes.conformance.streaming.max_cases";
+  static final String AUDITEVENT_ASYNC_ENABLED = "auditevent.async.enabled";
+  static final String AUDITEVENT_ASYNC_QUEUE_CAPACITY = "auditevent.async.queue_capacity";
+  static final String AUDITEVENT_ASYNC_BATCH_SIZE = "auditevent.async.batch_size";
+  static final String AUDITEVENT_ASYNC_FLUSH_INTERVAL_MS = "auditevent.async.flush_interval_ms";
+  static final String AUDITEVENT_DEVICE_ID = "auditevent.device.id";
+  static final String AUDITEVENT_PLANDEFINITION_ID = "auditevent.plandefinition.id";
+  static final String AUDITEVENT_ENCOUNTER_CACHE_MAX_ENTRIES = "auditevent.encounter_cache.max_entries";
+  static final String AUDITEVENT_POLICY_RULES = "auditevent.policy.rules";
+  static final String AUDITEVENT_JOURNAL_ENABLED = "auditevent.journal.enabled";
+  static final String AUDITEVENT_JOURNAL_DIRECTORY = "auditevent.journal.directory";
+  static final String AUDITEVENT_JOURNAL_SEGMENT_SIZE_MB = "auditevent.journal.segment_size_mb";
+  static final String AUDITEVENT_JOURNAL_MAX_SIZE_MB = "auditevent.journal.max_size_mb";
+  static final String AUDITEVENT_JOURNAL_FORCE_INTERVAL_MS = "auditevent.journal.force_interval_ms";
 
   private static Properties ourProperties;
 
@@ -506,5 +534,104 @@ public class HapiProperties {
   public static boolean getPartitioningMultitenancyEnabled() {
     return HapiProperties.getBooleanProperty(PARTITIONING_MULTITENANCY_ENABLED, false);
   }
-}
 
+  public static Integer getXesPageSize() {
+    return HapiProperties.getIntegerProperty(XES_PAGE_SIZE, 500);
+  }
+
+  public static boolean getXesStoreEnabled() {
+    return HapiProperties.getBooleanProperty(XES_STORE_ENABLED, true);
+  }
+
+  public static Integer getXesDeltaSafetyMarginMs() {
+    return HapiProperties.getIntegerProperty(XES_DELTA_SAFETY_MARGIN_MS, 60000);
+  }
+
+  public static Integer getXesRenderThreads() {
+    return HapiProperties.getIntegerProperty(XES_RENDER_THREADS, Runtime.getRuntime().availableProcessors());
+  }
+
+  public static boolean getXesCacheEnabled() {
+    return HapiProperties.getBooleanProperty(XES_CACHE_ENABLED, true);
+  }
+
+  public static String getXesCacheDirectory() {
+    return HapiProperties.getProperty(XES_CACHE_DIRECTORY, System.getProperty("java.io.tmpdir") + "/xes-cache");
+  }
+
+  public static Integer getXesCacheMaxSizeMb() {
+    return HapiProperties.getIntegerProperty(XES_CACHE_MAX_SIZE_MB, 1024);
+  }
+
+  public static String getXesMappingRules() {
+    return HapiProperties.getProperty(XES_MAPPING_RULES, DEFAULT_XES_MAPPING_RULES);
+  }
+
+  public static Integer getXesAsyncMaxConcurrentJobs() {
+    return HapiProperties.getIntegerProperty(XES_ASYNC_MAX_CONCURRENT_JOBS, 2);
+  }
+
+  public static Integer getXesAsyncRetentionMinutes() {
+    return HapiProperties.getIntegerProperty(XES_ASYNC_RETENTION_MINUTES, 60);
+  }
+
+  public static boolean getXesConformanceStreamingEnabled() {
+    return HapiProperties.getBooleanProperty(XES_CONFORMANCE_STREAMING_ENABLED, false);
+  }
+
+  public static Integer getXesConformanceStreamingMaxCases() {
+    return HapiProperties.getIntegerProperty(XES_CONFORMANCE_STREAMING_MAX_CASES, 100000);
+  }
+
+  public static boolean getAuditEventAsyncEnabled() {
+    return HapiProperties.getBooleanProperty(AUDITEVENT_ASYNC_ENABLED, false);
+  }
+
+  public static Integer getAuditEventAsyncQueueCapacity() {
+    return HapiProperties.getIntegerProperty(AUDITEVENT_ASYNC_QUEUE_CAPACITY, 10000);
+  }
+
+  public static Integer getAuditEventAsyncBatchSize() {
+    return HapiProperties.getIntegerProperty(AUDITEVENT_ASYNC_BATCH_SIZE, 100);
+  }
+
+  public static Integer getAuditEventAsyncFlushIntervalMs() {
+    return HapiProperties.getIntegerProperty(AUDITEVENT_ASYNC_FLUSH_INTERVAL_MS, 1000);
+  }
+
+  public static String getAuditEventDeviceId() {
+    return HapiProperties.getProperty(AUDITEVENT_DEVICE_ID, "auditlog-server");
+  }
+
+  public static String getAuditEventPlanDefinitionId() {
+    return HapiProperties.getProperty(AUDITEVENT_PLANDEFINITION_ID, "rad-wf");
+  }
+
+  public static Integer getAuditEventEncounterCacheMaxEntries() {
+    return HapiProperties.getIntegerProperty(AUDITEVENT_ENCOUNTER_CACHE_MAX_ENTRIES, 10000);
+  }
+
+  public static String getAuditEventPolicyRules() {
+    return HapiProperties.getProperty(AUDITEVENT_POLICY_RULES);
+  }
+
+  public static boolean getAuditEventJournalEnabled() {
+    return HapiProperties.getBooleanProperty(AUDITEVENT_JOURNAL_ENABLED, false);
+  }
+
+  public static String getAuditEventJournalDirectory() {
+    return HapiProperties.getProperty(AUDITEVENT_JOURNAL_DIRECTORY, "/data/hapi/auditevent-journal");
+  }
+
+  public static Integer getAuditEventJournalSegmentSizeMb() {
+    return HapiProperties.getIntegerProperty(AUDITEVENT_JOURNAL_SEGMENT_SIZE_MB, 16);
+  }
+
+  public static Integer getAuditEventJournalMaxSizeMb() {
+    return HapiProperties.getIntegerProperty(AUDITEVENT_JOURNAL_MAX_SIZE_MB, 1024);
+  }
+
+  public static Integer getAuditEventJournalForceIntervalMs() {
+    return HapiProperties.getIntegerProperty(AUDITEVENT_JOURNAL_FORCE_INTERVAL_MS, 1000);
+  }
+}
@@ -0,0 +1,138 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Formats epoch milliseconds as ASCII bytes in the format of {@link DateTimeFormatter#ISO_OFFSET_DATE_TIME}, e.g.
+ * <code>2020-08-06T10:15:30.25+02:00</code>, without allocating anything per call.
+ * <p>
+ * The offset of the zone is cached together with the period it is valid for, it is only looked up again when a
+ * timestamp falls outside of that period (e.g. across a daylight saving time change). Instances are not thread safe,
+ * every writer uses its own.
+ */
+public class ISODateTimeFormatter {
+
+  /**
+   * Maximum length of a formatted timestamp, <code>yyyy-MM-ddTHH:mm:ss.SSS+HH:MM:SS</code>
+   */
+  public static final int MAX_LENGTH = 32;
+
+  private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+  private static final long MIN_MILLIS = Instant.parse("0000-01-02T00:00:00Z").toEpochMilli();
+  private static final long MAX_MILLIS = Instant.parse("9999-12-30T23:59:59.999Z").toEpochMilli();
+
+  private final ZoneId myZone;
+  private final ZoneRules myRules;
+
+  // offset valid from myOffsetValidFrom (inclusive) to myOffsetValidTo (exclusive)
+  private long myOffsetValidFrom = 1;
+  private long myOffsetValidTo = 0;
+  private int myOffsetMillis;
+  private final byte[] myOffsetId = new byte[9];
+  private int myOffsetIdLength;
+
+  public ISODateTimeFormatter() {
+    this(ZoneId.systemDefault());
+  }
+
+  public ISODateTimeFormatter(ZoneId theZone) {
+    myZone = theZone;
+    myRules = theZone.getRules();
+  }
+
+  /**
+   * Writes the timestamp into the buffer, which has to have at least {@link #MAX_LENGTH} bytes left
+   *
+   * @return the position after the timestamp
+   */
+  public int format(long theEpochMillis, byte[] theBuffer, int thePosition) {
+    if (theEpochMillis < MIN_MILLIS || theEpochMillis > MAX_MILLIS) {
+      // years without four digits, never seen in practice
+      return formatSlow(theEpochMillis, theBuffer, thePosition);
+    }
+    if (theEpochMillis < myOffsetValidFrom || theEpochMillis >= myOffsetValidTo) {
+      updateOffset(theEpochMillis);
+    }
+
+    long localMillis = theEpochMillis + myOffsetMillis;
+    long epochDay = Math.floorDiv(localMillis, MILLIS_PER_DAY);
+    int millisOfDay = (int) Math.floorMod(localMillis, MILLIS_PER_DAY);
+
+    // civil date from days since 1970-01-01, see http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+    long z = epochDay + 719468;
+    long era = Math.floorDiv(z, 146097);
+    int dayOfEra = (int) (z - era * 146097);
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    int monthPrime = (5 * dayOfYear + 2) / 153;
+    int day = dayOfYear - (153 * monthPrime + 2) / 5 + 1;
+    int month = monthPrime < 10 ? monthPrime + 3 : monthPrime - 9;
+    int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+    int position = thePosition;
+    position = digits(year / 100, theBuffer, position);
+    position = digits(year % 100, theBuffer, position);
+    theBuffer[position++] = '-';
+    position = digits(month, theBuffer, position);
+    theBuffer[position++] = '-';
+    position = digits(day, theBuffer, position);
+    theBuffer[position++] = 'T';
+    position = digits(millisOfDay / 3_600_000, theBuffer, position);
+    theBuffer[position++] = ':';
+    position = digits(millisOfDay / 60_000 % 60, theBuffer, position);
+    theBuffer[position++] = ':';
+    position = digits(millisOfDay / 1000 % 60, theBuffer, position);
+
+    int millis = millisOfDay % 1000;
+    if (millis != 0) {
+      // like ISO_OFFSET_DATE_TIME the fraction is written without trailing zeros
+      theBuffer[position++] = '.';
+      theBuffer[position++] = (byte) ('0' + millis / 100);
+      if (millis % 100 != 0) {
+        theBuffer[position++] = (byte) ('0' + millis / 10 % 10);
+        if (millis % 10 != 0) {
+          theBuffer[position++] = (byte) ('0' + millis % 10);
+        }
+      }
+    }
+
+    System.arraycopy(myOffsetId, 0, theBuffer, position, myOffsetIdLength);
+    return position + myOffsetIdLength;
+  }
+
+  private void updateOffset(long theEpochMillis) {
+    Instant instant = Instant.ofEpochMilli(theEpochMillis);
+    ZoneOffset offset = myRules.getOffset(instant);
+    ZoneOffsetTransition previous = myRules.previousTransition(instant.plusMillis(1));
+    ZoneOffsetTransition next = myRules.nextTransition(instant);
+    myOffsetValidFrom = previous != null ? previous.getInstant().toEpochMilli() : Long.MIN_VALUE;
+    myOffsetValidTo = next != null ? next.getInstant().toEpochMilli() : Long.MAX_VALUE;
+    myOffsetMillis = offset.getTotalSeconds() * 1000;
+
+    String offsetId = offset.getId();
+    myOffsetIdLength = offsetId.length();
+    for (int i = 0; i < myOffsetIdLength; i++) {
+      myOffsetId[i] = (byte) offsetId.charAt(i);
+    }
+  }
+
+  private int formatSlow(long theEpochMillis, byte[] theBuffer, int thePosition) {
+    String formatted = DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(Instant.ofEpochMilli(theEpochMillis).atZone(myZone));
+    int position = thePosition;
+    for (int i = 0; i < formatted.length() && i < MAX_LENGTH; i++) {
+      theBuffer[position++] = (byte) formatted.charAt(i);
+    }
+    return position;
+  }
+
+  private static int digits(int theValue, byte[] theBuffer, int thePosition) {
+    theBuffer[thePosition] = (byte) ('0' + theValue / 10);
+    theBuffer[thePosition + 1] = (byte) ('0' + theValue % 10);
+    return thePosition + 2;
+  }
+}
@@ -12,6 +12,16 @@ public class JpaRestfulServer extends BaseJpaRestfulServer {
 
   private static final long serialVersionUID = 1L;
 
+  private static final String[] RADIOLOGY_WORKFLOW = {
+    "Schedule Appointment",
+    "Patient Admission",
+    "Radiological Examination",
+    "Diagnosis",
+    "Report Writing",
+    "Report Attestation",
+    "Report Transmission"
+  };
+
   @Override
   protected void initialize() throws ServletException {
     super.initialize();
@@ -24,21 +34,36 @@ public class JpaRestfulServer extends BaseJpaRestfulServer {
     IFhirResourceDao<Device> deviceDao = appCtx.getBean("myDeviceDaoR4", IFhirResourceDao.class);
 
     Device thisSoftware = new Device();
+    thisSoftware.setId(HapiProperties.getAuditEventDeviceId());
     Device.DeviceDeviceNameComponent deviceName = new Device.DeviceDeviceNameComponent();
     deviceName.setName("Software: FH Hagenberg AIST: 'Process mining on FHIR' Server");
     thisSoftware.addDeviceName(deviceName);
 
-    deviceDao.create(thisSoftware);
+    deviceDao.update(thisSoftware);
 
 
     //add plandefinition resource
     IFhirResourceDao<PlanDefinition> planDefDao = appCtx.getBean("myPlanDefinitionDaoR4", IFhirResourceDao.class);
 
     PlanDefinition planDefinition = new PlanDefinition();
-    planDefinition.setId("rad-wf");
+    planDefinition.setId(HapiProperties.getAuditEventPlanDefinitionId());
     planDefinition.setStatus(Enumerations.PublicationStatus.ACTIVE);
     planDefinition.setDescription("PlanDefinition of the radiology practice workflow");
 
+    //the steps of the workflow, titled like the activities they are mapped to, each one after the previous one
+    String previousActionId = null;
+    for (String step : RADIOLOGY_WORKFLOW) {
+      PlanDefinition.PlanDefinitionActionComponent action = planDefinition.addAction();
+      action.setId(step.toLowerCase().replace(' ', '-'));
+      action.setTitle(step);
+      if (previousActionId != null) {
+        action.addRelatedAction()
+          .setActionId(previousActionId)
+          .setRelationship(PlanDefinition.ActionRelationshipType.AFTEREND);
+      }
+      previousActionId = action.getId();
+    }
+
     planDefDao.update(planDefinition);
 
 
@@ -0,0 +1,95 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.Arrays;
+
+/**
+ * Map from long keys to non-negative int values with open addressing in two primitive arrays, so neither keys nor
+ * values are boxed and an entry costs twelve bytes
+ */
+public class LongIntHashMap {
+
+  private static final int NO_VALUE = -1;
+
+  private long[] myKeys;
+  private int[] myValues;
+  private int mySize;
+
+  public LongIntHashMap() {
+    this(16);
+  }
+
+  /**
+   * @param theExpectedSize number of entries that fit without resizing
+   */
+  public LongIntHashMap(int theExpectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(16, theExpectedSize * 2 - 1)) << 1;
+    myKeys = new long[capacity];
+    myValues = new int[capacity];
+    Arrays.fill(myValues, NO_VALUE);
+  }
+
+  /**
+   * @return value of the key or -1 if the map does not contain it
+   */
+  public int get(long theKey) {
+    int mask = myKeys.length - 1;
+    for (int slot = slot(theKey, mask); myValues[slot] != NO_VALUE; slot = (slot + 1) & mask) {
+      if (myKeys[slot] == theKey) {
+        return myValues[slot];
+      }
+    }
+    return NO_VALUE;
+  }
+
+  /**
+   * @param theValue value, must not be negative
+   */
+  public void put(long theKey, int theValue) {
+    if (theValue < 0) {
+      throw new IllegalArgumentException("Negative value " + theValue);
+    }
+    int mask = myKeys.length - 1;
+    int slot = slot(theKey, mask);
+    while (myValues[slot] != NO_VALUE) {
+      if (myKeys[slot] == theKey) {
+        myValues[slot] = theValue;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    myKeys[slot] = theKey;
+    myValues[slot] = theValue;
+    // load factor of one half keeps the probe sequences short
+    if (++mySize * 2 > myKeys.length) {
+      resize();
+    }
+  }
+
+  public int size() {
+    return mySize;
+  }
+
+  private void resize() {
+    long[] keys = myKeys;
+    int[] values = myValues;
+    myKeys = new long[keys.length * 2];
+    myValues = new int[values.length * 2];
+    Arrays.fill(myValues, NO_VALUE);
+    int mask = myKeys.length - 1;
+    for (int i = 0; i < keys.length; i++) {
+      if (values[i] != NO_VALUE) {
+        int slot = slot(keys[i], mask);
+        while (myValues[slot] != NO_VALUE) {
+          slot = (slot + 1) & mask;
+        }
+        myKeys[slot] = keys[i];
+        myValues[slot] = values[i];
+      }
+    }
+  }
+
+  private static int slot(long theKey, int theMask) {
+    long hash = theKey * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ hash >>> 32) & theMask;
+  }
+}
@@ -1,9 +1,6 @@
 package ca.uhn.fhir.jpa.starter;
 
-import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
-import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.rest.api.RequestTypeEnum;
-import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.interceptor.consent.ConsentOutcome;
@@ -18,16 +15,13 @@ import java.util.Date;
 public class MyConsentService implements IConsentService {
 
   @Autowired
-  IFhirResourceDao<AuditEvent> myAuditEventDao;
+  EncounterReferenceCache myEncounterReferenceCache;
 
   @Autowired
-  IFhirResourceDao<Device> myDeviceDao;
+  AuditReferenceResolver myAuditReferenceResolver;
 
   @Autowired
-  IFhirResourceDao<DiagnosticReport> myDiagnosticReportDao;
-
-  @Autowired
-  IFhirResourceDao<PlanDefinition> myPlanDefinitionDao;
+  AuditEventWriter myAuditEventWriter;
 
   private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(MyConsentService.class);
 
@@ -67,6 +61,12 @@ public class MyConsentService implements IConsentService {
   }
 
   private void createAuditEvent(RequestDetails theRequestDetails, boolean wasSuccessful, String theException) {
+    //checked before anything is built, requests the policy skips cost nothing
+    AuditEvent.AuditEventAction action = retrieveAction(theRequestDetails);
+    if (!AuditPolicy.getConfigured().isAudited(action, theRequestDetails.getResourceName(), theRequestDetails.getOperation(), wasSuccessful)) {
+      return;
+    }
+
     AuditEvent auditEvent = new AuditEvent();
 
     //decide what type of auditevent it is and set type accordingly
@@ -80,28 +80,24 @@ public class MyConsentService implements IConsentService {
 
     auditEvent.setRecorded(new Date());
 
-    String encounterURL = "https://fhirserver.com/extensions/auditevent-encounter";
     //add based on extension for encounter
     Extension encounterExtension = new Extension();
-    encounterExtension.setUrl(encounterURL);
+    encounterExtension.setUrl(AuditEventSearchParameters.ENCOUNTER_EXTENSION_URL);
     encounterExtension.setValue(retrieveEncounterId(theRequestDetails));
     auditEvent.addExtension(encounterExtension);
 
 
-    //retrieve initially created plandefinition by using empty search parameter map
-    IBundleProvider allPlanDefinitions = myPlanDefinitionDao.search(new SearchParameterMap());
-    PlanDefinition initiallyCreatedPlanDefinition = null;
-    if (allPlanDefinitions != null && !allPlanDefinitions.isEmpty() && allPlanDefinitions.size() > 0) {
-      initiallyCreatedPlanDefinition = (PlanDefinition) allPlanDefinitions.getResources(0, 1).get(0);
-    } else {
-      logger.error("Apparently no plandefinition has been created during initialization");
+    //plandefinition and device are configured, resolved once and cached
+    Reference planDefinitionReference = myAuditReferenceResolver.getPlanDefinitionReference();
+    if (planDefinitionReference == null) {
+      logger.error("PlanDefinition/{} has not been created during initialization", HapiProperties.getAuditEventPlanDefinitionId());
+      planDefinitionReference = new Reference();
     }
 
     //add based on extension for plandefinition
-    String basedOnURL = "https://fhirserver.com/extensions/auditevent-basedon";
     Extension basedOnExtensionPlanDefinition = new Extension();
-    basedOnExtensionPlanDefinition.setUrl(basedOnURL);
-    basedOnExtensionPlanDefinition.setValue(new Reference(initiallyCreatedPlanDefinition));
+    basedOnExtensionPlanDefinition.setUrl(AuditEventSearchParameters.BASED_ON_EXTENSION_URL);
+    basedOnExtensionPlanDefinition.setValue(planDefinitionReference);
     auditEvent.addExtension(basedOnExtensionPlanDefinition);
 
 
@@ -139,18 +135,7 @@ public class MyConsentService implements IConsentService {
 
     auditEvent.addEntity(entityComponent);
 
-    if (theRequestDetails.getOperation() != null && !theRequestDetails.getOperation().isEmpty()) {
-      auditEvent.setAction(AuditEvent.AuditEventAction.E);
-    } else if (theRequestDetails.getRequestType().equals(RequestTypeEnum.POST)) {
-      auditEvent.setAction(AuditEvent.AuditEventAction.C);
-    } else if (theRequestDetails.getRequestType().equals(RequestTypeEnum.GET)) {
-      auditEvent.setAction(AuditEvent.AuditEventAction.R);
-    } else if (theRequestDetails.getRequestType().equals(RequestTypeEnum.DELETE)) {
-      auditEvent.setAction(AuditEvent.AuditEventAction.D);
-    } else if (theRequestDetails.getRequestType().equals(RequestTypeEnum.PUT)) {
-      auditEvent.setAction(AuditEvent.AuditEventAction.U);
-    }
-    //TODO: ...more action codes if needed
+    auditEvent.setAction(action);
 
     if (wasSuccessful) {
       auditEvent.setOutcome(AuditEvent.AuditEventOutcome._0);
@@ -160,21 +145,34 @@ public class MyConsentService implements IConsentService {
       auditEvent.setOutcomeDesc(theException);
     }
 
-    //retrieve initially created device by using empty search parameter map
-    IBundleProvider allDevices = myDeviceDao.search(new SearchParameterMap());
-    Device thisSoftware;
-    if (allDevices != null && !allDevices.isEmpty() && allDevices.size() > 0) {
-      thisSoftware = (Device) allDevices.getResources(0, 1).get(0);
-    } else {
-      throw new ExceptionInInitializerError("Apparently no device has been created during initialization");
+    Reference thisSoftware = myAuditReferenceResolver.getDeviceReference();
+    if (thisSoftware == null) {
+      throw new ExceptionInInitializerError("Apparently Device/" + HapiProperties.getAuditEventDeviceId() + " has not been created during initialization");
     }
 
     AuditEvent.AuditEventSourceComponent sourceComponent = new AuditEvent.AuditEventSourceComponent();
-    sourceComponent.setObserver(new Reference(thisSoftware));
+    sourceComponent.setObserver(thisSoftware);
 
     auditEvent.setSource(sourceComponent);
 
-    myAuditEventDao.create(auditEvent);
+    myAuditEventWriter.write(auditEvent);
+  }
+
+  //retrieve the action code of the request, null if there is none
+  private static AuditEvent.AuditEventAction retrieveAction(RequestDetails theRequestDetails) {
+    if (theRequestDetails.getOperation() != null && !theRequestDetails.getOperation().isEmpty()) {
+      return AuditEvent.AuditEventAction.E;
+    } else if (theRequestDetails.getRequestType().equals(RequestTypeEnum.POST)) {
+      return AuditEvent.AuditEventAction.C;
+    } else if (theRequestDetails.getRequestType().equals(RequestTypeEnum.GET)) {
+      return AuditEvent.AuditEventAction.R;
+    } else if (theRequestDetails.getRequestType().equals(RequestTypeEnum.DELETE)) {
+      return AuditEvent.AuditEventAction.D;
+    } else if (theRequestDetails.getRequestType().equals(RequestTypeEnum.PUT)) {
+      return AuditEvent.AuditEventAction.U;
+    }
+    //TODO: ...more action codes if needed
+    return null;
   }
 
   //retrieve the encounter id of a resource (not exhaustive, only for resources of the tested radiological workflow)
@@ -187,8 +185,7 @@ public class MyConsentService implements IConsentService {
       theRequestDetails.getId() != null &&
       !theRequestDetails.getId().isEmpty()) {
 
-      DiagnosticReport diagnosticReport = myDiagnosticReportDao.read(theRequestDetails.getId());
-      return diagnosticReport.getEncounter();
+      return myEncounterReferenceCache.getEncounter(theRequestDetails.getId());
     } else if (theRequestDetails.getResourceName().equals("Appointment")) {
       Appointment appointment = (Appointment) theRequestDetails.getResource();
       Extension encounterExtension = appointment.getExtensionByUrl("http://aist.fh-hagenberg.at/fhir/extensions/appointment-encounter-extension");
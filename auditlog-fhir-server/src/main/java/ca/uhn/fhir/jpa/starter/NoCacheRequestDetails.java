@@ -0,0 +1,30 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Request details for searches the server runs on its own behalf that must not be answered from the search cache.
+ * <p>
+ * HAPI FHIR 5.0.2 has no system request details yet. <code>BaseHapiFhirResourceDao.search</code> builds the
+ * {@link ca.uhn.fhir.rest.api.CacheControlDirective} of a search with
+ * <code>CacheControlDirective.parse(theRequest.getHeaders(Constants.HEADER_CACHE_CONTROL))</code> and the search
+ * coordinator only reuses a cached search with the same parameters if <code>no-cache</code> is not set. This request
+ * only carries that header, there is no servlet request behind it.
+ */
+class NoCacheRequestDetails extends ServletRequestDetails {
+
+  @Override
+  public String getHeader(String theName) {
+    return Constants.HEADER_CACHE_CONTROL.equalsIgnoreCase(theName) ? Constants.CACHE_CONTROL_NO_CACHE : null;
+  }
+
+  @Override
+  public List<String> getHeaders(String theName) {
+    String value = getHeader(theName);
+    return value != null ? Collections.singletonList(value) : Collections.emptyList();
+  }
+}
@@ -0,0 +1,197 @@
+package ca.uhn.fhir.jpa.starter;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Time statistics of an event log, computed from the recorded timestamps of the events:
+ * <ul>
+ * <li>throughput time of the cases, from their first to their last event</li>
+ * <li>sojourn time of every activity, from the previous event of the case to the activity</li>
+ * <li>elapsed time of every activity, from the first event of the case to the activity</li>
+ * </ul>
+ * The events only record when an activity completed, so the sojourn time includes the time the case waited for the
+ * activity to start. All times are collected in {@link DurationHistogram}s, memory does not grow with the number of
+ * cases. Large logs are split into chunks of traces whose statistics are computed in parallel and merged.
+ */
+public class PerformanceStatistics {
+
+  private final String myName;
+  private final List<String> myActivities = new ArrayList<>();
+  private final Map<String, Integer> myActivityIds = new HashMap<>();
+  private final DurationHistogram myCaseDurations = new DurationHistogram();
+  private DurationHistogram[] mySojournTimes = new DurationHistogram[8];
+  private DurationHistogram[] myElapsedTimes = new DurationHistogram[8];
+  private long[] myActivityCounts = new long[8];
+  private long myTraceCount;
+  private long myEventCount;
+  // reused for every trace added
+  private final Trace.Events myEvents = new Trace.Events();
+
+  /**
+   * @param theName       name of the statistics, e.g. the name of the log
+   * @param theActivities activities known up front, they keep their index as id
+   */
+  public PerformanceStatistics(String theName, List<String> theActivities) {
+    myName = theName;
+    for (String activity : theActivities) {
+      getActivityId(activity);
+    }
+  }
+
+  /**
+   * Computes the statistics of all traces in the log, only the events in the time window of the filter are considered
+   */
+  public static PerformanceStatistics of(EventLog theEventLog, EventLogFilter theFilter) {
+    String name = theEventLog.getName();
+    List<String> activities = ActivityMapping.getConfigured().getActivities();
+    return new ArrayList<>(theEventLog.getTraces()).parallelStream().collect(
+      () -> new PerformanceStatistics(name, activities),
+      (statistics, trace) -> statistics.addTrace(trace, theFilter),
+      PerformanceStatistics::merge);
+  }
+
+  /**
+   * Adds the events of the trace that are in the time window of the filter
+   */
+  public void addTrace(Trace theTrace, EventLogFilter theFilter) {
+    theTrace.copyEvents(theFilter, myEvents);
+    addTrace(myEvents);
+  }
+
+  /**
+   * Adds the events of one case, they are ordered by their timestamp
+   */
+  public void addTrace(Trace.Events theEvents) {
+    if (theEvents.size() == 0) {
+      return;
+    }
+
+    myTraceCount++;
+    myEventCount += theEvents.size();
+    long caseStart = theEvents.getTimestamp(0);
+    long previousTimestamp = caseStart;
+    for (int i = 0; i < theEvents.size(); i++) {
+      int activity = getActivityId(theEvents.getActivity(i));
+      long timestamp = theEvents.getTimestamp(i);
+      myActivityCounts[activity]++;
+      if (i > 0) {
+        mySojournTimes[activity].add(timestamp - previousTimestamp);
+      }
+      myElapsedTimes[activity].add(timestamp - caseStart);
+      previousTimestamp = timestamp;
+    }
+    myCaseDurations.add(previousTimestamp - caseStart);
+  }
+
+  /**
+   * Adds all statistics of the other instance to this one
+   */
+  public void merge(PerformanceStatistics theOther) {
+    for (int other = 0; other < theOther.myActivities.size(); other++) {
+      int activity = getActivityId(theOther.myActivities.get(other));
+      myActivityCounts[activity] += theOther.myActivityCounts[other];
+      mySojournTimes[activity].merge(theOther.mySojournTimes[other]);
+      myElapsedTimes[activity].merge(theOther.myElapsedTimes[other]);
+    }
+    myCaseDurations.merge(theOther.myCaseDurations);
+    myTraceCount += theOther.myTraceCount;
+    myEventCount += theOther.myEventCount;
+  }
+
+  private int getActivityId(String theActivity) {
+    Integer id = myActivityIds.get(theActivity);
+    if (id != null) {
+      return id;
+    }
+    // activities that are no longer part of the mapping but still in the log
+    int newId = myActivities.size();
+    if (newId == myActivityCounts.length) {
+      myActivityCounts = Arrays.copyOf(myActivityCounts, newId * 2);
+      mySojournTimes = Arrays.copyOf(mySojournTimes, newId * 2);
+      myElapsedTimes = Arrays.copyOf(myElapsedTimes, newId * 2);
+    }
+    mySojournTimes[newId] = new DurationHistogram();
+    myElapsedTimes[newId] = new DurationHistogram();
+    myActivities.add(theActivity);
+    myActivityIds.put(theActivity, newId);
+    return newId;
+  }
+
+  public String getName() {
+    return myName;
+  }
+
+  public long getTraceCount() {
+    return myTraceCount;
+  }
+
+  public long getEventCount() {
+    return myEventCount;
+  }
+
+  public DurationHistogram getCaseDurations() {
+    return myCaseDurations;
+  }
+
+  /**
+   * @return all activities, indexed by their id. Activities that never occurred are included with a count of 0.
+   */
+  public List<String> getActivities() {
+    return myActivities;
+  }
+
+  public long getActivityCount(int theActivity) {
+    return myActivityCounts[theActivity];
+  }
+
+  public DurationHistogram getSojournTimes(int theActivity) {
+    return mySojournTimes[theActivity];
+  }
+
+  public DurationHistogram getElapsedTimes(int theActivity) {
+    return myElapsedTimes[theActivity];
+  }
+
+  /**
+   * Writes the statistics as JSON. Only activities that occurred are written, durations are in milliseconds.
+   */
+  public void writeJson(Writer theWriter) throws IOException {
+    JsonWriter json = new JsonWriter(theWriter);
+    json.setIndent("  ");
+    json.beginObject();
+    json.name("name").value(myName);
+    json.name("traces").value(myTraceCount);
+    json.name("events").value(myEventCount);
+    json.name("caseDuration");
+    myCaseDurations.writeJson(json);
+
+    json.name("activities").beginArray();
+    for (int activity = 0; activity < myActivities.size(); activity++) {
+      if (myActivityCounts[activity] == 0) {
+        continue;
+      }
+      json.beginObject();
+      json.name("name").value(myActivities.get(activity));
+      json.name("count").value(myActivityCounts[activity]);
+      // activities that only ever started a case have no sojourn time
+      if (mySojournTimes[activity].getCount() > 0) {
+        json.name("sojourn");
+        mySojournTimes[activity].writeJson(json);
+      }
+      json.name("elapsed");
+      myElapsedTimes[activity].writeJson(json);
+      json.endObject();
+    }
+    json.endArray();
+    json.endObject();
+    json.flush();
+  }
+}
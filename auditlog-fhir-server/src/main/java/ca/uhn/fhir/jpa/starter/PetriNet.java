@@ -0,0 +1,192 @@
+package ca.uhn.fhir.jpa.starter;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Place/transition net with an initial and a final marking. Places and transitions are identified by their index,
+ * transitions are labelled with the activity they represent.
+ */
+public class PetriNet {
+
+  private final String myName;
+  private final List<String> myPlaces = new ArrayList<>();
+  private final List<String> myTransitions = new ArrayList<>();
+  private final List<List<Integer>> myInputPlaces = new ArrayList<>();
+  private final List<List<Integer>> myOutputPlaces = new ArrayList<>();
+  private final List<Integer> myInitialMarking = new ArrayList<>();
+  private final List<Integer> myFinalMarking = new ArrayList<>();
+
+  public PetriNet(String theName) {
+    myName = theName;
+  }
+
+  public String getName() {
+    return myName;
+  }
+
+  /**
+   * @return index of the new place
+   */
+  public int addPlace(String theName) {
+    myPlaces.add(theName);
+    myInitialMarking.add(0);
+    myFinalMarking.add(0);
+    return myPlaces.size() - 1;
+  }
+
+  /**
+   * @param theLabel activity the transition represents
+   * @return index of the new transition
+   */
+  public int addTransition(String theLabel) {
+    myTransitions.add(theLabel);
+    myInputPlaces.add(new ArrayList<>());
+    myOutputPlaces.add(new ArrayList<>());
+    return myTransitions.size() - 1;
+  }
+
+  /**
+   * Adds an arc from the place to the transition
+   */
+  public void addInputArc(int thePlace, int theTransition) {
+    myInputPlaces.get(theTransition).add(thePlace);
+  }
+
+  /**
+   * Adds an arc from the transition to the place
+   */
+  public void addOutputArc(int theTransition, int thePlace) {
+    myOutputPlaces.get(theTransition).add(thePlace);
+  }
+
+  public void setInitialMarking(int thePlace, int theTokens) {
+    myInitialMarking.set(thePlace, theTokens);
+  }
+
+  public void setFinalMarking(int thePlace, int theTokens) {
+    myFinalMarking.set(thePlace, theTokens);
+  }
+
+  public int getPlaceCount() {
+    return myPlaces.size();
+  }
+
+  public String getPlace(int thePlace) {
+    return myPlaces.get(thePlace);
+  }
+
+  public int getTransitionCount() {
+    return myTransitions.size();
+  }
+
+  public String getTransition(int theTransition) {
+    return myTransitions.get(theTransition);
+  }
+
+  public List<Integer> getInputPlaces(int theTransition) {
+    return myInputPlaces.get(theTransition);
+  }
+
+  public List<Integer> getOutputPlaces(int theTransition) {
+    return myOutputPlaces.get(theTransition);
+  }
+
+  public int getInitialMarking(int thePlace) {
+    return myInitialMarking.get(thePlace);
+  }
+
+  public int getFinalMarking(int thePlace) {
+    return myFinalMarking.get(thePlace);
+  }
+
+  /**
+   * Writes the net as PNML place/transition net, including the final marking in the form ProM reads it
+   */
+  public void writePNML(Writer theWriter) throws IOException {
+    try {
+      XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(theWriter);
+      xml.writeStartDocument("UTF-8", "1.0");
+      xml.writeStartElement("pnml");
+      xml.writeDefaultNamespace("http://www.pnml.org/version-2009/grammar/pnml");
+      xml.writeStartElement("net");
+      xml.writeAttribute("id", "net1");
+      xml.writeAttribute("type", "http://www.pnml.org/version-2009/grammar/ptnet");
+      writeName(xml, myName);
+      xml.writeStartElement("page");
+      xml.writeAttribute("id", "page1");
+
+      for (int place = 0; place < myPlaces.size(); place++) {
+        xml.writeStartElement("place");
+        xml.writeAttribute("id", "p" + place);
+        writeName(xml, myPlaces.get(place));
+        if (myInitialMarking.get(place) > 0) {
+          xml.writeStartElement("initialMarking");
+          writeText(xml, Integer.toString(myInitialMarking.get(place)));
+          xml.writeEndElement();
+        }
+        xml.writeEndElement();
+      }
+      for (int transition = 0; transition < myTransitions.size(); transition++) {
+        xml.writeStartElement("transition");
+        xml.writeAttribute("id", "t" + transition);
+        writeName(xml, myTransitions.get(transition));
+        xml.writeEndElement();
+      }
+      int arc = 0;
+      for (int transition = 0; transition < myTransitions.size(); transition++) {
+        for (int place : myInputPlaces.get(transition)) {
+          writeArc(xml, arc++, "p" + place, "t" + transition);
+        }
+        for (int place : myOutputPlaces.get(transition)) {
+          writeArc(xml, arc++, "t" + transition, "p" + place);
+        }
+      }
+      xml.writeEndElement();
+
+      xml.writeStartElement("finalmarkings");
+      xml.writeStartElement("marking");
+      for (int place = 0; place < myPlaces.size(); place++) {
+        if (myFinalMarking.get(place) > 0) {
+          xml.writeStartElement("place");
+          xml.writeAttribute("idref", "p" + place);
+          writeText(xml, Integer.toString(myFinalMarking.get(place)));
+          xml.writeEndElement();
+        }
+      }
+      xml.writeEndElement();
+      xml.writeEndElement();
+
+      xml.writeEndElement();
+      xml.writeEndElement();
+      xml.writeEndDocument();
+      xml.flush();
+    } catch (XMLStreamException e) {
+      throw new IOException("Could not write PNML", e);
+    }
+  }
+
+  private static void writeName(XMLStreamWriter theXml, String theName) throws XMLStreamException {
+    theXml.writeStartElement("name");
+    writeText(theXml, theName);
+    theXml.writeEndElement();
+  }
+
+  private static void writeText(XMLStreamWriter theXml, String theText) throws XMLStreamException {
+    theXml.writeStartElement("text");
+    theXml.writeCharacters(theText);
+    theXml.writeEndElement();
+  }
+
+  private static void writeArc(XMLStreamWriter theXml, int theId, String theSource, String theTarget) throws XMLStreamException {
+    theXml.writeEmptyElement("arc");
+    theXml.writeAttribute("id", "a" + theId);
+    theXml.writeAttribute("source", theSource);
+    theXml.writeAttribute("target", theTarget);
+  }
+}
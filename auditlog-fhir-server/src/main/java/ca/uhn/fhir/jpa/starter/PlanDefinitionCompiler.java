@@ -0,0 +1,111 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.hl7.fhir.r4.model.PlanDefinition;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles the actions of a PlanDefinition into a {@link PetriNet} the event logs can be replayed on.
+ * <p>
+ * Every action with a title becomes a transition labelled with the title, which has to match the activity name of
+ * the {@link ActivityMapping}. Nested actions are flattened, only the innermost actions become transitions. The
+ * ordering of the <code>relatedAction</code>s becomes a place between the two transitions, <code>before*</code>
+ * orders the action before the related one, <code>after*</code> after it and <code>concurrent*</code> does not order
+ * them at all. Every action without a predecessor starts with a token of its own, every action without a successor
+ * is expected to leave one behind, so all actions of the plan have to be executed once per case.
+ */
+public class PlanDefinitionCompiler {
+
+  private PlanDefinitionCompiler() {
+  }
+
+  /**
+   * @throws IllegalArgumentException if the PlanDefinition has no actions or a related action does not exist
+   */
+  public static PetriNet compile(PlanDefinition thePlanDefinition) {
+    List<PlanDefinition.PlanDefinitionActionComponent> actions = new ArrayList<>();
+    collectActions(thePlanDefinition.getAction(), actions);
+    if (actions.isEmpty()) {
+      throw new IllegalArgumentException("PlanDefinition/" + thePlanDefinition.getIdElement().getIdPart() + " has no actions with a title");
+    }
+
+    PetriNet net = new PetriNet("PlanDefinition/" + thePlanDefinition.getIdElement().getIdPart());
+    Map<String, Integer> transitions = new HashMap<>();
+    for (PlanDefinition.PlanDefinitionActionComponent action : actions) {
+      int transition = net.addTransition(action.getTitle());
+      if (action.getId() != null) {
+        transitions.put(action.getId(), transition);
+      }
+    }
+
+    // ordering constraints as from * n + to, in the order they are declared
+    int n = actions.size();
+    Set<Integer> constraints = new LinkedHashSet<>();
+    for (int transition = 0; transition < n; transition++) {
+      for (PlanDefinition.PlanDefinitionActionRelatedActionComponent relatedAction : actions.get(transition).getRelatedAction()) {
+        Integer related = transitions.get(relatedAction.getActionId());
+        if (related == null) {
+          throw new IllegalArgumentException("Action '" + actions.get(transition).getTitle() + "' refers to the unknown action '" + relatedAction.getActionId() + "'");
+        }
+        if (!relatedAction.hasRelationship()) {
+          continue;
+        }
+        switch (relatedAction.getRelationship()) {
+          case BEFORESTART:
+          case BEFORE:
+          case BEFOREEND:
+            constraints.add(transition * n + related);
+            break;
+          case AFTERSTART:
+          case AFTER:
+          case AFTEREND:
+            constraints.add(related * n + transition);
+            break;
+          default:
+            // concurrent actions are not ordered
+            break;
+        }
+      }
+    }
+
+    boolean[] hasPredecessor = new boolean[n];
+    boolean[] hasSuccessor = new boolean[n];
+    for (int constraint : constraints) {
+      int from = constraint / n;
+      int to = constraint % n;
+      int place = net.addPlace(net.getTransition(from) + " -> " + net.getTransition(to));
+      net.addOutputArc(from, place);
+      net.addInputArc(place, to);
+      hasSuccessor[from] = true;
+      hasPredecessor[to] = true;
+    }
+    for (int transition = 0; transition < n; transition++) {
+      if (!hasPredecessor[transition]) {
+        int place = net.addPlace("start -> " + net.getTransition(transition));
+        net.setInitialMarking(place, 1);
+        net.addInputArc(place, transition);
+      }
+      if (!hasSuccessor[transition]) {
+        int place = net.addPlace(net.getTransition(transition) + " -> end");
+        net.setFinalMarking(place, 1);
+        net.addOutputArc(transition, place);
+      }
+    }
+    return net;
+  }
+
+  private static void collectActions(List<PlanDefinition.PlanDefinitionActionComponent> theActions, List<PlanDefinition.PlanDefinitionActionComponent> theResult) {
+    for (PlanDefinition.PlanDefinitionActionComponent action : theActions) {
+      if (action.hasAction()) {
+        collectActions(action.getAction(), theResult);
+      } else if (action.hasTitle()) {
+        theResult.add(action);
+      }
+    }
+  }
+}
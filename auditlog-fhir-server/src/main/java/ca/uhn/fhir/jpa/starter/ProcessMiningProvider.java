@@ -0,0 +1,282 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Provider that adds operations analysing the event logs on the server, so clients get the result of an analysis
+ * instead of downloading the complete log
+ */
+public class ProcessMiningProvider implements IResourceProvider {
+
+  private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(ProcessMiningProvider.class);
+
+  public static final double DEFAULT_NOISE = 0.05;
+
+  public static final int DEFAULT_TOP_VARIANTS = 10;
+
+  /**
+   * Materialised event logs per PlanDefinition
+   */
+  @Autowired
+  EventLogStore myEventLogStore;
+
+  @Autowired
+  ConformanceMonitor myConformanceMonitor;
+
+  @Autowired
+  IFhirResourceDao<PlanDefinition> myPlanDefinitionDao;
+
+  /**
+   * Bounded pool the analyses run on, shared with the XES export
+   */
+  @Autowired
+  XESTraceRenderer myTraceRenderer;
+
+  /**
+   * Returns the directly-follows graph of the event log of a PlanDefinition: the frequency of every activity, of every
+   * directly-follows relation and the mean, minimum, maximum and 50th/90th/99th percentile of the time between the two
+   * activities in milliseconds. The graph is returned as JSON, with <code>_format=dot</code> in the Graphviz dot
+   * language.
+   *
+   * @param thePlandefinitionReference reference to plandefinition which is used to retrieve a list of AudtEvents
+   * @param theStart                   only events recorded at or after this date are considered
+   * @param theEnd                     only events recorded at or before this date are considered
+   * @param theServletRequest          request, used for the requested format
+   * @param theServletResponse         graph as response
+   * @throws IOException
+   */
+  @Operation(name = "$dfg", manualResponse = true, manualRequest = true, idempotent = true)
+  public void dfgTypeOperation(@OperationParam(name = "plandefinition") ReferenceParam thePlandefinitionReference,
+                               @OperationParam(name = "start") DateParam theStart,
+                               @OperationParam(name = "end") DateParam theEnd,
+                               HttpServletRequest theServletRequest,
+                               HttpServletResponse theServletResponse) throws IOException {
+    EventLogFilter filter = EventLogFilter.of(theStart, theEnd, null);
+
+    if (XESProvider.isValidRequest("$dfg", thePlandefinitionReference, filter, theServletResponse)) {
+      EventLog eventLog = myEventLogStore.getEventLog(thePlandefinitionReference.getIdPart(), filter);
+      DirectlyFollowsGraph graph = myTraceRenderer.compute(() -> getDirectlyFollowsGraph(eventLog, filter));
+
+      theServletResponse.setStatus(200);
+      boolean dot = "dot".equals(theServletRequest.getParameter("_format"));
+      theServletResponse.setContentType(dot ? "text/vnd.graphviz" : "application/json");
+      theServletResponse.setCharacterEncoding("UTF-8");
+      try (Writer writer = theServletResponse.getWriter()) {
+        if (dot) {
+          graph.writeDot(writer);
+        } else {
+          graph.writeJson(writer);
+        }
+      }
+    }
+  }
+
+  /**
+   * Discovers a process model from the event log of a PlanDefinition and returns it as PNML Petri net with initial and
+   * final marking. The model is mined by the {@link AlphaMiner} from the directly-follows graph, which is cached for
+   * the complete log, so repeated discovery does not walk the traces again.
+   *
+   * @param thePlandefinitionReference reference to plandefinition which is used to retrieve a list of AudtEvents
+   * @param theStart                   only events recorded at or after this date are considered
+   * @param theEnd                     only events recorded at or before this date are considered
+   * @param theNoise                   directly-follows relations occurring less often than this fraction of the most
+   *                                   frequent relation of the same activity are ignored, defaults to
+   *                                   {@link #DEFAULT_NOISE}
+   * @param theServletResponse         PNML as response
+   * @throws IOException
+   */
+  @Operation(name = "$discover", manualResponse = true, manualRequest = true, idempotent = true)
+  public void discoverTypeOperation(@OperationParam(name = "plandefinition") ReferenceParam thePlandefinitionReference,
+                                    @OperationParam(name = "start") DateParam theStart,
+                                    @OperationParam(name = "end") DateParam theEnd,
+                                    @OperationParam(name = "noise") DecimalType theNoise,
+                                    HttpServletResponse theServletResponse) throws IOException {
+    EventLogFilter filter = EventLogFilter.of(theStart, theEnd, null);
+    double noise = theNoise != null && theNoise.getValue() != null ? theNoise.getValue().doubleValue() : DEFAULT_NOISE;
+    if (noise < 0 || noise > 1) {
+      logger.error("$discover operation called with a noise threshold outside of [0, 1].");
+      theServletResponse.setStatus(400);
+      return;
+    }
+
+    if (XESProvider.isValidRequest("$discover", thePlandefinitionReference, filter, theServletResponse)) {
+      EventLog eventLog = myEventLogStore.getEventLog(thePlandefinitionReference.getIdPart(), filter);
+      DirectlyFollowsGraph graph = myTraceRenderer.compute(() -> getDirectlyFollowsGraph(eventLog, filter));
+      PetriNet net;
+      try {
+        net = AlphaMiner.discover(graph, noise);
+      } catch (IllegalArgumentException e) {
+        logger.error("$discover operation failed: " + e.getMessage());
+        theServletResponse.setStatus(400);
+        return;
+      }
+
+      theServletResponse.setStatus(200);
+      theServletResponse.setContentType("application/xml");
+      theServletResponse.setCharacterEncoding("UTF-8");
+      try (Writer writer = theServletResponse.getWriter()) {
+        net.writePNML(writer);
+      }
+    }
+  }
+
+  /**
+   * Returns the variants of the event log of a PlanDefinition as JSON: the distinct sequences of activities of its
+   * cases, ordered by the number of cases following them, each with up to {@link TraceVariants#EXAMPLE_CASES} example
+   * case ids.
+   *
+   * @param thePlandefinitionReference reference to plandefinition which is used to retrieve a list of AudtEvents
+   * @param theStart                   only events recorded at or after this date are considered
+   * @param theEnd                     only events recorded at or before this date are considered
+   * @param theTop                     number of variants returned, defaults to {@link #DEFAULT_TOP_VARIANTS}
+   * @param theServletResponse         variants as response
+   * @throws IOException
+   */
+  @Operation(name = "$variants", manualResponse = true, manualRequest = true, idempotent = true)
+  public void variantsTypeOperation(@OperationParam(name = "plandefinition") ReferenceParam thePlandefinitionReference,
+                                    @OperationParam(name = "start") DateParam theStart,
+                                    @OperationParam(name = "end") DateParam theEnd,
+                                    @OperationParam(name = "top") IntegerType theTop,
+                                    HttpServletResponse theServletResponse) throws IOException {
+    EventLogFilter filter = EventLogFilter.of(theStart, theEnd, null);
+    int top = theTop != null && theTop.getValue() != null ? theTop.getValue() : DEFAULT_TOP_VARIANTS;
+    if (top < 1) {
+      logger.error("$variants operation called with top less than 1.");
+      theServletResponse.setStatus(400);
+      return;
+    }
+
+    if (XESProvider.isValidRequest("$variants", thePlandefinitionReference, filter, theServletResponse)) {
+      EventLog eventLog = myEventLogStore.getEventLog(thePlandefinitionReference.getIdPart(), filter);
+      TraceVariants variants = myTraceRenderer.compute(() -> TraceVariants.of(eventLog, filter));
+
+      theServletResponse.setStatus(200);
+      theServletResponse.setContentType("application/json");
+      theServletResponse.setCharacterEncoding("UTF-8");
+      try (Writer writer = theServletResponse.getWriter()) {
+        variants.writeJson(writer, top);
+      }
+    }
+  }
+
+  /**
+   * Returns time statistics of the event log of a PlanDefinition as JSON: the throughput time of the cases and for
+   * every activity its sojourn time since the previous event of the case and the time elapsed since the case started.
+   * Every duration is given as mean, minimum, maximum and 50th/90th/99th percentile in milliseconds.
+   *
+   * @param thePlandefinitionReference reference to plandefinition which is used to retrieve a list of AudtEvents
+   * @param theStart                   only events recorded at or after this date are considered
+   * @param theEnd                     only events recorded at or before this date are considered
+   * @param theServletResponse         statistics as response
+   * @throws IOException
+   */
+  @Operation(name = "$performance", manualResponse = true, manualRequest = true, idempotent = true)
+  public void performanceTypeOperation(@OperationParam(name = "plandefinition") ReferenceParam thePlandefinitionReference,
+                                       @OperationParam(name = "start") DateParam theStart,
+                                       @OperationParam(name = "end") DateParam theEnd,
+                                       HttpServletResponse theServletResponse) throws IOException {
+    EventLogFilter filter = EventLogFilter.of(theStart, theEnd, null);
+
+    if (XESProvider.isValidRequest("$performance", thePlandefinitionReference, filter, theServletResponse)) {
+      EventLog eventLog = myEventLogStore.getEventLog(thePlandefinitionReference.getIdPart(), filter);
+      PerformanceStatistics statistics = myTraceRenderer.compute(() -> PerformanceStatistics.of(eventLog, filter));
+
+      theServletResponse.setStatus(200);
+      theServletResponse.setContentType("application/json");
+      theServletResponse.setCharacterEncoding("UTF-8");
+      try (Writer writer = theServletResponse.getWriter()) {
+        statistics.writeJson(writer);
+      }
+    }
+  }
+
+  /**
+   * Checks whether the cases of the event log of a PlanDefinition follow its actions. The actions and the ordering
+   * of their related actions are compiled into a Petri net (see {@link PlanDefinitionCompiler}) every case is replayed
+   * on. Returns as JSON the fitness of every case, the mean fitness and for every activity in how many cases it was
+   * executed before it was enabled, skipped or repeated, or occurred without being part of the PlanDefinition.
+   * <p>
+   * With <code>flagged=true</code> the cases flagged by the {@link ConformanceMonitor} while their AuditEvents were
+   * created are returned instead, with their fitness as if they ended now.
+   *
+   * @param thePlandefinitionReference reference to plandefinition whose actions the cases are checked against
+   * @param theStart                   only events recorded at or after this date are considered
+   * @param theEnd                     only events recorded at or before this date are considered
+   * @param theFlagged                 return the cases flagged while their events were created
+   * @param theServletResponse         conformance as response
+   * @throws IOException
+   */
+  @Operation(name = "$conformance", manualResponse = true, manualRequest = true, idempotent = true)
+  public void conformanceTypeOperation(@OperationParam(name = "plandefinition") ReferenceParam thePlandefinitionReference,
+                                       @OperationParam(name = "start") DateParam theStart,
+                                       @OperationParam(name = "end") DateParam theEnd,
+                                       @OperationParam(name = "flagged") BooleanType theFlagged,
+                                       HttpServletResponse theServletResponse) throws IOException {
+    EventLogFilter filter = EventLogFilter.of(theStart, theEnd, null);
+    boolean flagged = theFlagged != null && theFlagged.booleanValue();
+    if (flagged && !myConformanceMonitor.isEnabled()) {
+      logger.error("$conformance operation called for flagged cases, but xes.conformance.streaming.enabled is not set.");
+      theServletResponse.setStatus(400);
+      return;
+    }
+
+    if (XESProvider.isValidRequest("$conformance", thePlandefinitionReference, filter, theServletResponse)) {
+      String planDefinitionId = thePlandefinitionReference.getIdPart();
+      PlanDefinition planDefinition = myPlanDefinitionDao.read(new IdType("PlanDefinition", planDefinitionId));
+      TokenReplay replay;
+      try {
+        replay = new TokenReplay(PlanDefinitionCompiler.compile(planDefinition));
+      } catch (IllegalArgumentException e) {
+        logger.error("$conformance operation failed: " + e.getMessage());
+        theServletResponse.setStatus(400);
+        return;
+      }
+      myConformanceMonitor.update(planDefinition, replay);
+
+      ConformanceCheck check;
+      if (flagged) {
+        check = myConformanceMonitor.getFlaggedCases(planDefinitionId);
+      } else {
+        EventLog eventLog = myEventLogStore.getEventLog(planDefinitionId, filter);
+        check = myTraceRenderer.compute(() -> ConformanceCheck.of(eventLog, filter, replay));
+      }
+
+      theServletResponse.setStatus(200);
+      theServletResponse.setContentType("application/json");
+      theServletResponse.setCharacterEncoding("UTF-8");
+      try (Writer writer = theServletResponse.getWriter()) {
+        check.writeJson(writer);
+      }
+    }
+  }
+
+  /**
+   * Uses the cached graph of the log unless only a time window is requested
+   */
+  private static DirectlyFollowsGraph getDirectlyFollowsGraph(EventLog theEventLog, EventLogFilter theFilter) {
+    return theFilter.isEmpty() ? theEventLog.getDirectlyFollowsGraph() : DirectlyFollowsGraph.of(theEventLog, theFilter);
+  }
+
+  @Override
+  public Class<? extends IBaseResource> getResourceType() {
+    return AuditEvent.class;
+  }
+}
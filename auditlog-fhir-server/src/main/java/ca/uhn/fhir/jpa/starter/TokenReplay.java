@@ -0,0 +1,198 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Token-based replay of cases on a {@link PetriNet}. Every event fires the transition labelled with its activity,
+ * tokens that are missing to fire it are created and counted, tokens that are left behind after the case are
+ * counted as remaining. The fitness of a case is
+ * <code>(1 - missing / consumed) / 2 + (1 - remaining / produced) / 2</code>, 1 if the case follows the net.
+ * <p>
+ * The net is compiled into primitive arrays once, an instance can replay any number of cases concurrently.
+ */
+public class TokenReplay {
+
+  private final PetriNet myNet;
+  private final Map<String, Integer> myTransitions = new HashMap<>();
+  private final int[][] myInputPlaces;
+  private final int[][] myOutputPlaces;
+  private final int[] myInitialMarking;
+  private final int[] myFinalMarking;
+  private final int myInitialTokens;
+  private final int myFinalTokens;
+
+  public TokenReplay(PetriNet theNet) {
+    myNet = theNet;
+    int transitions = theNet.getTransitionCount();
+    myInputPlaces = new int[transitions][];
+    myOutputPlaces = new int[transitions][];
+    for (int transition = 0; transition < transitions; transition++) {
+      // the first transition with a label is fired for it
+      myTransitions.putIfAbsent(theNet.getTransition(transition), transition);
+      myInputPlaces[transition] = toArray(theNet.getInputPlaces(transition));
+      myOutputPlaces[transition] = toArray(theNet.getOutputPlaces(transition));
+    }
+    int places = theNet.getPlaceCount();
+    myInitialMarking = new int[places];
+    myFinalMarking = new int[places];
+    int initialTokens = 0;
+    int finalTokens = 0;
+    for (int place = 0; place < places; place++) {
+      myInitialMarking[place] = theNet.getInitialMarking(place);
+      myFinalMarking[place] = theNet.getFinalMarking(place);
+      initialTokens += myInitialMarking[place];
+      finalTokens += myFinalMarking[place];
+    }
+    myInitialTokens = initialTokens;
+    myFinalTokens = finalTokens;
+  }
+
+  private static int[] toArray(List<Integer> theList) {
+    int[] array = new int[theList.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = theList.get(i);
+    }
+    return array;
+  }
+
+  public PetriNet getNet() {
+    return myNet;
+  }
+
+  /**
+   * @return replay of a new case in the initial marking
+   */
+  public CaseReplay start(String theCaseId) {
+    return new CaseReplay(theCaseId);
+  }
+
+  /**
+   * Replays all events of a case, they are ordered by their timestamp first if they are not yet
+   */
+  public CaseReplay replay(String theCaseId, List<XESEvent> theEvents) {
+    DirectlyFollowsGraph.sortByTimestamp(theEvents);
+    CaseReplay replay = start(theCaseId);
+    for (XESEvent event : theEvents) {
+      replay.fire(event.getActivity());
+    }
+    return replay;
+  }
+
+  /**
+   * Replay state of one case. Not thread-safe, events of a case have to be fired one after the other.
+   */
+  public class CaseReplay {
+
+    private final String myCaseId;
+    private final int[] myMarking = myInitialMarking.clone();
+    private final int[] myFirings = new int[myInputPlaces.length];
+    private final int[] myMissingFirings = new int[myInputPlaces.length];
+    private final Map<String, Integer> myUnmodelled = new HashMap<>();
+    private int myMissing;
+    private int myConsumed;
+    private int myProduced = myInitialTokens;
+
+    CaseReplay(String theCaseId) {
+      myCaseId = theCaseId;
+    }
+
+    /**
+     * Fires the transition of the activity
+     *
+     * @return false if the activity is not part of the net or was not enabled
+     */
+    public boolean fire(String theActivity) {
+      Integer transition = myTransitions.get(theActivity);
+      if (transition == null) {
+        myUnmodelled.merge(theActivity, 1, Integer::sum);
+        return false;
+      }
+      boolean enabled = true;
+      for (int place : myInputPlaces[transition]) {
+        if (myMarking[place] == 0) {
+          myMissing++;
+          enabled = false;
+        } else {
+          myMarking[place]--;
+        }
+        myConsumed++;
+      }
+      for (int place : myOutputPlaces[transition]) {
+        myMarking[place]++;
+        myProduced++;
+      }
+      myFirings[transition]++;
+      if (!enabled) {
+        myMissingFirings[transition]++;
+      }
+      return enabled;
+    }
+
+    public String getCaseId() {
+      return myCaseId;
+    }
+
+    /**
+     * @return whether the case deviated from the net so far, not counting activities that are still to come
+     */
+    public boolean hasDeviated() {
+      return myMissing > 0 || !myUnmodelled.isEmpty();
+    }
+
+    /**
+     * @return tokens that were missing, including those of the final marking
+     */
+    public int getMissing() {
+      int missing = myMissing;
+      for (int place = 0; place < myMarking.length; place++) {
+        missing += Math.max(0, myFinalMarking[place] - myMarking[place]);
+      }
+      return missing;
+    }
+
+    /**
+     * @return tokens that are left behind in addition to the final marking
+     */
+    public int getRemaining() {
+      int remaining = 0;
+      for (int place = 0; place < myMarking.length; place++) {
+        remaining += Math.max(0, myMarking[place] - myFinalMarking[place]);
+      }
+      return remaining;
+    }
+
+    /**
+     * @return fitness of the case as if it ended now, between 0 and 1
+     */
+    public double getFitness() {
+      int consumed = myConsumed + myFinalTokens;
+      int produced = myProduced;
+      double missing = consumed > 0 ? (double) getMissing() / consumed : 0;
+      double remaining = produced > 0 ? (double) getRemaining() / produced : 0;
+      return (1 - missing) / 2 + (1 - remaining) / 2;
+    }
+
+    /**
+     * @return how often the transition fired
+     */
+    public int getFirings(int theTransition) {
+      return myFirings[theTransition];
+    }
+
+    /**
+     * @return how often the transition fired although it was not enabled
+     */
+    public int getMissingFirings(int theTransition) {
+      return myMissingFirings[theTransition];
+    }
+
+    /**
+     * @return activities that are not part of the net and how often they occurred
+     */
+    public Map<String, Integer> getUnmodelled() {
+      return myUnmodelled;
+    }
+  }
+}
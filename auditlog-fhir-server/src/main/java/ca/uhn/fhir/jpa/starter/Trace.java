@@ -0,0 +1,297 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Events of one case (encounter) of an {@link EventLog}, always ordered by their timestamp. Events may be appended
+ * while the trace is being read.
+ * <p>
+ * The events are kept in primitive arrays, the timestamp as epoch millis and activity, lifecycle transition and
+ * resource as ids of {@link Values} shared by the traces of an {@link EventLog}, the id of the AuditEvent as 64 bit
+ * hash. An event costs 28 bytes, no objects are allocated per event. Events are inserted at their position in time, events with the same timestamp keep the order
+ * they were added in.
+ */
+public class Trace {
+
+  private static final int NO_VALUE = -1;
+  private static final long NO_ID = 0;
+
+  private final String myCaseId;
+  private final Values myValues;
+  private long[] myTimestamps = new long[4];
+  private int[] myActivities = new int[4];
+  private int[] myTransitions = new int[4];
+  private int[] myResources = new int[4];
+  private long[] myIds = new long[4];
+  private int mySize;
+  private long myLastStored = Long.MIN_VALUE;
+
+  /**
+   * Trace with values of its own
+   */
+  public Trace(String theCaseId) {
+    this(theCaseId, new Values());
+  }
+
+  /**
+   * @param theValues values shared with the other traces of the log
+   */
+  public Trace(String theCaseId, Values theValues) {
+    myCaseId = theCaseId;
+    myValues = theValues;
+  }
+
+  public String getCaseId() {
+    return myCaseId;
+  }
+
+  /**
+   * Inserts an event at its position in time. An event of the same AuditEvent as one that is already part of the
+   * trace is ignored, this happens when an AuditEvent is both found by the initial load and reported by the creation
+   * hook. Events without the id of their AuditEvent are always added.
+   *
+   * @param theStored time the AuditEvent of the event was stored, null if it was just stored. Stamped while the
+   *                  trace is locked, so a change stamped before an export reads the trace is part of the export.
+   * @return true if the event was added
+   */
+  public synchronized boolean add(XESEvent theEvent, Date theStored) {
+    long timestamp = theEvent.getTimestamp().getTime();
+    long id = hash(theEvent.getId());
+    int position = upperBound(timestamp);
+    // the same AuditEvent always has the same timestamp
+    for (int i = position - 1; id != NO_ID && i >= 0 && myTimestamps[i] == timestamp; i--) {
+      if (myIds[i] == id) {
+        return false;
+      }
+    }
+
+    if (mySize == myTimestamps.length) {
+      int capacity = mySize * 2;
+      myTimestamps = Arrays.copyOf(myTimestamps, capacity);
+      myActivities = Arrays.copyOf(myActivities, capacity);
+      myTransitions = Arrays.copyOf(myTransitions, capacity);
+      myResources = Arrays.copyOf(myResources, capacity);
+      myIds = Arrays.copyOf(myIds, capacity);
+    }
+    int moved = mySize - position;
+    if (moved > 0) {
+      System.arraycopy(myTimestamps, position, myTimestamps, position + 1, moved);
+      System.arraycopy(myActivities, position, myActivities, position + 1, moved);
+      System.arraycopy(myTransitions, position, myTransitions, position + 1, moved);
+      System.arraycopy(myResources, position, myResources, position + 1, moved);
+      System.arraycopy(myIds, position, myIds, position + 1, moved);
+    }
+    myTimestamps[position] = timestamp;
+    myActivities[position] = myValues.intern(theEvent.getActivity());
+    myTransitions[position] = myValues.intern(theEvent.getTransition());
+    myResources[position] = myValues.intern(theEvent.getResource());
+    myIds[position] = id;
+    mySize++;
+    myLastStored = Math.max(myLastStored, theStored != null ? theStored.getTime() : System.currentTimeMillis());
+    return true;
+  }
+
+  /**
+   * @return 64 bit FNV-1a hash of the id, never {@link #NO_ID} unless there is no id
+   */
+  private static long hash(String theId) {
+    if (theId == null) {
+      return NO_ID;
+    }
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < theId.length(); i++) {
+      hash ^= theId.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash != NO_ID ? hash : 1;
+  }
+
+  /**
+   * @return index of the first event after the timestamp
+   */
+  private int upperBound(long theTimestamp) {
+    // appending is by far the most common case
+    if (mySize == 0 || myTimestamps[mySize - 1] <= theTimestamp) {
+      return mySize;
+    }
+    int low = 0;
+    int high = mySize;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (myTimestamps[middle] <= theTimestamp) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return the event with the latest timestamp, the one added last if several share it, or null if the trace is
+   * empty
+   */
+  public synchronized XESEvent getLatestEvent() {
+    return mySize > 0 ? toEvent(mySize - 1) : null;
+  }
+
+  public synchronized int size() {
+    return mySize;
+  }
+
+  /**
+   * @return epoch millis the latest event was stored, see {@link EventLogFilter#includesTrace(long)}
+   */
+  public synchronized long getLastStored() {
+    return myLastStored;
+  }
+
+  /**
+   * @return snapshot of the events
+   */
+  public synchronized List<XESEvent> getEvents() {
+    List<XESEvent> events = new ArrayList<>(mySize);
+    for (int i = 0; i < mySize; i++) {
+      events.add(toEvent(i));
+    }
+    return events;
+  }
+
+  /**
+   * @return snapshot of the events that are in the time window of the filter, empty if the trace did not change
+   * after the continuation token of the filter
+   */
+  public List<XESEvent> getEvents(EventLogFilter theFilter) {
+    if (!theFilter.includesTrace(getLastStored())) {
+      return new ArrayList<>();
+    }
+    List<XESEvent> events = getEvents();
+    if (!theFilter.isEmpty()) {
+      events.removeIf(event -> !theFilter.includes(event.getTimestamp()));
+    }
+    return events;
+  }
+
+  /**
+   * Copies the events that are in the time window of the filter into the buffer, without allocating anything once
+   * the buffer is large enough. Nothing is copied if the trace did not change after the continuation token.
+   */
+  public synchronized void copyEvents(EventLogFilter theFilter, Events theEvents) {
+    theEvents.ensureCapacity(mySize);
+    theEvents.myValues = myValues;
+    if (!theFilter.includesTrace(myLastStored)) {
+      theEvents.mySize = 0;
+      return;
+    }
+    int size = 0;
+    for (int i = 0; i < mySize; i++) {
+      if (theFilter.isEmpty() || theFilter.includes(myTimestamps[i])) {
+        theEvents.myTimestamps[size] = myTimestamps[i];
+        theEvents.myActivities[size] = myActivities[i];
+        theEvents.myTransitions[size] = myTransitions[i];
+        theEvents.myResources[size] = myResources[i];
+        size++;
+      }
+    }
+    theEvents.mySize = size;
+  }
+
+  private XESEvent toEvent(int theIndex) {
+    return new XESEvent(myValues.get(myActivities[theIndex]), myValues.get(myTransitions[theIndex]),
+      new Date(myTimestamps[theIndex]), myValues.get(myResources[theIndex]));
+  }
+
+  /**
+   * Activities, lifecycle transitions and resources of the traces of one log, each kept once. Released together with
+   * the log, so resources of cases that are gone do not pile up.
+   */
+  public static class Values {
+
+    private final Map<String, Integer> myIds = new ConcurrentHashMap<>();
+    private volatile String[] myValues = new String[64];
+
+    private int intern(String theValue) {
+      if (theValue == null) {
+        return NO_VALUE;
+      }
+      Integer id = myIds.get(theValue);
+      return id != null ? id : internNew(theValue);
+    }
+
+    private synchronized int internNew(String theValue) {
+      Integer id = myIds.get(theValue);
+      if (id != null) {
+        return id;
+      }
+      int newId = myIds.size();
+      String[] values = myValues;
+      if (newId == values.length) {
+        values = Arrays.copyOf(values, newId * 2);
+      }
+      values[newId] = theValue;
+      // published before the id, so every reader that got the id finds the value
+      myValues = values;
+      myIds.put(theValue, newId);
+      return newId;
+    }
+
+    private String get(int theId) {
+      return theId == NO_VALUE ? null : myValues[theId];
+    }
+
+    /**
+     * @return number of distinct values
+     */
+    public int size() {
+      return myIds.size();
+    }
+  }
+
+  /**
+   * Reusable primitive copy of the events of a trace, see {@link #copyEvents}
+   */
+  public static class Events {
+
+    private long[] myTimestamps = new long[0];
+    private int[] myActivities = new int[0];
+    private int[] myTransitions = new int[0];
+    private int[] myResources = new int[0];
+    private int mySize;
+    private Values myValues;
+
+    private void ensureCapacity(int theCapacity) {
+      if (myTimestamps.length < theCapacity) {
+        int capacity = Math.max(theCapacity, myTimestamps.length * 2);
+        myTimestamps = new long[capacity];
+        myActivities = new int[capacity];
+        myTransitions = new int[capacity];
+        myResources = new int[capacity];
+      }
+    }
+
+    public int size() {
+      return mySize;
+    }
+
+    public long getTimestamp(int theIndex) {
+      return myTimestamps[theIndex];
+    }
+
+    public String getActivity(int theIndex) {
+      return myValues.get(myActivities[theIndex]);
+    }
+
+    public String getTransition(int theIndex) {
+      return myValues.get(myTransitions[theIndex]);
+    }
+
+    public String getResource(int theIndex) {
+      return myValues.get(myResources[theIndex]);
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package ca.uhn.fhir.jpa.starter;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Variants of an event log: the distinct activity sequences of its cases, how many cases follow each of them and a
+ * few example cases.
+ * <p>
+ * A case is reduced to the sequence of its activity ids, fingerprinted with a rolling hash and counted in a
+ * {@link LongIntHashMap} from fingerprint to variant. Only one sequence of ids is kept per variant, so memory grows
+ * with the number of variants, not with the number of cases. Fingerprints are verified against the kept sequence, a
+ * collision moves the variant to the next fingerprint. Large logs are split into chunks of traces whose variants are
+ * counted in parallel and merged.
+ */
+public class TraceVariants {
+
+  /**
+   * Number of case ids kept per variant
+   */
+  public static final int EXAMPLE_CASES = 3;
+
+  private static final long PRIME = 0x100000001B3L;
+
+  private final String myName;
+  private final ActivityIds myActivityIds;
+  private final LongIntHashMap myVariantsByFingerprint = new LongIntHashMap();
+  private final List<int[]> mySequences = new ArrayList<>();
+  private final List<String[]> myExampleCases = new ArrayList<>();
+  private long[] myCounts = new long[16];
+  private long myTraceCount;
+  private int[] mySequence = new int[16];
+  // reused for every trace added
+  private final Trace.Events myEvents = new Trace.Events();
+
+  private TraceVariants(String theName, ActivityIds theActivityIds) {
+    myName = theName;
+    myActivityIds = theActivityIds;
+  }
+
+  /**
+   * Counts the variants of all traces in the log, only the events in the time window of the filter are considered
+   */
+  public static TraceVariants of(EventLog theEventLog, EventLogFilter theFilter) {
+    String name = theEventLog.getName();
+    // shared by all workers, so the same sequence has the same fingerprint everywhere
+    ActivityIds activityIds = new ActivityIds(ActivityMapping.getConfigured().getActivities());
+    return new ArrayList<>(theEventLog.getTraces()).parallelStream().collect(
+      () -> new TraceVariants(name, activityIds),
+      (variants, trace) -> variants.addTrace(trace, theFilter),
+      TraceVariants::merge);
+  }
+
+  /**
+   * Adds the events of the trace that are in the time window of the filter
+   */
+  public void addTrace(Trace theTrace, EventLogFilter theFilter) {
+    theTrace.copyEvents(theFilter, myEvents);
+    addTrace(theTrace.getCaseId(), myEvents);
+  }
+
+  /**
+   * Adds the events of one case, they are ordered by their timestamp
+   */
+  public void addTrace(String theCaseId, Trace.Events theEvents) {
+    if (theEvents.size() == 0) {
+      return;
+    }
+    if (mySequence.length < theEvents.size()) {
+      mySequence = new int[Math.max(theEvents.size(), mySequence.length * 2)];
+    }
+    for (int i = 0; i < theEvents.size(); i++) {
+      mySequence[i] = myActivityIds.get(theEvents.getActivity(i));
+    }
+    myTraceCount++;
+    int variant = getVariant(mySequence, theEvents.size());
+    myCounts[variant]++;
+    addExampleCase(variant, theCaseId);
+  }
+
+  /**
+   * Adds all variants of the other instance to this one, both have to be created by the same {@link #of} call
+   */
+  public void merge(TraceVariants theOther) {
+    for (int other = 0; other < theOther.mySequences.size(); other++) {
+      int[] sequence = theOther.mySequences.get(other);
+      int variant = getVariant(sequence, sequence.length);
+      myCounts[variant] += theOther.myCounts[other];
+      for (String caseId : theOther.myExampleCases.get(other)) {
+        if (caseId != null) {
+          addExampleCase(variant, caseId);
+        }
+      }
+    }
+    myTraceCount += theOther.myTraceCount;
+  }
+
+  /**
+   * @return index of the variant of the sequence, a new variant is added if there is none yet
+   */
+  private int getVariant(int[] theSequence, int theLength) {
+    long fingerprint = fingerprint(theSequence, theLength);
+    while (true) {
+      int variant = myVariantsByFingerprint.get(fingerprint);
+      if (variant < 0) {
+        variant = mySequences.size();
+        mySequences.add(Arrays.copyOf(theSequence, theLength));
+        myExampleCases.add(new String[EXAMPLE_CASES]);
+        if (variant == myCounts.length) {
+          myCounts = Arrays.copyOf(myCounts, variant * 2);
+        }
+        myVariantsByFingerprint.put(fingerprint, variant);
+        return variant;
+      }
+      if (isSameSequence(theSequence, theLength, mySequences.get(variant))) {
+        return variant;
+      }
+      // collision with a different sequence, the next fingerprint is derived the same way everywhere
+      fingerprint = fingerprint * PRIME + 1;
+    }
+  }
+
+  private static boolean isSameSequence(int[] theSequence, int theLength, int[] theOther) {
+    if (theLength != theOther.length) {
+      return false;
+    }
+    for (int i = 0; i < theLength; i++) {
+      if (theSequence[i] != theOther[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void addExampleCase(int theVariant, String theCaseId) {
+    String[] cases = myExampleCases.get(theVariant);
+    for (int i = 0; i < cases.length; i++) {
+      if (cases[i] == null) {
+        cases[i] = theCaseId;
+        return;
+      }
+    }
+  }
+
+  private static long fingerprint(int[] theSequence, int theLength) {
+    // FNV-1a over the ids, every id is mixed in as a whole
+    long hash = 0xCBF29CE484222325L;
+    for (int i = 0; i < theLength; i++) {
+      hash = (hash ^ theSequence[i]) * PRIME;
+    }
+    return hash;
+  }
+
+  public String getName() {
+    return myName;
+  }
+
+  public long getTraceCount() {
+    return myTraceCount;
+  }
+
+  public int getVariantCount() {
+    return mySequences.size();
+  }
+
+  /**
+   * @return indexes of the most frequent variants, most frequent first
+   */
+  public List<Integer> getTopVariants(int theLimit) {
+    // ties are ordered by the shorter, then the lexicographically smaller sequence of ids
+    // the limit is requested by the client, it does not size anything
+    PriorityQueue<Integer> top = new PriorityQueue<>(Math.max(1, Math.min(theLimit, mySequences.size())), (a, b) -> -compareVariants(a, b));
+    for (int variant = 0; variant < mySequences.size(); variant++) {
+      top.add(variant);
+      if (top.size() > theLimit) {
+        top.poll();
+      }
+    }
+    List<Integer> variants = new ArrayList<>(top);
+    variants.sort(this::compareVariants);
+    return variants;
+  }
+
+  private int compareVariants(int theA, int theB) {
+    int result = Long.compare(myCounts[theB], myCounts[theA]);
+    if (result == 0) {
+      result = Integer.compare(mySequences.get(theA).length, mySequences.get(theB).length);
+    }
+    for (int i = 0; result == 0 && i < mySequences.get(theA).length; i++) {
+      result = Integer.compare(mySequences.get(theA)[i], mySequences.get(theB)[i]);
+    }
+    return result;
+  }
+
+  public long getCount(int theVariant) {
+    return myCounts[theVariant];
+  }
+
+  public List<String> getActivities(int theVariant) {
+    List<String> activities = new ArrayList<>();
+    for (int activity : mySequences.get(theVariant)) {
+      activities.add(myActivityIds.getActivity(activity));
+    }
+    return activities;
+  }
+
+  public List<String> getExampleCases(int theVariant) {
+    List<String> cases = new ArrayList<>();
+    for (String caseId : myExampleCases.get(theVariant)) {
+      if (caseId != null) {
+        cases.add(caseId);
+      }
+    }
+    Collections.sort(cases);
+    return cases;
+  }
+
+  /**
+   * Writes the most frequent variants as JSON
+   *
+   * @param theLimit maximum number of variants written
+   */
+  public void writeJson(Writer theWriter, int theLimit) throws IOException {
+    JsonWriter json = new JsonWriter(theWriter);
+    json.setIndent("  ");
+    json.beginObject();
+    json.name("name").value(myName);
+    json.name("traces").value(myTraceCount);
+    json.name("variantCount").value(mySequences.size());
+    json.name("variants").beginArray();
+    for (int variant : getTopVariants(theLimit)) {
+      json.beginObject();
+      json.name("count").value(myCounts[variant]);
+      json.name("activities").beginArray();
+      for (String activity : getActivities(variant)) {
+        json.value(activity);
+      }
+      json.endArray();
+      json.name("cases").beginArray();
+      for (String caseId : getExampleCases(variant)) {
+        json.value(caseId);
+      }
+      json.endArray();
+      json.endObject();
+    }
+    json.endArray();
+    json.endObject();
+    json.flush();
+  }
+
+  /**
+   * Interns activity names to dense ids, starting with the activities of the mapping
+   */
+  private static class ActivityIds {
+
+    private final Map<String, Integer> myIds = new ConcurrentHashMap<>();
+    private final Map<Integer, String> myActivities = new ConcurrentHashMap<>();
+    private final AtomicInteger myNextId = new AtomicInteger();
+
+    ActivityIds(List<String> theActivities) {
+      for (String activity : theActivities) {
+        get(activity);
+      }
+    }
+
+    int get(String theActivity) {
+      Integer id = myIds.get(theActivity);
+      if (id != null) {
+        return id;
+      }
+      // activities that are no longer part of the mapping but still in the log
+      return myIds.computeIfAbsent(theActivity, activity -> {
+        int newId = myNextId.getAndIncrement();
+        myActivities.put(newId, activity);
+        return newId;
+      });
+    }
+
+    String getActivity(int theId) {
+      return myActivities.get(theId);
+    }
+  }
+}
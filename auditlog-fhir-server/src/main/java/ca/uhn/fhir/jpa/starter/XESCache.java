@@ -0,0 +1,120 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Size bounded disk cache of rendered XES logs. There is at most one entry per PlanDefinition, tagged with the
+ * validator the log was rendered for. When the cache grows beyond its maximum size the least recently used
+ * entries are evicted.
+ * <p>
+ * The cache is not persistent, files left over from a previous run are deleted on startup.
+ */
+public class XESCache {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(XESCache.class);
+
+  private final File myDirectory;
+  private final long myMaximumSize;
+  private final LinkedHashMap<String, Entry> myEntries = new LinkedHashMap<>(16, 0.75f, true);
+  private long mySize;
+
+  /**
+   * @param theDirectory   directory the rendered logs are kept in
+   * @param theMaximumSize maximum size of all cached logs in bytes
+   */
+  public XESCache(File theDirectory, long theMaximumSize) {
+    myDirectory = theDirectory;
+    myMaximumSize = theMaximumSize;
+
+    if (!myDirectory.isDirectory() && !myDirectory.mkdirs()) {
+      throw new IllegalStateException("Could not create XES cache directory " + myDirectory.getAbsolutePath());
+    }
+    File[] leftovers = myDirectory.listFiles((dir, name) -> name.endsWith(".xes") || name.endsWith(".tmp"));
+    if (leftovers != null) {
+      for (File leftover : leftovers) {
+        delete(leftover);
+      }
+    }
+  }
+
+  /**
+   * @return the cached log or null if there is none for the validator
+   */
+  public synchronized File get(String theKey, String theValidator) {
+    Entry entry = myEntries.get(theKey);
+    return entry != null && entry.myValidator.equals(theValidator) ? entry.myFile : null;
+  }
+
+  /**
+   * @return an empty file in the cache directory a log can be rendered into before it is {@link #put(String, String, File) put}
+   */
+  public File createTempFile() throws IOException {
+    return File.createTempFile("xes-", ".tmp", myDirectory);
+  }
+
+  /**
+   * Adds a rendered log, replacing the previous log of the key. Logs bigger than the whole cache are dropped.
+   *
+   * @param theRenderedFile file created by {@link #createTempFile()}, it is moved into the cache
+   */
+  public synchronized void put(String theKey, String theValidator, File theRenderedFile) {
+    long size = theRenderedFile.length();
+    if (size > myMaximumSize) {
+      delete(theRenderedFile);
+      return;
+    }
+
+    File file = new File(myDirectory, UUID.randomUUID().toString() + ".xes");
+    try {
+      Files.move(theRenderedFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      ourLog.warn("Could not add rendered XES to the cache", e);
+      delete(theRenderedFile);
+      return;
+    }
+
+    remove(myEntries.remove(theKey));
+    myEntries.put(theKey, new Entry(theValidator, file, size));
+    mySize += size;
+
+    Iterator<Map.Entry<String, Entry>> leastRecentlyUsed = myEntries.entrySet().iterator();
+    while (mySize > myMaximumSize && leastRecentlyUsed.hasNext()) {
+      Entry evicted = leastRecentlyUsed.next().getValue();
+      leastRecentlyUsed.remove();
+      remove(evicted);
+    }
+  }
+
+  private void remove(Entry theEntry) {
+    if (theEntry != null) {
+      mySize -= theEntry.mySize;
+      // a request still streaming the file keeps its open handle
+      delete(theEntry.myFile);
+    }
+  }
+
+  static void delete(File theFile) {
+    if (theFile.exists() && !theFile.delete()) {
+      ourLog.warn("Could not delete {}", theFile.getAbsolutePath());
+    }
+  }
+
+  private static class Entry {
+    private final String myValidator;
+    private final File myFile;
+    private final long mySize;
+
+    Entry(String theValidator, File theFile, long theSize) {
+      myValidator = theValidator;
+      myFile = theFile;
+      mySize = theSize;
+    }
+  }
+}
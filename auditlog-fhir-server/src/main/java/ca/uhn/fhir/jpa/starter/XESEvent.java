@@ -0,0 +1,62 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.util.Date;
+
+/**
+ * Already mapped event of an event log. Holds only what ends up in the exported logs, so the parsed AuditEvent it was created
+ * from can be discarded right away.
+ */
+public class XESEvent {
+
+  private final String myActivity;
+  private final String myTransition;
+  private final Date myTimestamp;
+  private final String myResource;
+  private final String myId;
+
+  public XESEvent(String theActivity, String theTransition, Date theTimestamp) {
+    this(theActivity, theTransition, theTimestamp, null);
+  }
+
+  /**
+   * @param theResource reference to whoever executed the activity, may be null
+   */
+  public XESEvent(String theActivity, String theTransition, Date theTimestamp, String theResource) {
+    this(theActivity, theTransition, theTimestamp, theResource, null);
+  }
+
+  /**
+   * @param theResource reference to whoever executed the activity, may be null
+   * @param theId       id part of the AuditEvent the event was mapped from, may be null
+   */
+  public XESEvent(String theActivity, String theTransition, Date theTimestamp, String theResource, String theId) {
+    myActivity = theActivity;
+    myTransition = theTransition;
+    myTimestamp = theTimestamp;
+    myResource = theResource;
+    myId = theId;
+  }
+
+  public String getActivity() {
+    return myActivity;
+  }
+
+  public String getTransition() {
+    return myTransition;
+  }
+
+  public Date getTimestamp() {
+    return myTimestamp;
+  }
+
+  public String getResource() {
+    return myResource;
+  }
+
+  /**
+   * @return id part of the AuditEvent the event was mapped from, or null if it is not known
+   */
+  public String getId() {
+    return myId;
+  }
+}
@@ -0,0 +1,288 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.binstore.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.binstore.StoredDetails;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Runs asynchronous exports in the background. Every job renders its log into a gzip compressed temporary file and
+ * stores it as blob in the Binary storage of the server, from where it is downloaded once the job is complete.
+ * <p>
+ * The number of jobs rendering at the same time is limited by a semaphore, further jobs wait until a permit is free.
+ * Jobs are only kept in memory, finished jobs and their blobs are removed after the retention time.
+ */
+public class XESExportJobSvc {
+
+  public enum JobStatus {
+    SUBMITTED, RUNNING, COMPLETE, ERROR, CANCELLED
+  }
+
+  /**
+   * Writes the export of a job, called on a worker thread
+   */
+  public interface Export {
+    void write(OutputStream theOutputStream) throws IOException;
+  }
+
+  public static class Job {
+
+    private final String myId;
+    private final String myPlanDefinitionId;
+    private final String myRequest;
+    private final Date myCreated = new Date();
+    private JobStatus myStatus = JobStatus.SUBMITTED;
+    private Date myStatusTime = myCreated;
+    private String myBlobId;
+    private String myStatusMessage;
+    private Future<?> myFuture;
+
+    Job(String theId, String thePlanDefinitionId, String theRequest) {
+      myId = theId;
+      myPlanDefinitionId = thePlanDefinitionId;
+      myRequest = theRequest;
+    }
+
+    public String getId() {
+      return myId;
+    }
+
+    public String getPlanDefinitionId() {
+      return myPlanDefinitionId;
+    }
+
+    /**
+     * @return the kick-off request of the job
+     */
+    public String getRequest() {
+      return myRequest;
+    }
+
+    public Date getCreated() {
+      return myCreated;
+    }
+
+    public synchronized JobStatus getStatus() {
+      return myStatus;
+    }
+
+    public synchronized Date getStatusTime() {
+      return myStatusTime;
+    }
+
+    public synchronized String getStatusMessage() {
+      return myStatusMessage;
+    }
+
+    synchronized String getBlobId() {
+      return myBlobId;
+    }
+
+    IIdType getBinaryId() {
+      return new IdType("Binary", "xes-export-" + myId);
+    }
+
+    /**
+     * Changes the status unless the job already ended
+     *
+     * @return false if the job already ended
+     */
+    synchronized boolean setStatus(JobStatus theStatus, String theMessage) {
+      if (isEnded()) {
+        return false;
+      }
+      myStatus = theStatus;
+      myStatusMessage = theMessage;
+      myStatusTime = new Date();
+      return true;
+    }
+
+    synchronized boolean complete(String theBlobId) {
+      if (!setStatus(JobStatus.COMPLETE, null)) {
+        return false;
+      }
+      myBlobId = theBlobId;
+      return true;
+    }
+
+    synchronized boolean isEnded() {
+      return myStatus == JobStatus.COMPLETE || myStatus == JobStatus.ERROR || myStatus == JobStatus.CANCELLED;
+    }
+  }
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(XESExportJobSvc.class);
+
+  private final Map<String, Job> myJobs = new ConcurrentHashMap<>();
+  private final IBinaryStorageSvc myBinaryStorageSvc;
+  private final Semaphore myPermits;
+  private final long myRetentionMillis;
+  private final ExecutorService myExecutor;
+
+  /**
+   * @param theMaxConcurrentJobs number of jobs rendering at the same time
+   * @param theRetentionMillis   time finished jobs and their exports are kept
+   */
+  public XESExportJobSvc(IBinaryStorageSvc theBinaryStorageSvc, int theMaxConcurrentJobs, long theRetentionMillis) {
+    myBinaryStorageSvc = theBinaryStorageSvc;
+    myPermits = new Semaphore(Math.max(1, theMaxConcurrentJobs), true);
+    myRetentionMillis = theRetentionMillis;
+    AtomicInteger threadCount = new AtomicInteger();
+    myExecutor = Executors.newCachedThreadPool(r -> {
+      Thread thread = new Thread(r, "xes-export-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Queues a new export
+   *
+   * @param thePlanDefinitionId PlanDefinition the log is exported for
+   * @param theRequest          kick-off request, reported back in the job manifest
+   * @param theExport           writes the uncompressed export
+   */
+  public Job submit(String thePlanDefinitionId, String theRequest, Export theExport) {
+    purgeExpiredJobs();
+    Job job = new Job(UUID.randomUUID().toString(), thePlanDefinitionId, theRequest);
+    myJobs.put(job.getId(), job);
+    synchronized (job) {
+      job.myFuture = myExecutor.submit(() -> run(job, theExport));
+    }
+    ourLog.info("Submitted XES export job {} for PlanDefinition/{}", job.getId(), thePlanDefinitionId);
+    return job;
+  }
+
+  /**
+   * @return the job or null if it does not exist (anymore)
+   */
+  public Job getJob(String theJobId) {
+    purgeExpiredJobs();
+    return theJobId != null ? myJobs.get(theJobId) : null;
+  }
+
+  /**
+   * Cancels the job and deletes its export. Running jobs are interrupted.
+   *
+   * @return false if the job does not exist
+   */
+  public boolean cancel(String theJobId) {
+    Job job = theJobId != null ? myJobs.remove(theJobId) : null;
+    if (job == null) {
+      return false;
+    }
+    Future<?> future;
+    synchronized (job) {
+      job.setStatus(JobStatus.CANCELLED, "Cancelled by client");
+      future = job.myFuture;
+    }
+    if (future != null) {
+      future.cancel(true);
+    }
+    expungeExport(job);
+    ourLog.info("Cancelled XES export job {}", theJobId);
+    return true;
+  }
+
+  /**
+   * Writes the gzip compressed export of a complete job
+   *
+   * @return false if the job has no export (anymore)
+   */
+  public boolean writeExport(Job theJob, OutputStream theOutputStream) throws IOException {
+    String blobId = theJob.getBlobId();
+    return blobId != null && myBinaryStorageSvc.writeBlob(theJob.getBinaryId(), blobId, theOutputStream);
+  }
+
+  public void shutdown() {
+    myExecutor.shutdownNow();
+  }
+
+  private void run(Job theJob, Export theExport) {
+    try {
+      myPermits.acquire();
+    } catch (InterruptedException e) {
+      // cancelled while waiting for a permit
+      Thread.currentThread().interrupt();
+      return;
+    }
+
+    File file = null;
+    try {
+      if (!theJob.setStatus(JobStatus.RUNNING, null)) {
+        return;
+      }
+      file = File.createTempFile("xes-export-", ".xes.gz");
+      try (OutputStream outputStream = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+        theExport.write(outputStream);
+      }
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+
+      StoredDetails details;
+      try (InputStream inputStream = new FileInputStream(file)) {
+        details = myBinaryStorageSvc.storeBlob(theJob.getBinaryId(), null, "application/gzip", inputStream);
+      }
+      if (theJob.complete(details.getBlobId())) {
+        ourLog.info("XES export job {} completed, {} bytes stored", theJob.getId(), details.getBytes());
+      } else {
+        // cancelled while the export was stored
+        expungeExport(theJob, details.getBlobId());
+      }
+    } catch (Exception e) {
+      if (theJob.setStatus(JobStatus.ERROR, e.getMessage())) {
+        ourLog.error("XES export job " + theJob.getId() + " failed", e);
+      }
+    } finally {
+      myPermits.release();
+      if (file != null) {
+        XESCache.delete(file);
+      }
+    }
+  }
+
+  private void purgeExpiredJobs() {
+    long expiredBefore = System.currentTimeMillis() - myRetentionMillis;
+    for (Iterator<Job> iterator = myJobs.values().iterator(); iterator.hasNext(); ) {
+      Job job = iterator.next();
+      if (job.isEnded() && job.getStatusTime().getTime() < expiredBefore) {
+        iterator.remove();
+        expungeExport(job);
+      }
+    }
+  }
+
+  private void expungeExport(Job theJob) {
+    String blobId = theJob.getBlobId();
+    if (blobId != null) {
+      expungeExport(theJob, blobId);
+    }
+  }
+
+  private void expungeExport(Job theJob, String theBlobId) {
+    try {
+      myBinaryStorageSvc.expungeBlob(theJob.getBinaryId(), theBlobId);
+    } catch (Exception e) {
+      ourLog.warn("Could not delete export of XES export job {}", theJob.getId(), e);
+    }
+  }
+}
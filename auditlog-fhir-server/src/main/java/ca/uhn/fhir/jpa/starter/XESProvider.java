@@ -1,198 +1,572 @@
 package ca.uhn.fhir.jpa.starter;
 
-import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
-import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
-import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.ReferenceAndListParam;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.google.gson.stream.JsonWriter;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.AuditEvent;
-import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.StringType;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
- * Provider that adds operations for retrieving XES
+ * Provider that adds operations for retrieving XES and other event log formats
  *
  * @author Oliver Krauss on 06.08.2020
  */
 public class XESProvider implements IResourceProvider {
 
   /**
-   * A registry of data access objects used to talk to the back end data store
+   * Materialised event logs per PlanDefinition
    */
   @Autowired
-  IFhirResourceDao<AuditEvent> myAuditEventDao;
+  EventLogStore myEventLogStore;
 
-  private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(MyConsentService.class);
+  /**
+   * Background jobs of asynchronous exports
+   */
+  @Autowired
+  XESExportJobSvc myXESExportJobSvc;
+
+  @Autowired
+  FhirContext myFhirContext;
+
+  /**
+   * Renders the traces on the bounded pool shared with the analyses
+   */
+  @Autowired
+  XESTraceRenderer myTraceRenderer;
+
+  private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(XESProvider.class);
 
   /**
-   * Returns XES with the given request
+   * Response header holding the token to pass as <code>_since</code> to get the next delta
+   */
+  public static final String CONTINUATION_TOKEN_HEADER = "X-Continuation-Token";
+
+  /**
+   * Response header describing the state of a running asynchronous export
+   */
+  public static final String PROGRESS_HEADER = "X-Progress";
+
+  private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+  private final XESCache myXESCache = HapiProperties.getXesCacheEnabled()
+    ? new XESCache(new File(HapiProperties.getXesCacheDirectory()), HapiProperties.getXesCacheMaxSizeMb() * 1024L * 1024L)
+    : null;
+
+  /**
+   * Returns XES with the given request. The log is streamed to the client trace by trace, as no content length is
+   * known up front the container answers with chunked transfer encoding.
+   * <p>
+   * Every response carries a continuation token in the {@link #CONTINUATION_TOKEN_HEADER} header. Passing it as
+   * <code>_since</code> to the next call only exports the traces that got new events in the meantime, each one
+   * complete, so clients can replace the traces that changed since their last export. The token lies
+   * <code>xes.delta.safety_margin_ms</code> in the past, traces that changed shortly before an export are exported
+   * again by the next delta. Deleted AuditEvents are not reflected in a delta, see
+   * {@link EventLogFilter#newContinuationToken(long, long)}.
+   * <p>
+   * The response is compressed on the fly if the client accepts gzip. With <code>_format=xes.gz</code> the log is
+   * returned as a <code>.xes.gz</code> file download instead, which ProM and PM4Py can load directly.
+   * <p>
+   * Complete logs (no time window) carry an ETag derived from the state of the stored log of the PlanDefinition,
+   * see {@link EventLogStore#getValidator(String)}, and are kept in a disk cache if it is enabled. A request with a
+   * matching <code>If-None-Match</code> is answered with 304 without rendering the log, an unchanged log is served
+   * from the cache. Without the event log store there is no ETag.
+   * <p>
+   * Large logs can be exported asynchronously with the header <code>Prefer: respond-async</code>, like a FHIR
+   * bulk data export. The request is answered with 202 and a <code>Content-Location</code> pointing to
+   * <code>$xes-poll-status</code>, the log is rendered in the background and stored in Binary storage.
    *
    * @param thePlandefinitionReference reference to plandefinition which is used to retrieve a list of AudtEvents
+   * @param theStart                   only events recorded at or after this date are exported
+   * @param theEnd                     only events recorded at or before this date are exported
+   * @param theSince                   continuation token of a previous export
+   * @param theRequestDetails          request, used for the status URL of asynchronous exports
+   * @param theServletRequest          request, used for the requested format and encoding
    * @param theServletResponse         XES data as response
    * @throws IOException
    */
   @Operation(name = "$xes", manualResponse = true, manualRequest = true, idempotent = true)
-  public void xesTypeOperation(@OperationParam(name = "plandefinition") ReferenceParam thePlandefinitionReference, HttpServletResponse theServletResponse) throws IOException {
-    if (
-      thePlandefinitionReference == null ||
-        thePlandefinitionReference.getResourceType() == null ||
-        !thePlandefinitionReference.getResourceType().equals("PlanDefinition")) {
-      logger.error("$xes operation called with invalid resource type parameter.");
-      theServletResponse.setStatus(400);
-    } else {
+  public void xesTypeOperation(@OperationParam(name = "plandefinition") ReferenceParam thePlandefinitionReference,
+                               @OperationParam(name = "start") DateParam theStart,
+                               @OperationParam(name = "end") DateParam theEnd,
+                               @OperationParam(name = "_since") DateParam theSince,
+                               ServletRequestDetails theRequestDetails,
+                               HttpServletRequest theServletRequest,
+                               HttpServletResponse theServletResponse) throws IOException {
+    EventLogFilter filter = EventLogFilter.of(theStart, theEnd, theSince);
+
+    if (isValidRequest("$xes", thePlandefinitionReference, filter, theServletResponse)) {
+      // taken before the log is read, events stored while exporting are part of the next delta
+      String continuationToken = new InstantType(EventLogFilter.newContinuationToken()).getValueAsString();
+      String planDefinitionId = thePlandefinitionReference.getIdPart();
+
+      if (prefersAsync(theServletRequest.getHeader("Prefer"))) {
+        XESExportJobSvc.Job job = myXESExportJobSvc.submit(planDefinitionId, theRequestDetails.getCompleteUrl(),
+          outputStream -> writeXES(planDefinitionId, filter, outputStream));
+        theServletResponse.setStatus(202);
+        theServletResponse.setHeader("Content-Location", getJobUrl(theRequestDetails, "$xes-poll-status", job));
+        theServletResponse.setHeader(CONTINUATION_TOKEN_HEADER, continuationToken);
+        return;
+      }
+
       theServletResponse.setStatus(200);
-      theServletResponse.setContentType("text/plain");
+      theServletResponse.setHeader(CONTINUATION_TOKEN_HEADER, continuationToken);
+
+      // complete logs can be validated by the client, taken before the log is rendered
+      String validator = filter.isEmpty() ? myEventLogStore.getValidator(planDefinitionId) : null;
+      String eTag = validator != null ? "W/\"" + validator + "\"" : null;
+      if (eTag != null) {
+        theServletResponse.setHeader("ETag", eTag);
+        theServletResponse.setHeader("Cache-Control", "no-cache");
+        if (matchesETag(theServletRequest.getHeader("If-None-Match"), eTag)) {
+          theServletResponse.setStatus(304);
+          return;
+        }
+      }
+
+      if (eTag == null || myXESCache == null) {
+        try (OutputStream outputStream = openOutputStream(theServletRequest, theServletResponse, "text/plain", "xes", planDefinitionId)) {
+          writeXES(planDefinitionId, filter, outputStream);
+        }
+        return;
+      }
 
-      theServletResponse.getWriter().write(generateXES(thePlandefinitionReference));
-      theServletResponse.getWriter().close();
+      // complete logs are cached
+      File cached = myXESCache.get(planDefinitionId, eTag);
+      if (cached != null) {
+        try (InputStream inputStream = new FileInputStream(cached);
+             OutputStream outputStream = openOutputStream(theServletRequest, theServletResponse, "text/plain", "xes", planDefinitionId)) {
+          IOUtils.copy(inputStream, outputStream);
+          return;
+        } catch (FileNotFoundException e) {
+          // evicted in the meantime, render it again
+          logger.debug("Cached XES of PlanDefinition/{} was evicted before it could be read", planDefinitionId);
+        }
+      }
+
+      File rendered = myXESCache.createTempFile();
+      try {
+        try (OutputStream fileStream = new BufferedOutputStream(new FileOutputStream(rendered));
+             OutputStream outputStream = new TeeOutputStream(openOutputStream(theServletRequest, theServletResponse, "text/plain", "xes", planDefinitionId), fileStream)) {
+          writeXES(planDefinitionId, filter, outputStream);
+        }
+        myXESCache.put(planDefinitionId, eTag, rendered);
+      } finally {
+        XESCache.delete(rendered);
+      }
     }
   }
 
   /**
-   * Simple helper function that generates the XES. As the functionality is currently "in motion" with several open change requests in FHIR we are
-   * String concatenating instead of a template engine.
+   * Returns the XES logs of several PlanDefinitions as zip archive with one <code>PlanDefinition-[id].xes</code>
+   * entry per PlanDefinition. The logs that are not in memory yet are built in a single pass over the AuditEvents,
+   * which are partitioned by the PlanDefinition they are based on while they are read. The archive is streamed to
+   * the client entry by entry.
+   * <p>
+   * PlanDefinitions are given as repeated or comma separated <code>plandefinition</code> parameters, without any the
+   * logs of all PlanDefinitions with AuditEvents are returned. Time window and continuation token work like for
+   * <code>$xes</code>.
    *
-   * @return XES XML file as plain text.
-   */
-  private String generateXES(ReferenceParam thePlandefinitionReference) {
-
-    Map<String, List<AuditEvent>> tracesPerPatient = new HashMap<>();
-
-    IBundleProvider search = myAuditEventDao.search(SearchParameterMap.newSynchronous());
-    List<IBaseResource> resources = search.getResources(0, search.size());
-    resources.forEach(x -> {
-      if (x instanceof AuditEvent) {
-        AuditEvent event = (AuditEvent) x;
-        // NOTE: Currently we only accept The Radiology Workflow
-        String caseId;
-        if (
-          event.hasExtension("https://fhirserver.com/extensions/auditevent-basedon") &&
-            ((Reference) event.getExtensionByUrl("https://fhirserver.com/extensions/auditevent-basedon").getValue()).getReference().equals("PlanDefinition/" + thePlandefinitionReference.getIdPart()) &&
-            event.hasExtension("https://fhirserver.com/extensions/auditevent-encounter") &&
-            (caseId = ((Reference) event.getExtensionByUrl("https://fhirserver.com/extensions/auditevent-encounter").getValue()).getReference()) != null) {
-          if (!tracesPerPatient.containsKey(caseId)) {
-            tracesPerPatient.put(caseId, new LinkedList<>());
-          }
-          tracesPerPatient.get(caseId).add(event);
+   * @param thePlandefinitionReferences references to the plandefinitions, all if not given
+   * @param theStart                    only events recorded at or after this date are exported
+   * @param theEnd                      only events recorded at or before this date are exported
+   * @param theSince                    continuation token of a previous export
+   * @param theServletResponse          zip archive as response
+   * @throws IOException
+   */
+  @Operation(name = "$xes-archive", manualResponse = true, manualRequest = true, idempotent = true)
+  public void xesArchiveOperation(@OperationParam(name = "plandefinition") ReferenceAndListParam thePlandefinitionReferences,
+                                  @OperationParam(name = "start") DateParam theStart,
+                                  @OperationParam(name = "end") DateParam theEnd,
+                                  @OperationParam(name = "_since") DateParam theSince,
+                                  HttpServletResponse theServletResponse) throws IOException {
+    EventLogFilter filter = EventLogFilter.of(theStart, theEnd, theSince);
 
+    Set<String> planDefinitionIds = null;
+    if (thePlandefinitionReferences != null) {
+      planDefinitionIds = new LinkedHashSet<>();
+      for (ReferenceOrListParam references : thePlandefinitionReferences.getValuesAsQueryTokens()) {
+        for (ReferenceParam reference : references.getValuesAsQueryTokens()) {
+          if (!isValidRequest("$xes-archive", reference, filter, theServletResponse)) {
+            return;
+          }
+          planDefinitionIds.add(reference.getIdPart());
         }
       }
-    });
+    } else if (!filter.isValid()) {
+      logger.error("$xes-archive operation called with a start date after the end date.");
+      theServletResponse.setStatus(400);
+      return;
+    }
 
+    // taken before the logs are read, events stored while exporting are part of the next delta
+    String continuationToken = new InstantType(EventLogFilter.newContinuationToken()).getValueAsString();
+    Map<String, EventLog> eventLogs = myEventLogStore.getEventLogs(planDefinitionIds, filter);
 
-    return "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n" +
-      "\n" +
-      "<log xes.version=\"1.0\" xes.features=\"\" openxes.version=\"1.0RC7\" xmlns=\"http://www.xes-standard.org/\">\n" +
-      "\t<extension name=\"Organizational\" prefix=\"org\" uri=\"http://www.xes-standard.org/org.xesext\"/>\n" +
-      "\t<extension name=\"Time\" prefix=\"time\" uri=\"http://www.xes-standard.org/time.xesext\"/>\n" +
-      "\t<extension name=\"Lifecycle\" prefix=\"lifecycle\" uri=\"http://www.xes-standard.org/lifecycle.xesext\"/>\n" +
-      "\t<extension name=\"Concept\" prefix=\"concept\" uri=\"http://www.xes-standard.org/concept.xesext\"/>\n" +
-      "\n" +
-      "\t<string key=\"concept:name\" value=\"PlanDefinition/" + thePlandefinitionReference.getIdPart() + "\"/>\n" +
-      "\n" +
-      tracesPerPatient.entrySet().stream().map(x -> trace(x.getKey(), x.getValue())).collect(Collectors.joining("\n")) +
-      "</log>\n";
+    theServletResponse.setStatus(200);
+    theServletResponse.setHeader(CONTINUATION_TOKEN_HEADER, continuationToken);
+    theServletResponse.setContentType("application/zip");
+    theServletResponse.setHeader("Content-Disposition", "attachment; filename=\"xes-logs.zip\"");
+    try (ZipOutputStream zipStream = new ZipOutputStream(new BufferedOutputStream(theServletResponse.getOutputStream(), GZIP_BUFFER_SIZE))) {
+      for (EventLog eventLog : eventLogs.values()) {
+        zipStream.putNextEntry(new ZipEntry("PlanDefinition-" + eventLog.getPlanDefinitionId() + ".xes"));
+        XESWriter writer = new XESWriter(zipStream);
+        writer.startLog(eventLog.getName());
+        myTraceRenderer.writeTraces(eventLog, filter, writer);
+        writer.endLog();
+        zipStream.closeEntry();
+      }
+    }
   }
 
   /**
-   * Creates one trace per patient
+   * Status of an asynchronous <code>$xes</code> export. Answers with 202 and the {@link #PROGRESS_HEADER} while the
+   * export is running and with 200 and a bulk data style manifest once it is complete. The <code>url</code> of the
+   * output points to <code>$xes-download</code>.
    *
-   * @param caseId patient case id
-   * @param events events for that patient
-   * @return trace string
+   * @param theJobId           id of the job, part of the status URL returned by the kick-off request
+   * @param theRequestDetails  request, used for the download URL
+   * @param theServletResponse status of the job as response
+   * @throws IOException
    */
-  private String trace(String caseId, List<AuditEvent> events) {
-    return "\t<trace>\n" +
-      "\t\t<string key=\"concept:name\" value=\"" + caseId + "\"/>\n" +
-      events.stream().map(this::mapEvent).collect(Collectors.joining("\n")) +
-      "\t</trace>\n\n";
-  }
+  @Operation(name = "$xes-poll-status", manualResponse = true, manualRequest = true, idempotent = true)
+  public void xesPollStatusOperation(@OperationParam(name = "_jobId") StringType theJobId,
+                                     ServletRequestDetails theRequestDetails,
+                                     HttpServletResponse theServletResponse) throws IOException {
+    XESExportJobSvc.Job job = myXESExportJobSvc.getJob(theJobId != null ? theJobId.getValue() : null);
+    if (job == null) {
+      theServletResponse.setStatus(404);
+      return;
+    }
 
-  /**
-   * Maps events to XES. This is completely un-reusable as we cheat by mapping KNOWN actions and Resources back to the correct task names
-   *
-   * @param x event to be mapped
-   * @return string of event
-   */
-  private String mapEvent(AuditEvent x) {
-    String event = "";
-
-    switch (x.getAction().name()) {
-      case "C":
-        switch (x.getEntityFirstRep().getWhat().getType()) {
-          case "Appointment":
-            event = "\t\t<event>\n" +
-              "\t\t\t<string key=\"concept:name\" value=\"Schedule Appointment\"/>\n" +
-              "\t\t\t<string key=\"lifecycle:transition\" value=\"complete\"/>\n" +
-              "\t\t\t<date key=\"time:timestamp\" value=\"" + DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(x.getRecorded().toInstant().atZone(ZoneId.systemDefault())) + "\"/>\n" +
-              "\t\t</event>";
-            break;
-          case "Media":
-            event = "\t\t<event>\n" +
-              "\t\t\t<string key=\"concept:name\" value=\"Diagnosis\"/>\n" +
-              "\t\t\t<string key=\"lifecycle:transition\" value=\"complete\"/>\n" +
-              "\t\t\t<date key=\"time:timestamp\" value=\"" + DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(x.getRecorded().toInstant().atZone(ZoneId.systemDefault())) + "\"/>\n" +
-              "\t\t</event>";
-            break;
-          case "DiagnosticReport":
-            event = "\t\t<event>\n" +
-              "\t\t\t<string key=\"concept:name\" value=\"Report Writing\"/>\n" +
-              "\t\t\t<string key=\"lifecycle:transition\" value=\"complete\"/>\n" +
-              "\t\t\t<date key=\"time:timestamp\" value=\"" + DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(x.getRecorded().toInstant().atZone(ZoneId.systemDefault())) + "\"/>\n" +
-              "\t\t</event>";
-            break;
-        }
+    switch (job.getStatus()) {
+      case SUBMITTED:
+      case RUNNING:
+        theServletResponse.setStatus(202);
+        theServletResponse.setHeader(PROGRESS_HEADER, "Export " + job.getStatus().name().toLowerCase()
+          + " since " + new InstantType(job.getStatusTime()).getValueAsString());
+        theServletResponse.setHeader("Retry-After", "10");
         break;
-      case "U":
-        switch (x.getEntityFirstRep().getWhat().getType()) {
-          case "Appointment":
-            event = "\t\t<event>\n" +
-              "\t\t\t<string key=\"concept:name\" value=\"Patient Admission\"/>\n" +
-              "\t\t\t<string key=\"lifecycle:transition\" value=\"complete\"/>\n" +
-              "\t\t\t<date key=\"time:timestamp\" value=\"" + DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(x.getRecorded().toInstant().atZone(ZoneId.systemDefault())) + "\"/>\n" +
-              "\t\t</event>";
-            break;
-          case "Procedure":
-            event = "\t\t<event>\n" +
-              "\t\t\t<string key=\"concept:name\" value=\"Radiological Examination\"/>\n" +
-              "\t\t\t<string key=\"lifecycle:transition\" value=\"complete\"/>\n" +
-              "\t\t\t<date key=\"time:timestamp\" value=\"" + DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(x.getRecorded().toInstant().atZone(ZoneId.systemDefault())) + "\"/>\n" +
-              "\t\t</event>";
-            break;
-          case "DiagnosticReport":
-            event = "\t\t<event>\n" +
-              "\t\t\t<string key=\"concept:name\" value=\"Report Attestation\"/>\n" +
-              "\t\t\t<string key=\"lifecycle:transition\" value=\"complete\"/>\n" +
-              "\t\t\t<date key=\"time:timestamp\" value=\"" + DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(x.getRecorded().toInstant().atZone(ZoneId.systemDefault())) + "\"/>\n" +
-              "\t\t</event>";
-            break;
+      case COMPLETE:
+        theServletResponse.setStatus(200);
+        theServletResponse.setContentType("application/json");
+        theServletResponse.setCharacterEncoding("UTF-8");
+        try (JsonWriter json = new JsonWriter(theServletResponse.getWriter())) {
+          json.setIndent("  ");
+          json.beginObject();
+          json.name("transactionTime").value(new InstantType(job.getCreated()).getValueAsString());
+          json.name("request").value(job.getRequest());
+          json.name("requiresAccessToken").value(false);
+          json.name("output").beginArray();
+          json.beginObject();
+          json.name("type").value("AuditEvent");
+          json.name("url").value(getJobUrl(theRequestDetails, "$xes-download", job));
+          json.endObject();
+          json.endArray();
+          json.name("error").beginArray().endArray();
+          json.endObject();
         }
         break;
-      case "E":
-        if (x.getEntityFirstRep().getDetailFirstRep().getValue().toString().endsWith("$fhirToCDA")) {
-          event = "\t\t<event>\n" +
-            "\t\t\t<string key=\"concept:name\" value=\"Report Transmission\"/>\n" +
-            "\t\t\t<string key=\"lifecycle:transition\" value=\"complete\"/>\n" +
-            "\t\t\t<date key=\"time:timestamp\" value=\"" + DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(x.getRecorded().toInstant().atZone(ZoneId.systemDefault())) + "\"/>\n" +
-            "\t\t</event>";
+      case ERROR:
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+          .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+          .setCode(OperationOutcome.IssueType.EXCEPTION)
+          .setDiagnostics("XES export failed: " + job.getStatusMessage());
+        theServletResponse.setStatus(500);
+        theServletResponse.setContentType("application/fhir+json");
+        theServletResponse.setCharacterEncoding("UTF-8");
+        try (Writer writer = theServletResponse.getWriter()) {
+          myFhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToWriter(outcome, writer);
         }
         break;
+      default:
+        theServletResponse.setStatus(404);
+    }
+  }
+
+  /**
+   * Downloads the log of a complete asynchronous <code>$xes</code> export. Compression works like for
+   * <code>$xes</code>, the stored log is already compressed and only decompressed for clients not accepting gzip.
+   * Answers with 404 if the job does not exist or is not complete and with 410 if its log is no longer stored.
+   *
+   * @param theJobId           id of the job
+   * @param theServletRequest  request, used for the requested format and encoding
+   * @param theServletResponse XES data as response
+   * @throws IOException
+   */
+  @Operation(name = "$xes-download", manualResponse = true, manualRequest = true, idempotent = true)
+  public void xesDownloadOperation(@OperationParam(name = "_jobId") StringType theJobId,
+                                   HttpServletRequest theServletRequest,
+                                   HttpServletResponse theServletResponse) throws IOException {
+    XESExportJobSvc.Job job = myXESExportJobSvc.getJob(theJobId != null ? theJobId.getValue() : null);
+    if (job == null || job.getStatus() != XESExportJobSvc.JobStatus.COMPLETE) {
+      theServletResponse.setStatus(404);
+      return;
+    }
+
+    theServletResponse.setStatus(200);
+    if ("xes.gz".equals(theServletRequest.getParameter("_format"))) {
+      theServletResponse.setContentType("application/gzip");
+      theServletResponse.setHeader("Content-Disposition", "attachment; filename=\"PlanDefinition-" + job.getPlanDefinitionId() + ".xes.gz\"");
+      if (!myXESExportJobSvc.writeExport(job, theServletResponse.getOutputStream())) {
+        exportGone(job, theServletResponse);
+      }
+      return;
+    }
+
+    theServletResponse.setContentType("text/plain");
+    theServletResponse.setCharacterEncoding("UTF-8");
+    theServletResponse.addHeader("Vary", "Accept-Encoding");
+    if (acceptsGzip(theServletRequest.getHeader("Accept-Encoding"))) {
+      theServletResponse.setHeader("Content-Encoding", "gzip");
+      if (!myXESExportJobSvc.writeExport(job, theServletResponse.getOutputStream())) {
+        exportGone(job, theServletResponse);
+      }
+      return;
+    }
+
+    // the blob can only be written to a stream, decompress it from a temporary copy
+    File compressed = File.createTempFile("xes-download-", ".xes.gz");
+    try {
+      boolean written;
+      try (OutputStream fileStream = new BufferedOutputStream(new FileOutputStream(compressed))) {
+        written = myXESExportJobSvc.writeExport(job, fileStream);
+      }
+      if (!written) {
+        exportGone(job, theServletResponse);
+        return;
+      }
+      try (InputStream inputStream = new GZIPInputStream(new FileInputStream(compressed), GZIP_BUFFER_SIZE)) {
+        IOUtils.copy(inputStream, theServletResponse.getOutputStream());
+      }
+    } finally {
+      XESCache.delete(compressed);
+    }
+  }
+
+  /**
+   * Cancels an asynchronous <code>$xes</code> export and deletes its log. Answers with 202, or 404 if the job does
+   * not exist (anymore). Only available as POST, a crawler or prefetching client must not cancel exports.
+   *
+   * @param theJobId           id of the job
+   * @param theServletResponse empty response
+   */
+  @Operation(name = "$xes-cancel", manualResponse = true, manualRequest = true)
+  public void xesCancelOperation(@OperationParam(name = "_jobId") StringType theJobId,
+                                 HttpServletResponse theServletResponse) {
+    theServletResponse.setStatus(myXESExportJobSvc.cancel(theJobId != null ? theJobId.getValue() : null) ? 202 : 404);
+  }
+
+  /**
+   * Answers with 410 after the blob of a complete job was removed, e.g. by the retention of the Binary storage.
+   * Nothing was written yet, so the headers of the download are reset.
+   */
+  private static void exportGone(XESExportJobSvc.Job theJob, HttpServletResponse theServletResponse) {
+    logger.warn("Log of XES export job {} is no longer stored", theJob.getId());
+    theServletResponse.reset();
+    theServletResponse.setStatus(410);
+  }
+
+  private static String getJobUrl(ServletRequestDetails theRequestDetails, String theOperation, XESExportJobSvc.Job theJob) {
+    return theRequestDetails.getServerBaseForRequest() + "/AuditEvent/" + theOperation + "?_jobId=" + theJob.getId();
+  }
+
+  /**
+   * @return true if the Prefer header asks for an asynchronous response
+   */
+  static boolean prefersAsync(String thePrefer) {
+    if (thePrefer == null) {
+      return false;
+    }
+    for (String preference : thePrefer.split(",")) {
+      if (preference.split(";")[0].trim().equalsIgnoreCase("respond-async")) {
+        return true;
+      }
     }
+    return false;
+  }
 
-    return event;
+  /**
+   * Writes the XES log of the PlanDefinition
+   */
+  void writeXES(String thePlanDefinitionId, EventLogFilter theFilter, OutputStream theOutputStream) throws IOException {
+    XESWriter writer = new XESWriter(theOutputStream);
+    // the header does not depend on the events, get it to the client before the log is loaded
+    writer.startLog("PlanDefinition/" + thePlanDefinitionId);
+    writer.flush();
+    myTraceRenderer.writeTraces(myEventLogStore.getEventLog(thePlanDefinitionId, theFilter), theFilter, writer);
+    writer.endLog();
+  }
+
+  /**
+   * Weak comparison of the If-None-Match header against the current entity tag
+   */
+  static boolean matchesETag(String theIfNoneMatch, String theETag) {
+    if (theIfNoneMatch == null) {
+      return false;
+    }
+    String opaqueTag = theETag.startsWith("W/") ? theETag.substring(2) : theETag;
+    for (String candidate : theIfNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.equals("*") || (candidate.startsWith("W/") ? candidate.substring(2) : candidate).equals(opaqueTag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the same event log as <code>$xes</code> as flat table, one row per event with the columns
+   * case_id, activity, lifecycle, timestamp and resource. Tools like pandas, DuckDB or Spark load such a table
+   * far faster than they parse XES. Rows are streamed trace by trace in the same order as <code>$xes</code>.
+   * <p>
+   * Time window, continuation token and compression work like for <code>$xes</code>, <code>_format=csv.gz</code>
+   * returns a compressed file download.
+   *
+   * @param thePlandefinitionReference reference to plandefinition which is used to retrieve a list of AudtEvents
+   * @param theStart                   only events recorded at or after this date are exported
+   * @param theEnd                     only events recorded at or before this date are exported
+   * @param theSince                   continuation token of a previous export
+   * @param theServletRequest          request, used for the requested format and encoding
+   * @param theServletResponse         CSV data as response
+   * @throws IOException
+   */
+  @Operation(name = "$eventlog", manualResponse = true, manualRequest = true, idempotent = true)
+  public void eventLogTypeOperation(@OperationParam(name = "plandefinition") ReferenceParam thePlandefinitionReference,
+                                    @OperationParam(name = "start") DateParam theStart,
+                                    @OperationParam(name = "end") DateParam theEnd,
+                                    @OperationParam(name = "_since") DateParam theSince,
+                                    HttpServletRequest theServletRequest,
+                                    HttpServletResponse theServletResponse) throws IOException {
+    EventLogFilter filter = EventLogFilter.of(theStart, theEnd, theSince);
+
+    if (isValidRequest("$eventlog", thePlandefinitionReference, filter, theServletResponse)) {
+      String continuationToken = new InstantType(EventLogFilter.newContinuationToken()).getValueAsString();
+
+      theServletResponse.setStatus(200);
+      theServletResponse.setHeader(CONTINUATION_TOKEN_HEADER, continuationToken);
+
+      try (OutputStream outputStream = openOutputStream(theServletRequest, theServletResponse, "text/csv", "csv", thePlandefinitionReference.getIdPart())) {
+        CSVEventLogWriter writer = new CSVEventLogWriter(outputStream);
+        writer.writeHeader();
+        writer.flush();
+        writer.writeTraces(myEventLogStore.getEventLog(thePlandefinitionReference.getIdPart(), filter), filter);
+        writer.flush();
+      }
+    }
+  }
+
+  /**
+   * Checks the parameters of an export and answers with 400 if they are invalid
+   *
+   * @return true if the export can be run
+   */
+  static boolean isValidRequest(String theOperation, ReferenceParam thePlandefinitionReference, EventLogFilter theFilter, HttpServletResponse theServletResponse) {
+    if (
+      thePlandefinitionReference == null ||
+        thePlandefinitionReference.getResourceType() == null ||
+        !thePlandefinitionReference.getResourceType().equals("PlanDefinition")) {
+      logger.error(theOperation + " operation called with invalid resource type parameter.");
+      theServletResponse.setStatus(400);
+      return false;
+    }
+    if (!theFilter.isValid()) {
+      logger.error(theOperation + " operation called with a start date after the end date.");
+      theServletResponse.setStatus(400);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Sets the content headers and returns the stream the log is written to. Compression happens while streaming,
+   * nothing is buffered apart from the deflater window.
+   *
+   * @param theContentType   content type of the uncompressed log
+   * @param theFileExtension file extension of the log, a <code>_format</code> of the extension plus <code>.gz</code>
+   *                         returns the log as compressed file download
+   */
+  private OutputStream openOutputStream(HttpServletRequest theServletRequest, HttpServletResponse theServletResponse, String theContentType, String theFileExtension, String thePlanDefinitionId) throws IOException {
+    if ((theFileExtension + ".gz").equals(theServletRequest.getParameter("_format"))) {
+      theServletResponse.setContentType("application/gzip");
+      theServletResponse.setHeader("Content-Disposition", "attachment; filename=\"PlanDefinition-" + thePlanDefinitionId + "." + theFileExtension + ".gz\"");
+      return new GZIPOutputStream(theServletResponse.getOutputStream(), GZIP_BUFFER_SIZE, true);
+    }
+
+    theServletResponse.setContentType(theContentType);
+    theServletResponse.setCharacterEncoding("UTF-8");
+    theServletResponse.addHeader("Vary", "Accept-Encoding");
+    if (acceptsGzip(theServletRequest.getHeader("Accept-Encoding"))) {
+      theServletResponse.setHeader("Content-Encoding", "gzip");
+      return new GZIPOutputStream(theServletResponse.getOutputStream(), GZIP_BUFFER_SIZE, true);
+    }
+    return theServletResponse.getOutputStream();
+  }
+
+  /**
+   * @return true if gzip is listed in the Accept-Encoding header and not excluded by a quality of zero or a malformed
+   * one
+   */
+  static boolean acceptsGzip(String theAcceptEncoding) {
+    if (theAcceptEncoding == null) {
+      return false;
+    }
+    for (String coding : theAcceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      if (parts[0].trim().equalsIgnoreCase("gzip")) {
+        for (int i = 1; i < parts.length; i++) {
+          String parameter = parts[i].trim();
+          if (parameter.startsWith("q=") && !isAcceptable(parameter.substring(2))) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return false if the quality value is 0 or malformed
+   */
+  private static boolean isAcceptable(String theQuality) {
+    try {
+      return Double.parseDouble(theQuality.trim()) > 0;
+    } catch (NumberFormatException e) {
+      return false;
+    }
   }
 
   @Override
@@ -0,0 +1,155 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Writes the traces of an {@link EventLog}. Traces are always emitted ordered by their case id, so the same log
+ * results in the same XES no matter how it is rendered. Shared by all operations that walk the traces of a log, the
+ * analyses of the {@link ProcessMiningProvider} run on the same bounded fork join pool, see {@link #compute}.
+ * <p>
+ * With more than one thread the traces are rendered concurrently on the pool. Every trace is
+ * rendered into its own buffer and the buffers are written to the response in order. Rendering happens in batches,
+ * while one batch is written the next one is already rendered, so only two batches are held in memory at a time.
+ */
+public class XESTraceRenderer {
+
+  private static final int TRACES_PER_THREAD_AND_BATCH = 64;
+
+  /**
+   * Every rendering thread reuses its buffer, writer and event copy, only the rendered trace itself is allocated
+   */
+  private static final ThreadLocal<TraceBuffer> ourTraceBuffers = ThreadLocal.withInitial(TraceBuffer::new);
+
+  private final ForkJoinPool myPool;
+  private final boolean myParallel;
+  private final int myBatchSize;
+
+  /**
+   * @param theThreads number of threads rendering traces and running analyses, with 1 traces are rendered on the
+   *                   calling thread
+   */
+  public XESTraceRenderer(int theThreads) {
+    myPool = new ForkJoinPool(Math.max(1, theThreads));
+    myParallel = theThreads > 1;
+    myBatchSize = Math.max(1, theThreads) * TRACES_PER_THREAD_AND_BATCH;
+  }
+
+  /**
+   * Writes all traces of the log that have at least one event in the time window of the filter
+   */
+  public void writeTraces(EventLog theEventLog, EventLogFilter theFilter, XESWriter theWriter) throws IOException {
+    List<Trace> traces = theEventLog.getSortedTraces();
+
+    if (!myParallel) {
+      Trace.Events events = new Trace.Events();
+      for (Trace trace : traces) {
+        writeTrace(trace, theFilter, events, theWriter);
+      }
+      return;
+    }
+
+    Future<List<byte[]>> pending = myPool.submit(() -> render(batch(traces, 0), theFilter));
+    for (int from = 0; from < traces.size(); from += myBatchSize) {
+      List<byte[]> rendered = await(pending);
+      int next = from + myBatchSize;
+      if (next < traces.size()) {
+        pending = myPool.submit(() -> render(batch(traces, next), theFilter));
+      }
+      for (byte[] trace : rendered) {
+        theWriter.writeRaw(trace);
+      }
+    }
+  }
+
+  /**
+   * Runs an analysis on the pool, parallel streams it uses run on the pool as well instead of the common pool
+   *
+   * @return result of the analysis, exceptions it throws are rethrown
+   */
+  public <T> T compute(Supplier<T> theAnalysis) {
+    try {
+      return myPool.submit(theAnalysis::get).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while analysing the event log", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new IllegalStateException("Could not analyse the event log", e.getCause());
+    }
+  }
+
+  public void shutdown() {
+    myPool.shutdown();
+  }
+
+  private List<Trace> batch(List<Trace> theTraces, int theFrom) {
+    return theTraces.subList(theFrom, Math.min(theFrom + myBatchSize, theTraces.size()));
+  }
+
+  /**
+   * Renders a batch, the parallel stream runs on the pool that executes this method
+   */
+  private List<byte[]> render(List<Trace> theBatch, EventLogFilter theFilter) {
+    return theBatch.parallelStream().map(trace -> {
+      try {
+        TraceBuffer buffer = ourTraceBuffers.get();
+        buffer.myBytes.reset();
+        writeTrace(trace, theFilter, buffer.myEvents, buffer.myWriter);
+        buffer.myWriter.flush();
+        return buffer.myBytes.toByteArray();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }).collect(Collectors.toList());
+  }
+
+  /**
+   * Writes the trace, traces without any event in the time window are left out
+   */
+  private static void writeTrace(Trace theTrace, EventLogFilter theFilter, Trace.Events theEvents, XESWriter theWriter) throws IOException {
+    theTrace.copyEvents(theFilter, theEvents);
+    if (theEvents.size() == 0) {
+      return;
+    }
+    theWriter.startTrace(theTrace.getCaseId());
+    for (int i = 0; i < theEvents.size(); i++) {
+      theWriter.event(theEvents.getActivity(i), theEvents.getTransition(i), theEvents.getTimestamp(i));
+    }
+    theWriter.endTrace();
+  }
+
+  private static List<byte[]> await(Future<List<byte[]>> theFuture) throws IOException {
+    try {
+      return theFuture.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while rendering XES traces");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw new IOException("Could not render XES traces", e.getCause());
+    }
+  }
+
+  private static class TraceBuffer {
+
+    private final ByteArrayOutputStream myBytes = new ByteArrayOutputStream();
+    private final XESWriter myWriter = new XESWriter(myBytes);
+    private final Trace.Events myEvents = new Trace.Events();
+  }
+}
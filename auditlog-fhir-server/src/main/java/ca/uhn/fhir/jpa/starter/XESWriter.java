@@ -0,0 +1,219 @@
+package ca.uhn.fhir.jpa.starter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Incremental XES serializer. The log header, every trace and every event are written to the underlying stream
+ * as soon as they are known, so the size of the log never has to fit into memory.
+ * <p>
+ * The XES is encoded as UTF-8 straight into a reusable buffer. The markup is pre-encoded, activities and transitions
+ * are encoded once and shared by all writers and timestamps are formatted by an {@link ISODateTimeFormatter}, so
+ * writing an event does not allocate anything. The buffer is only written to the stream when it is full or the
+ * writer is flushed.
+ */
+public class XESWriter {
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  /**
+   * Activities and transitions come from the mapping rules, so there are only a few of them
+   */
+  private static final Map<String, byte[]> ourEncodedValues = new ConcurrentHashMap<>();
+
+  private static final byte[] LOG_START = encode("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n\n" +
+    "<log xes.version=\"1.0\" xes.features=\"\" openxes.version=\"1.0RC7\" xmlns=\"http://www.xes-standard.org/\">" +
+    "\n\t<extension name=\"Organizational\" prefix=\"org\" uri=\"http://www.xes-standard.org/org.xesext\"/>" +
+    "\n\t<extension name=\"Time\" prefix=\"time\" uri=\"http://www.xes-standard.org/time.xesext\"/>" +
+    "\n\t<extension name=\"Lifecycle\" prefix=\"lifecycle\" uri=\"http://www.xes-standard.org/lifecycle.xesext\"/>" +
+    "\n\t<extension name=\"Concept\" prefix=\"concept\" uri=\"http://www.xes-standard.org/concept.xesext\"/>" +
+    "\n\n\t<string key=\"concept:name\" value=\"");
+  private static final byte[] LOG_NAME_END = encode("\"/>\n\n");
+  private static final byte[] TRACE_START = encode("\t<trace>\n\t\t<string key=\"concept:name\" value=\"");
+  private static final byte[] TRACE_NAME_END = encode("\"/>");
+  private static final byte[] EVENT_START = encode("\n\t\t<event>\n\t\t\t<string key=\"concept:name\" value=\"");
+  private static final byte[] EVENT_TRANSITION = encode("\"/>\n\t\t\t<string key=\"lifecycle:transition\" value=\"");
+  private static final byte[] EVENT_TIMESTAMP = encode("\"/>\n\t\t\t<date key=\"time:timestamp\" value=\"");
+  private static final byte[] EVENT_END = encode("\"/>\n\t\t</event>");
+  private static final byte[] TRACE_END = encode("\n\t</trace>\n\n");
+  private static final byte[] LOG_END = encode("</log>\n");
+
+  private final OutputStream myOutputStream;
+  private final byte[] myBuffer = new byte[BUFFER_SIZE];
+  private int myPosition;
+  private final ISODateTimeFormatter myDateTimeFormatter = new ISODateTimeFormatter();
+
+  public XESWriter(OutputStream theOutputStream) {
+    myOutputStream = theOutputStream;
+  }
+
+  /**
+   * Writes the XML prolog, the log element and the log level attributes
+   *
+   * @param theLogName name of the log, e.g. the PlanDefinition the log was mined for
+   */
+  public void startLog(String theLogName) throws IOException {
+    write(LOG_START);
+    writeEscaped(theLogName);
+    write(LOG_NAME_END);
+  }
+
+  public void startTrace(String theCaseId) throws IOException {
+    write(TRACE_START);
+    writeEscaped(theCaseId);
+    write(TRACE_NAME_END);
+  }
+
+  /**
+   * Writes a single event of the current trace
+   *
+   * @param theActivity   name of the activity
+   * @param theTransition lifecycle transition of the activity
+   * @param theTimestamp  time the event was recorded
+   */
+  public void event(String theActivity, String theTransition, Date theTimestamp) throws IOException {
+    event(theActivity, theTransition, theTimestamp.getTime());
+  }
+
+  /**
+   * Writes a single event of the current trace
+   *
+   * @param theActivity    name of the activity
+   * @param theTransition  lifecycle transition of the activity
+   * @param theEpochMillis time the event was recorded
+   */
+  public void event(String theActivity, String theTransition, long theEpochMillis) throws IOException {
+    write(EVENT_START);
+    write(getEncoded(theActivity));
+    write(EVENT_TRANSITION);
+    write(getEncoded(theTransition));
+    write(EVENT_TIMESTAMP);
+    ensureCapacity(ISODateTimeFormatter.MAX_LENGTH);
+    myPosition = myDateTimeFormatter.format(theEpochMillis, myBuffer, myPosition);
+    write(EVENT_END);
+  }
+
+  public void endTrace() throws IOException {
+    write(TRACE_END);
+  }
+
+  /**
+   * Pushes everything written so far to the underlying stream and flushes it
+   */
+  public void flush() throws IOException {
+    flushBuffer();
+    myOutputStream.flush();
+  }
+
+  /**
+   * Writes already rendered XES, e.g. a trace rendered by another writer, between two traces
+   */
+  public void writeRaw(byte[] theXES) throws IOException {
+    write(theXES);
+  }
+
+  /**
+   * Closes the log element and flushes everything to the underlying stream. The stream itself is not closed.
+   */
+  public void endLog() throws IOException {
+    write(LOG_END);
+    flush();
+  }
+
+  private void write(byte[] theBytes) throws IOException {
+    if (theBytes.length > myBuffer.length - myPosition) {
+      flushBuffer();
+      if (theBytes.length > myBuffer.length) {
+        myOutputStream.write(theBytes);
+        return;
+      }
+    }
+    System.arraycopy(theBytes, 0, myBuffer, myPosition, theBytes.length);
+    myPosition += theBytes.length;
+  }
+
+  private void ensureCapacity(int theLength) throws IOException {
+    if (myBuffer.length - myPosition < theLength) {
+      flushBuffer();
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (myPosition > 0) {
+      myOutputStream.write(myBuffer, 0, myPosition);
+      myPosition = 0;
+    }
+  }
+
+  /**
+   * Encodes the string as escaped attribute value directly into the buffer
+   */
+  private void writeEscaped(String theValue) throws IOException {
+    for (int i = 0; i < theValue.length(); i++) {
+      // worst case is a character reference or a surrogate pair
+      ensureCapacity(6);
+      char c = theValue.charAt(i);
+      switch (c) {
+        case '&':
+          myPosition = ascii("&amp;", myBuffer, myPosition);
+          break;
+        case '<':
+          myPosition = ascii("&lt;", myBuffer, myPosition);
+          break;
+        case '>':
+          myPosition = ascii("&gt;", myBuffer, myPosition);
+          break;
+        case '"':
+          myPosition = ascii("&quot;", myBuffer, myPosition);
+          break;
+        default:
+          if (c < 0x80) {
+            myBuffer[myPosition++] = (byte) c;
+          } else if (c < 0x800) {
+            myBuffer[myPosition++] = (byte) (0xC0 | c >> 6);
+            myBuffer[myPosition++] = (byte) (0x80 | c & 0x3F);
+          } else if (Character.isHighSurrogate(c) && i + 1 < theValue.length() && Character.isLowSurrogate(theValue.charAt(i + 1))) {
+            int codePoint = Character.toCodePoint(c, theValue.charAt(++i));
+            myBuffer[myPosition++] = (byte) (0xF0 | codePoint >> 18);
+            myBuffer[myPosition++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+            myBuffer[myPosition++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            myBuffer[myPosition++] = (byte) (0x80 | codePoint & 0x3F);
+          } else if (Character.isSurrogate(c)) {
+            myBuffer[myPosition++] = '?';
+          } else {
+            myBuffer[myPosition++] = (byte) (0xE0 | c >> 12);
+            myBuffer[myPosition++] = (byte) (0x80 | c >> 6 & 0x3F);
+            myBuffer[myPosition++] = (byte) (0x80 | c & 0x3F);
+          }
+      }
+    }
+  }
+
+  private static int ascii(String theValue, byte[] theBuffer, int thePosition) {
+    for (int i = 0; i < theValue.length(); i++) {
+      theBuffer[thePosition++] = (byte) theValue.charAt(i);
+    }
+    return thePosition;
+  }
+
+  private static byte[] getEncoded(String theValue) {
+    byte[] encoded = ourEncodedValues.get(theValue);
+    if (encoded == null) {
+      encoded = escape(theValue).getBytes(StandardCharsets.UTF_8);
+      ourEncodedValues.putIfAbsent(theValue, encoded);
+    }
+    return encoded;
+  }
+
+  private static String escape(String theValue) {
+    return theValue.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+  }
+
+  private static byte[] encode(String theMarkup) {
+    return theMarkup.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,97 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ActivityMappingTest {
+
+    @Test
+    public void testSpecificTypeBeforeWildcard() {
+        ActivityMapping mapping = ActivityMapping.parse("C:*=Create Resource,C:Appointment=Schedule Appointment");
+
+        assertEquals("Schedule Appointment", mapping.map(newEvent(AuditEvent.AuditEventAction.C, "Appointment", null)));
+        assertEquals("Create Resource", mapping.map(newEvent(AuditEvent.AuditEventAction.C, "Encounter", null)));
+        // instance level requests do not carry a type
+        assertEquals("Create Resource", mapping.map(newEvent(AuditEvent.AuditEventAction.C, null, null)));
+    }
+
+    @Test
+    public void testDetailSuffixBeforePlainRule() {
+        ActivityMapping mapping = ActivityMapping.parse("E:Patient=Patient Operation,E:Patient:$everything=Review Record");
+
+        assertEquals("Review Record", mapping.map(newEvent(AuditEvent.AuditEventAction.E, "Patient", "http://localhost/fhir/Patient/1/$everything")));
+        assertEquals("Patient Operation", mapping.map(newEvent(AuditEvent.AuditEventAction.E, "Patient", "http://localhost/fhir/Patient/1/$match")));
+        assertEquals("Patient Operation", mapping.map(newEvent(AuditEvent.AuditEventAction.E, "Patient", null)));
+    }
+
+    @Test
+    public void testFallsBackToWildcardIfNoRuleOfTheTypeMatches() {
+        ActivityMapping mapping = ActivityMapping.parse("E:Patient:$everything=Review Record,E:*:$fhirToCDA=Report Transmission,E:*=Other Operation");
+
+        assertEquals("Report Transmission", mapping.map(newEvent(AuditEvent.AuditEventAction.E, "Patient", "http://localhost/fhir/Patient/1/$fhirToCDA")));
+        assertEquals("Other Operation", mapping.map(newEvent(AuditEvent.AuditEventAction.E, "Patient", "http://localhost/fhir/Patient/1/$match")));
+    }
+
+    @Test
+    public void testFirstRuleWinsAmongEquallySpecificRules() {
+        ActivityMapping mapping = ActivityMapping.parse("C:Appointment=First,C:Appointment:$a=Suffix First,C:Appointment=Second,C:Appointment:$a=Suffix Second");
+
+        assertEquals("First", mapping.map(newEvent(AuditEvent.AuditEventAction.C, "Appointment", null)));
+        assertEquals("Suffix First", mapping.map(newEvent(AuditEvent.AuditEventAction.C, "Appointment", "/Appointment/$a")));
+    }
+
+    @Test
+    public void testUnmappedEvents() {
+        ActivityMapping mapping = ActivityMapping.parse("C:Appointment=Schedule Appointment");
+
+        assertNull(mapping.map(newEvent(AuditEvent.AuditEventAction.R, "Appointment", null)));
+        assertNull(mapping.map(newEvent(AuditEvent.AuditEventAction.C, "Encounter", null)));
+        assertNull(mapping.map(newEvent(null, "Appointment", null)));
+        assertEquals(-1, mapping.mapToId(newEvent(AuditEvent.AuditEventAction.C, "Encounter", null)));
+    }
+
+    @Test
+    public void testDenseActivityIds() {
+        ActivityMapping mapping = ActivityMapping.parse(" C:Appointment = Schedule , , U:Appointment=Schedule,D:Appointment=Cancel ");
+
+        assertEquals(Arrays.asList("Schedule", "Cancel"), mapping.getActivities());
+        assertEquals(0, mapping.getActivityId("Schedule"));
+        assertEquals(1, mapping.getActivityId("Cancel"));
+        assertEquals(-1, mapping.getActivityId("Unknown"));
+        assertEquals(1, mapping.mapToId(newEvent(AuditEvent.AuditEventAction.D, "Appointment", null)));
+        assertEquals("Cancel", mapping.getActivity(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRuleWithoutActivity() {
+        ActivityMapping.parse("C:Appointment");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRuleWithoutType() {
+        ActivityMapping.parse("C=Schedule Appointment");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRuleWithUnknownAction() {
+        ActivityMapping.parse("X:Appointment=Schedule Appointment");
+    }
+
+    private static AuditEvent newEvent(AuditEvent.AuditEventAction theAction, String theType, String theUrl) {
+        AuditEvent event = new AuditEvent();
+        event.setAction(theAction);
+        AuditEvent.AuditEventEntityComponent entity = event.addEntity();
+        entity.setWhat(new Reference().setType(theType));
+        if (theUrl != null) {
+            entity.addDetail().setType("requestUrl").setValue(new StringType(theUrl));
+        }
+        return event;
+    }
+}
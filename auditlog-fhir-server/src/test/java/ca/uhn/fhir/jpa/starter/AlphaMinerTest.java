@@ -0,0 +1,141 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AlphaMinerTest {
+
+    @Test
+    public void testSequence() {
+        PetriNet net = AlphaMiner.discover(newGraph(trace("a", "b", "c")), 0);
+
+        assertEquals(Arrays.asList("start", "end", "({a}, {b})", "({b}, {c})"), getPlaces(net));
+        assertEquals(3, net.getTransitionCount());
+        assertArcs(net, "a", Collections.singletonList("start"), Collections.singletonList("({a}, {b})"));
+        assertArcs(net, "b", Collections.singletonList("({a}, {b})"), Collections.singletonList("({b}, {c})"));
+        assertArcs(net, "c", Collections.singletonList("({b}, {c})"), Collections.singletonList("end"));
+        assertEquals(1, net.getInitialMarking(0));
+        assertEquals(1, net.getFinalMarking(1));
+    }
+
+    @Test
+    public void testExclusiveChoice() {
+        PetriNet net = AlphaMiner.discover(newGraph(trace("a", "b", "d"), trace("a", "c", "d")), 0);
+
+        assertEquals(Arrays.asList("start", "end", "({a}, {b, c})", "({b, c}, {d})"), getPlaces(net));
+    }
+
+    @Test
+    public void testParallelism() {
+        PetriNet net = AlphaMiner.discover(newGraph(trace("a", "b", "c", "d"), trace("a", "c", "b", "d")), 0);
+
+        assertEquals(Arrays.asList("start", "end", "({a}, {b})", "({a}, {c})", "({b}, {d})", "({c}, {d})"), getPlaces(net));
+        assertArcs(net, "a", Collections.singletonList("start"), Arrays.asList("({a}, {b})", "({a}, {c})"));
+        assertArcs(net, "d", Arrays.asList("({b}, {d})", "({c}, {d})"), Collections.singletonList("end"));
+    }
+
+    @Test
+    public void testMaximalPairsOfSeveralActivities() {
+        // a and b start, c and d end the cases in any combination
+        PetriNet net = AlphaMiner.discover(newGraph(trace("a", "c"), trace("a", "d"), trace("b", "c"), trace("b", "d")), 0);
+
+        assertEquals(Arrays.asList("start", "end", "({a, b}, {c, d})"), getPlaces(net));
+    }
+
+    @Test
+    public void testNoiseRemovesInfrequentRelations() {
+        List<List<String>> traces = new ArrayList<>();
+        for (int i = 0; i < 99; i++) {
+            traces.add(trace("a", "b", "c", "d"));
+        }
+        traces.add(trace("a", "c", "b", "d"));
+
+        // every relation of the deviating case is rare compared to the most frequent one of its activity
+        PetriNet net = AlphaMiner.discover(newGraph(traces), 0.05);
+        assertEquals(Arrays.asList("start", "end", "({a}, {b})", "({b}, {c})", "({c}, {d})"), getPlaces(net));
+
+        // without the filter b and c follow each other both ways, so they are parallel
+        net = AlphaMiner.discover(newGraph(traces), 0);
+        assertEquals(Arrays.asList("start", "end", "({a}, {b})", "({a}, {c})", "({b}, {d})", "({c}, {d})"), getPlaces(net));
+    }
+
+    @Test
+    public void testActivitiesThatNeverOccurredAreLeftOut() {
+        DirectlyFollowsGraph graph = new DirectlyFollowsGraph("log", Arrays.asList("x", "a", "y", "b"));
+        addTrace(graph, trace("a", "b"));
+
+        PetriNet net = AlphaMiner.discover(graph, 0);
+        assertEquals(2, net.getTransitionCount());
+        assertEquals(Arrays.asList("start", "end", "({a}, {b})"), getPlaces(net));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyActivities() {
+        List<String> activities = new ArrayList<>();
+        for (int i = 0; i <= AlphaMiner.MAX_ACTIVITIES; i++) {
+            activities.add("a" + i);
+        }
+        AlphaMiner.discover(newGraph(activities), 0);
+    }
+
+    private static List<String> trace(String... theActivities) {
+        return Arrays.asList(theActivities);
+    }
+
+    @SafeVarargs
+    private static DirectlyFollowsGraph newGraph(List<String>... theTraces) {
+        return newGraph(Arrays.asList(theTraces));
+    }
+
+    private static DirectlyFollowsGraph newGraph(List<List<String>> theTraces) {
+        DirectlyFollowsGraph graph = new DirectlyFollowsGraph("log", Collections.emptyList());
+        for (List<String> trace : theTraces) {
+            addTrace(graph, trace);
+        }
+        return graph;
+    }
+
+    private static void addTrace(DirectlyFollowsGraph theGraph, List<String> theActivities) {
+        XESEvent previous = null;
+        for (int i = 0; i < theActivities.size(); i++) {
+            XESEvent event = new XESEvent(theActivities.get(i), "complete", new Date(i * 1000L));
+            theGraph.append(previous, event);
+            previous = event;
+        }
+    }
+
+    private static List<String> getPlaces(PetriNet theNet) {
+        List<String> places = new ArrayList<>();
+        for (int place = 0; place < theNet.getPlaceCount(); place++) {
+            places.add(theNet.getPlace(place));
+        }
+        return places;
+    }
+
+    private static void assertArcs(PetriNet theNet, String theActivity, List<String> theInputPlaces, List<String> theOutputPlaces) {
+        for (int transition = 0; transition < theNet.getTransitionCount(); transition++) {
+            if (theNet.getTransition(transition).equals(theActivity)) {
+                assertEquals(theInputPlaces, getPlaces(theNet, theNet.getInputPlaces(transition)));
+                assertEquals(theOutputPlaces, getPlaces(theNet, theNet.getOutputPlaces(transition)));
+                return;
+            }
+        }
+        fail("No transition " + theActivity);
+    }
+
+    private static List<String> getPlaces(PetriNet theNet, List<Integer> thePlaces) {
+        List<String> places = new ArrayList<>();
+        for (int place : thePlaces) {
+            places.add(theNet.getPlace(place));
+        }
+        return places;
+    }
+}
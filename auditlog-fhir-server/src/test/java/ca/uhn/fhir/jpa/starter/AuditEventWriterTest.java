@@ -0,0 +1,305 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AuditEventWriterTest {
+
+    private static final FhirContext ourFhirContext = FhirContext.forR4();
+
+    @Rule
+    public TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+    // descriptions of the stored events in the order they were committed
+    private final List<String> myStored = new CopyOnWriteArrayList<>();
+    // ids of the stored events that were stored with one
+    private final List<String> myStoredIds = new CopyOnWriteArrayList<>();
+    private final List<String> myHandedOver = new CopyOnWriteArrayList<>();
+    private final Set<String> myExistingIds = Collections.synchronizedSet(new HashSet<>());
+    private final Set<String> myRejected = Collections.synchronizedSet(new HashSet<>());
+    private final AtomicInteger myDaoCalls = new AtomicInteger();
+    private final ThreadLocal<List<AuditEvent>> myTransaction = new ThreadLocal<>();
+    private final AtomicInteger myTransactions = new AtomicInteger();
+    private final List<Integer> myCommittedBatches = new CopyOnWriteArrayList<>();
+    private volatile boolean myDatabaseDown;
+    private volatile BeforeWrite myBeforeWrite = () -> {
+    };
+    private long myFlushIntervalMillis = 10;
+    private AuditEventWriter myWriter;
+
+    @After
+    public void after() {
+        if (myWriter != null) {
+            myWriter.shutdown();
+        }
+    }
+
+    @Test
+    public void testSynchronousWrite() {
+        myWriter = newWriter(false, 100, 10, null);
+
+        myWriter.write(newAuditEvent("Encounter read"));
+
+        assertEquals(Collections.singletonList("Encounter read"), myStored);
+        assertEquals(myStored, myHandedOver);
+        assertEquals(0, myTransactions.get());
+    }
+
+    @Test
+    public void testQueuedEventsAreStoredInBatches() {
+        // long enough for all events to be written before a batch is stored incomplete
+        myFlushIntervalMillis = 10_000;
+        myWriter = newWriter(true, 100, 3, null);
+        myWriter.start();
+        List<String> expected = new ArrayList<>();
+        for (int i = 1; i <= 7; i++) {
+            expected.add("Observation " + i + " read");
+            myWriter.write(newAuditEvent("Observation " + i + " read"));
+        }
+        // the queue is drained before the writer stops
+        myWriter.shutdown();
+
+        assertEquals(expected, myStored);
+        assertEquals(expected, myHandedOver);
+        assertEquals(Arrays.asList(3, 3, 1), myCommittedBatches);
+    }
+
+    @Test
+    public void testRejectedEventDoesNotTakeItsBatchWithIt() {
+        myWriter = newWriter(true, 100, 3, null);
+        myRejected.add("Consent withdrawn");
+        myWriter.start();
+        myWriter.write(newAuditEvent("Consent given"));
+        myWriter.write(newAuditEvent("Consent withdrawn"));
+        myWriter.write(newAuditEvent("Consent renewed"));
+        myWriter.shutdown();
+
+        // the batch is rolled back and stored one by one, without the rejected event
+        assertEquals(Arrays.asList("Consent given", "Consent renewed"), myStored);
+        assertEquals(myStored, myHandedOver);
+        assertTrue(myCommittedBatches.isEmpty());
+    }
+
+    @Test
+    public void testFullQueueStoresOnTheRequestThread() throws Exception {
+        myWriter = newWriter(true, 1, 1, null);
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        myBeforeWrite = () -> {
+            if (Thread.currentThread().getName().equals("auditevent-writer")) {
+                writing.countDown();
+                release.await();
+            }
+        };
+        myWriter.start();
+        myWriter.write(newAuditEvent("Slow write"));
+        assertTrue(writing.await(10, TimeUnit.SECONDS));
+        // one more fits into the queue, the next one is stored right away
+        myWriter.write(newAuditEvent("Queued"));
+        assertEquals(1, myWriter.getQueueSize());
+        myWriter.write(newAuditEvent("Stored by the request"));
+        assertEquals(Collections.singletonList("Stored by the request"), myStored);
+
+        release.countDown();
+        myWriter.shutdown();
+        assertEquals(Arrays.asList("Stored by the request", "Slow write", "Queued"), myStored);
+    }
+
+    @Test
+    public void testEventsStoredBeforeACrashAreSkipped() throws Exception {
+        AuditJournal journal = new AuditJournal(myTemporaryFolder.getRoot(), 4096, 1024 * 1024, 0);
+        myWriter = newWriter(false, 100, 10, journal);
+        AuditEvent admitted = newAuditEvent("Patient admitted");
+        AuditEvent transferred = newAuditEvent("Patient transferred to ward 3");
+        AuditEvent discharged = newAuditEvent("Patient discharged");
+        myWriter.write(admitted);
+        myWriter.write(transferred);
+        myWriter.write(discharged);
+        // the first one made it into the database before the crash, the checkpoint did not
+        myExistingIds.add(admitted.getIdElement().getIdPart());
+
+        myWriter.start();
+        await(() -> myStored.size() == 2);
+        myWriter.shutdown();
+
+        assertEquals(Arrays.asList("Patient transferred to ward 3", "Patient discharged"), myStored);
+        assertEquals(Arrays.asList(transferred.getIdElement().getIdPart(), discharged.getIdElement().getIdPart()), myStoredIds);
+        assertEquals(myStored, myHandedOver);
+
+        // checkpointed, nothing is replayed after the next start
+        myWriter = newWriter(false, 100, 10, new AuditJournal(myTemporaryFolder.getRoot(), 4096, 1024 * 1024, 0));
+        myWriter.start();
+        Thread.sleep(100);
+        assertEquals(2, myStored.size());
+    }
+
+    @Test
+    public void testJournaledEventsWaitForTheDatabase() throws Exception {
+        AuditJournal journal = new AuditJournal(myTemporaryFolder.getRoot(), 4096, 1024 * 1024, 0);
+        myWriter = newWriter(false, 100, 5, journal);
+        myDatabaseDown = true;
+        myWriter.write(newAuditEvent("Order placed"));
+        myWriter.write(newAuditEvent("Order cancelled"));
+
+        myWriter.start();
+        await(() -> myDaoCalls.get() >= 3);
+        assertTrue(myStored.isEmpty());
+        myDatabaseDown = false;
+
+        await(() -> myStored.size() == 2);
+        assertEquals(Arrays.asList("Order placed", "Order cancelled"), myStored);
+        assertFalse(journal.getDeadLetterFile().exists());
+    }
+
+    @Test
+    public void testRejectedJournaledEventIsDeadLettered() throws Exception {
+        AuditJournal journal = new AuditJournal(myTemporaryFolder.getRoot(), 4096, 1024 * 1024, 0);
+        myWriter = newWriter(false, 100, 10, journal);
+        myRejected.add("Report signed twice");
+        myWriter.write(newAuditEvent("Report drafted"));
+        myWriter.write(newAuditEvent("Report signed twice"));
+        myWriter.write(newAuditEvent("Report sent"));
+
+        myWriter.start();
+        await(() -> myStored.size() == 2);
+
+        assertEquals(Arrays.asList("Report drafted", "Report sent"), myStored);
+        await(() -> journal.getDeadLetterFile().length() > 0);
+    }
+
+    private AuditEventWriter newWriter(boolean theAsync, int theQueueCapacity, int theBatchSize, AuditJournal theJournal) {
+        AuditEventWriter writer = new AuditEventWriter(theAsync, theQueueCapacity, theBatchSize, myFlushIntervalMillis, theJournal);
+        writer.myFhirContext = ourFhirContext;
+        writer.myAuditEventDao = newAuditEventDao();
+        writer.myTransactionManager = newTransactionManager();
+        writer.myConformanceMonitor = new ConformanceMonitor(false, 0) {
+            @Override
+            public void append(AuditEvent theAuditEvent) {
+                myHandedOver.add(theAuditEvent.getOutcomeDesc());
+            }
+        };
+        return writer;
+    }
+
+    private static AuditEvent newAuditEvent(String theDescription) {
+        AuditEvent auditEvent = new AuditEvent();
+        auditEvent.setRecorded(new Date());
+        auditEvent.setOutcomeDesc(theDescription);
+        return auditEvent;
+    }
+
+    private static void await(BooleanSupplier theCondition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!theCondition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(theCondition.getAsBoolean());
+    }
+
+    /**
+     * Events written in a transaction are stored when it is committed, the others right away
+     */
+    @SuppressWarnings("unchecked")
+    private IFhirResourceDao<AuditEvent> newAuditEventDao() {
+        return (IFhirResourceDao<AuditEvent>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{IFhirResourceDao.class}, (proxy, method, args) -> {
+            myDaoCalls.incrementAndGet();
+            if (myDatabaseDown) {
+                throw new InternalErrorException("Connection refused");
+            }
+            switch (method.getName()) {
+                case "search":
+                    List<IBaseResource> existing = new ArrayList<>();
+                    for (String id : myExistingIds.toArray(new String[0])) {
+                        existing.add(new AuditEvent().setId(id));
+                    }
+                    return (IBundleProvider) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{IBundleProvider.class}, (bundleProxy, bundleMethod, bundleArgs) -> {
+                        if (!bundleMethod.getName().equals("getResources")) {
+                            throw new UnsupportedOperationException(bundleMethod.getName());
+                        }
+                        return existing;
+                    });
+                case "create":
+                case "update":
+                    myBeforeWrite.run();
+                    AuditEvent auditEvent = (AuditEvent) args[0];
+                    if (myRejected.contains(auditEvent.getOutcomeDesc())) {
+                        throw new UnprocessableEntityException("Invalid AuditEvent");
+                    }
+                    List<AuditEvent> transaction = myTransaction.get();
+                    if (transaction != null) {
+                        transaction.add(auditEvent);
+                    } else {
+                        stored(auditEvent);
+                    }
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private void stored(AuditEvent theAuditEvent) {
+        if (theAuditEvent.getIdElement().hasIdPart()) {
+            myStoredIds.add(theAuditEvent.getIdElement().getIdPart());
+        }
+        myStored.add(theAuditEvent.getOutcomeDesc());
+    }
+
+    private PlatformTransactionManager newTransactionManager() {
+        return new PlatformTransactionManager() {
+            @Override
+            public TransactionStatus getTransaction(TransactionDefinition theDefinition) {
+                myTransactions.incrementAndGet();
+                myTransaction.set(new ArrayList<>());
+                return new SimpleTransactionStatus();
+            }
+
+            @Override
+            public void commit(TransactionStatus theStatus) {
+                myCommittedBatches.add(myTransaction.get().size());
+                myTransaction.get().forEach(AuditEventWriterTest.this::stored);
+                myTransaction.remove();
+            }
+
+            @Override
+            public void rollback(TransactionStatus theStatus) {
+                myTransaction.remove();
+            }
+        };
+    }
+
+    private interface BeforeWrite {
+        void run() throws InterruptedException;
+    }
+}
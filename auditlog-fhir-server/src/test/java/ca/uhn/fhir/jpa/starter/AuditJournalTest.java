@@ -0,0 +1,232 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AuditJournalTest {
+
+    @Rule
+    public TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testReadsRecordsInOrderAcrossSegments() throws Exception {
+        AuditJournal journal = new AuditJournal(myTemporaryFolder.getRoot(), 256, 1024 * 1024, 0);
+        List<String> expected = append(journal, 0, 50);
+
+        assertTrue(getSegments().length > 1);
+        assertEquals(expected.subList(0, 20), toStrings(journal.read(20, 0)));
+        assertEquals(expected.subList(20, 50), toStrings(journal.read(100, 0)));
+        assertTrue(journal.read(100, 0).isEmpty());
+    }
+
+    @Test
+    public void testReopenContinuesAtTheCheckpoint() throws Exception {
+        File directory = myTemporaryFolder.getRoot();
+        AuditJournal journal = new AuditJournal(directory, 256, 1024 * 1024, 0);
+        List<String> expected = append(journal, 0, 10);
+        List<AuditJournal.Record> records = journal.read(6, 0);
+        journal.checkpoint(records.get(3));
+        journal.close();
+
+        // the records read after the checkpoint are read again
+        journal = new AuditJournal(directory, 256, 1024 * 1024, 0);
+        assertEquals(expected.subList(4, 10), toStrings(journal.read(100, 0)));
+    }
+
+    @Test
+    public void testReopenWithoutCheckpointReadsEverything() throws Exception {
+        File directory = myTemporaryFolder.getRoot();
+        AuditJournal journal = new AuditJournal(directory, 256, 1024 * 1024, 0);
+        List<String> expected = append(journal, 0, 30);
+        journal.read(100, 0);
+
+        // not closed, as after a crash of the server
+        journal = new AuditJournal(directory, 256, 1024 * 1024, 0);
+        expected.addAll(append(journal, 30, 5));
+        assertEquals(expected, toStrings(journal.read(100, 0)));
+    }
+
+    @Test
+    public void testCheckpointNeverMovesBack() throws Exception {
+        File directory = myTemporaryFolder.getRoot();
+        AuditJournal journal = new AuditJournal(directory, 256, 1024 * 1024, 0);
+        List<String> expected = append(journal, 0, 10);
+        List<AuditJournal.Record> records = journal.read(100, 0);
+        journal.checkpoint(records.get(5));
+        journal.checkpoint(records.get(2));
+        journal.close();
+
+        journal = new AuditJournal(directory, 256, 1024 * 1024, 0);
+        assertEquals(expected.subList(6, 10), toStrings(journal.read(100, 0)));
+    }
+
+    @Test
+    public void testCheckpointDeletesTheSegmentsRead() throws Exception {
+        AuditJournal journal = new AuditJournal(myTemporaryFolder.getRoot(), 256, 1024 * 1024, 0);
+        append(journal, 0, 50);
+        List<AuditJournal.Record> records = journal.read(100, 0);
+        assertTrue(getSegments().length > 1);
+
+        journal.checkpoint(records.get(records.size() - 1));
+
+        // only the segment written to is left
+        assertEquals(1, getSegments().length);
+        assertTrue(new File(myTemporaryFolder.getRoot(), "checkpoint").isFile());
+    }
+
+    @Test
+    public void testRewind() throws Exception {
+        AuditJournal journal = new AuditJournal(myTemporaryFolder.getRoot(), 256, 1024 * 1024, 0);
+        List<String> expected = append(journal, 0, 5);
+
+        assertEquals(expected.subList(0, 3), toStrings(journal.read(3, 0)));
+        journal.rewind();
+        List<AuditJournal.Record> records = journal.read(3, 0);
+        assertEquals(expected.subList(0, 3), toStrings(records));
+
+        journal.checkpoint(records.get(0));
+        journal.rewind();
+        assertEquals(expected.subList(1, 5), toStrings(journal.read(100, 0)));
+    }
+
+    @Test
+    public void testTornRecordEndsItsSegment() throws Exception {
+        File directory = myTemporaryFolder.getRoot();
+        AuditJournal journal = new AuditJournal(directory, 256, 1024 * 1024, 0);
+        journal.append(bytes("a"));
+        journal.append(bytes("b"));
+        journal.close();
+
+        // the first record takes 9 bytes, the data of the second one starts after its length and CRC
+        File[] segments = getSegments();
+        assertEquals(1, segments.length);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.seek(9 + 8);
+            file.write('X');
+        }
+
+        journal = new AuditJournal(directory, 256, 1024 * 1024, 0);
+        // never appended to the torn segment
+        journal.append(bytes("c"));
+        assertEquals(Arrays.asList("a", "c"), toStrings(journal.read(100, 0)));
+        assertEquals(2, getSegments().length);
+    }
+
+    @Test
+    public void testAppendFailsIfTheRecordDoesNotFit() throws Exception {
+        // two segments of two records each
+        AuditJournal journal = new AuditJournal(myTemporaryFolder.getRoot(), 64, 128, 0);
+        assertFalse(journal.append(new byte[57]));
+        assertTrue(journal.append(new byte[56]));
+
+        journal = new AuditJournal(myTemporaryFolder.newFolder(), 64, 128, 0);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(journal.append(new byte[24]));
+        }
+        assertFalse(journal.append(new byte[24]));
+
+        // the space of the segments read completely is freed by the checkpoint
+        List<AuditJournal.Record> records = journal.read(100, 0);
+        assertEquals(4, records.size());
+        journal.checkpoint(records.get(3));
+        assertTrue(journal.append(new byte[24]));
+    }
+
+    @Test
+    public void testDeadLetter() throws Exception {
+        AuditJournal journal = new AuditJournal(myTemporaryFolder.getRoot(), 256, 1024 * 1024, 0);
+        append(journal, 0, 3);
+        List<AuditJournal.Record> records = journal.read(100, 0);
+
+        journal.deadLetter(records.get(0));
+        journal.deadLetter(records.get(2));
+
+        // the dead letter file is not taken for a segment
+        journal.close();
+        journal = new AuditJournal(myTemporaryFolder.getRoot(), 256, 1024 * 1024, 0);
+        assertEquals(3, journal.read(100, 0).size());
+
+        List<String> deadLetters = new ArrayList<>();
+        try (DataInputStream input = new DataInputStream(new FileInputStream(journal.getDeadLetterFile()))) {
+            while (input.available() > 0) {
+                byte[] data = new byte[input.readInt()];
+                int checksum = input.readInt();
+                input.readFully(data);
+                CRC32 crc = new CRC32();
+                crc.update(data, 0, data.length);
+                assertEquals((int) crc.getValue(), checksum);
+                deadLetters.add(new String(data, StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(Arrays.asList("record-0", "record-2"), deadLetters);
+    }
+
+    @Test
+    public void testReadWaitsForRecords() throws Exception {
+        AuditJournal journal = new AuditJournal(myTemporaryFolder.getRoot(), 256, 1024 * 1024, 0);
+        Thread appender = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                journal.append(bytes("late"));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        appender.start();
+
+        long start = System.currentTimeMillis();
+        List<AuditJournal.Record> records = journal.read(1, 30_000);
+        assertEquals(Arrays.asList("late"), toStrings(records));
+        assertTrue(System.currentTimeMillis() - start < 20_000);
+        appender.join();
+
+        journal.stopWaiting();
+        start = System.currentTimeMillis();
+        assertTrue(journal.read(1, 30_000).isEmpty());
+        assertTrue(System.currentTimeMillis() - start < 20_000);
+    }
+
+    private static List<String> append(AuditJournal theJournal, int theFirst, int theCount) throws Exception {
+        List<String> records = new ArrayList<>();
+        for (int i = theFirst; i < theFirst + theCount; i++) {
+            String record = "record-" + i;
+            assertTrue(theJournal.append(bytes(record)));
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static byte[] bytes(String theRecord) {
+        return theRecord.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> toStrings(List<AuditJournal.Record> theRecords) {
+        List<String> records = new ArrayList<>();
+        for (AuditJournal.Record record : theRecords) {
+            records.add(new String(record.getData(), StandardCharsets.UTF_8));
+        }
+        return records;
+    }
+
+    private File[] getSegments() {
+        File[] segments = myTemporaryFolder.getRoot().listFiles((directory, name) -> name.matches("\\d+\\.journal"));
+        Arrays.sort(segments);
+        return segments;
+    }
+}
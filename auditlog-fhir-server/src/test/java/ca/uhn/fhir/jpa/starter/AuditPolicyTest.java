@@ -0,0 +1,133 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AuditPolicyTest {
+
+    private static final AuditEvent.AuditEventAction C = AuditEvent.AuditEventAction.C;
+    private static final AuditEvent.AuditEventAction R = AuditEvent.AuditEventAction.R;
+    private static final AuditEvent.AuditEventAction E = AuditEvent.AuditEventAction.E;
+
+    @Test
+    public void testEverythingIsAuditedWithoutRules() {
+        AuditPolicy policy = AuditPolicy.parse("");
+
+        assertTrue(policy.isAudited(R, "Patient", null, true));
+        assertTrue(policy.isAudited(null, null, null, false));
+        assertTrue(AuditPolicy.parse(null).isAudited(E, "Patient", "$everything", true));
+    }
+
+    @Test
+    public void testMostSpecificRuleWins() {
+        AuditPolicy policy = AuditPolicy.parse("*:*=never,R:*=always,*:Patient=never,R:Patient=always,*:*:$xes=never,E:AuditEvent:$xes=always");
+
+        // action beats nothing
+        assertTrue(policy.isAudited(R, "Encounter", null, true));
+        assertFalse(policy.isAudited(C, "Encounter", null, true));
+        // type beats action
+        assertFalse(policy.isAudited(C, "Patient", null, true));
+        // type and action beat type
+        assertTrue(policy.isAudited(R, "Patient", null, true));
+        // operation beats type and action
+        assertFalse(policy.isAudited(R, "Patient", "$xes", true));
+        assertTrue(policy.isAudited(E, "AuditEvent", "$xes", true));
+    }
+
+    @Test
+    public void testOutcome() {
+        AuditPolicy policy = AuditPolicy.parse("R:*=never,R:*:*:failure=always,*:Patient:*:success=never");
+
+        assertFalse(policy.isAudited(R, "Encounter", null, true));
+        assertTrue(policy.isAudited(R, "Encounter", null, false));
+        // the type is more specific than action and outcome
+        assertFalse(policy.isAudited(C, "Patient", null, true));
+        assertTrue(policy.isAudited(C, "Patient", null, false));
+    }
+
+    @Test
+    public void testLastOfEquallySpecificRulesWins() {
+        assertFalse(AuditPolicy.parse("R:Patient=always,R:Patient=never").isAudited(R, "Patient", null, true));
+        assertTrue(AuditPolicy.parse("R:Patient=never,R:Patient=always").isAudited(R, "Patient", null, true));
+    }
+
+    @Test
+    public void testOperationWithoutDollar() {
+        AuditPolicy policy = AuditPolicy.parse("E:*:xes=never");
+
+        assertFalse(policy.isAudited(E, "AuditEvent", "$xes", true));
+        assertFalse(policy.isAudited(E, "AuditEvent", "xes", true));
+        assertTrue(policy.isAudited(E, "AuditEvent", "$dfg", true));
+        assertTrue(policy.isAudited(E, "AuditEvent", "", true));
+    }
+
+    @Test
+    public void testRequestsWithoutActionOnlyMatchWildcardRules() {
+        AuditPolicy policy = AuditPolicy.parse("R:*=never,*:Patient=never");
+
+        assertTrue(policy.isAudited(null, "Encounter", null, true));
+        assertFalse(policy.isAudited(null, "Patient", null, true));
+    }
+
+    @Test
+    public void testSampling() {
+        AuditPolicy policy = AuditPolicy.parse("R:Patient=0%,R:Encounter=100%,R:*=25%");
+
+        int sampled = 0;
+        for (int i = 0; i < 20_000; i++) {
+            assertFalse(policy.isAudited(R, "Patient", null, true));
+            assertTrue(policy.isAudited(R, "Encounter", null, true));
+            if (policy.isAudited(R, "Observation", null, true)) {
+                sampled++;
+            }
+        }
+        // 25% of 20000 with a standard deviation of about 61
+        assertTrue("Sampled " + sampled, sampled > 4600 && sampled < 5400);
+    }
+
+    @Test
+    public void testFractionalPercentage() {
+        AuditPolicy policy = AuditPolicy.parse("R:*=0.5%");
+
+        int sampled = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (policy.isAudited(R, "Patient", null, true)) {
+                sampled++;
+            }
+        }
+        assertTrue("Sampled " + sampled, sampled > 350 && sampled < 650);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRuleWithoutDecision() {
+        AuditPolicy.parse("R:Patient");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRuleWithoutType() {
+        AuditPolicy.parse("R=never");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownAction() {
+        AuditPolicy.parse("X:Patient=never");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownOutcome() {
+        AuditPolicy.parse("R:Patient:*:maybe=never");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPercentageAboveHundred() {
+        AuditPolicy.parse("R:Patient=101%");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownDecision() {
+        AuditPolicy.parse("R:Patient=sometimes");
+    }
+}
@@ -0,0 +1,128 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Device;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AuditReferenceResolverTest {
+
+    private final Set<String> myExisting = new HashSet<>();
+    private final Set<String> myGone = new HashSet<>();
+    private int myReads;
+    private AuditReferenceResolver myResolver;
+
+    @Before
+    public void before() {
+        myResolver = new AuditReferenceResolver("auditlog-server", "rad-wf");
+        myResolver.myDeviceDao = newDao();
+        myResolver.myPlanDefinitionDao = newDao();
+    }
+
+    @After
+    public void after() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void testReadOnce() {
+        myExisting.add("Device/auditlog-server");
+        myExisting.add("PlanDefinition/rad-wf");
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Device/auditlog-server", myResolver.getDeviceReference().getReference());
+            assertEquals("PlanDefinition/rad-wf", myResolver.getPlanDefinitionReference().getReference());
+        }
+        assertEquals(2, myReads);
+    }
+
+    @Test
+    public void testMissingResourceIsRememberedUntilCreated() {
+        assertNull(myResolver.getPlanDefinitionReference());
+        assertNull(myResolver.getPlanDefinitionReference());
+        assertEquals(1, myReads);
+
+        myExisting.add("PlanDefinition/rad-wf");
+        myResolver.resourceCreated(new PlanDefinition().setId("PlanDefinition/rad-wf"));
+        assertEquals("PlanDefinition/rad-wf", myResolver.getPlanDefinitionReference().getReference());
+        assertEquals(2, myReads);
+    }
+
+    @Test
+    public void testDeletedResource() {
+        myExisting.add("Device/auditlog-server");
+        myResolver.getDeviceReference();
+
+        myExisting.remove("Device/auditlog-server");
+        myGone.add("Device/auditlog-server");
+        myResolver.resourceDeleted(new Device().setId("Device/auditlog-server"));
+        assertNull(myResolver.getDeviceReference());
+    }
+
+    @Test
+    public void testOtherResourcesDoNotInvalidate() {
+        myExisting.add("Device/auditlog-server");
+        myResolver.getDeviceReference();
+
+        myResolver.resourceUpdated(new Device().setId("Device/other"), new Device().setId("Device/other"));
+        myResolver.resourceUpdated(new PlanDefinition().setId("PlanDefinition/auditlog-server"), new PlanDefinition().setId("PlanDefinition/auditlog-server"));
+        myResolver.getDeviceReference();
+        assertEquals(1, myReads);
+    }
+
+    @Test
+    public void testReadBeforeCommitIsNotKept() {
+        myExisting.add("Device/auditlog-server");
+        myResolver.getDeviceReference();
+
+        TransactionSynchronizationManager.initSynchronization();
+        myResolver.resourceDeleted(new Device().setId("Device/auditlog-server"));
+        // another request reads the Device before the delete is committed
+        assertEquals("Device/auditlog-server", myResolver.getDeviceReference().getReference());
+        myExisting.remove("Device/auditlog-server");
+        myGone.add("Device/auditlog-server");
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+        }
+        TransactionSynchronizationManager.clearSynchronization();
+
+        assertNull(myResolver.getDeviceReference());
+        assertEquals(3, myReads);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends IBaseResource> IFhirResourceDao<T> newDao() {
+        return (IFhirResourceDao<T>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{IFhirResourceDao.class}, (proxy, method, args) -> {
+            if (!method.getName().equals("read")) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            myReads++;
+            IIdType id = (IIdType) args[0];
+            String value = id.getResourceType() + "/" + id.getIdPart();
+            if (myGone.contains(value)) {
+                throw new ResourceGoneException(value + " is deleted");
+            }
+            if (!myExisting.contains(value)) {
+                throw new ResourceNotFoundException(value + " is not known");
+            }
+            return null;
+        });
+    }
+}
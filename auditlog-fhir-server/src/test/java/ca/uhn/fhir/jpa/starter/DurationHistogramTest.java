@@ -0,0 +1,112 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DurationHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        DurationHistogram histogram = new DurationHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void testShortDurationsAreExact() {
+        DurationHistogram histogram = new DurationHistogram();
+        for (long millis : new long[]{3, 7, 7, 12, -5}) {
+            histogram.add(millis);
+        }
+
+        assertEquals(5, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(12, histogram.getMax());
+        assertEquals(5.8, histogram.getMean(), 0.001);
+        assertEquals(7, histogram.getPercentile(50));
+        assertEquals(3, histogram.getPercentile(40));
+        assertEquals(12, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testPercentilesAreWithinABucket() {
+        DurationHistogram histogram = new DurationHistogram();
+        // ten thousand lab turnaround times between one second and a little under three hours
+        for (long millis = 1000; millis <= 10_000_000; millis += 1000) {
+            histogram.add(millis);
+        }
+
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(1000, histogram.getMin());
+        assertEquals(10_000_000, histogram.getMax());
+        assertEquals(5_000_500, histogram.getMean(), 0.001);
+        assertWithinBucket(5_000_000, histogram.getPercentile(50));
+        assertWithinBucket(9_000_000, histogram.getPercentile(90));
+        assertWithinBucket(9_900_000, histogram.getPercentile(99));
+        assertWithinBucket(100_000, histogram.getPercentile(1));
+    }
+
+    @Test
+    public void testPercentilesStayWithinTheRangeSeen() {
+        DurationHistogram histogram = new DurationHistogram();
+        long threeDays = TimeUnit.DAYS.toMillis(3);
+        histogram.add(threeDays);
+        histogram.add(threeDays);
+
+        assertEquals(threeDays, histogram.getPercentile(50));
+        assertEquals(threeDays, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void testMergedHistogramEqualsOneFilledWithEverything() {
+        DurationHistogram morning = new DurationHistogram();
+        DurationHistogram evening = new DurationHistogram();
+        DurationHistogram wholeDay = new DurationHistogram();
+        for (long minutes = 1; minutes <= 600; minutes++) {
+            long millis = TimeUnit.MINUTES.toMillis(minutes * minutes % 97);
+            (minutes % 3 == 0 ? evening : morning).add(millis);
+            wholeDay.add(millis);
+        }
+
+        morning.merge(evening);
+
+        assertEquals(wholeDay.getCount(), morning.getCount());
+        assertEquals(wholeDay.getMean(), morning.getMean(), 0);
+        assertEquals(wholeDay.getMin(), morning.getMin());
+        assertEquals(wholeDay.getMax(), morning.getMax());
+        for (double percentile : new double[]{1, 25, 50, 75, 90, 99, 100}) {
+            assertEquals(wholeDay.getPercentile(percentile), morning.getPercentile(percentile));
+        }
+    }
+
+    @Test
+    public void testMergeWithEmptyHistogram() {
+        DurationHistogram histogram = new DurationHistogram();
+        histogram.add(250);
+        histogram.add(40);
+
+        histogram.merge(new DurationHistogram());
+        assertEquals(2, histogram.getCount());
+        assertEquals(40, histogram.getMin());
+        assertEquals(250, histogram.getMax());
+
+        DurationHistogram empty = new DurationHistogram();
+        empty.merge(histogram);
+        assertEquals(2, empty.getCount());
+        assertEquals(145, empty.getMean(), 0);
+        assertEquals(40, empty.getMin());
+        assertEquals(250, empty.getMax());
+    }
+
+    private static void assertWithinBucket(long theExpected, long theActual) {
+        assertTrue(theActual + " is not within 12.5% of " + theExpected, Math.abs(theActual - theExpected) <= theExpected / 8);
+    }
+}
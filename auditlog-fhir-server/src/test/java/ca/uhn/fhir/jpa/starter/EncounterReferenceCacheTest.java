@@ -0,0 +1,149 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class EncounterReferenceCacheTest {
+
+    private final Map<String, DiagnosticReport> myReports = new HashMap<>();
+    private int myReads;
+    private Runnable myDuringRead;
+    private EncounterReferenceCache myCache;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void before() {
+        myCache = new EncounterReferenceCache(2);
+        myCache.myDiagnosticReportDao = (IFhirResourceDao<DiagnosticReport>) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[]{IFhirResourceDao.class}, (proxy, method, args) -> {
+                if (!method.getName().equals("read")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                myReads++;
+                DiagnosticReport report = myReports.get(((IdType) args[0]).getIdPart());
+                if (myDuringRead != null) {
+                    myDuringRead.run();
+                }
+                return report;
+            });
+    }
+
+    @After
+    public void after() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void testReadOnceOnMiss() {
+        myReports.put("1", newReport("1", "Encounter/a"));
+
+        assertEquals("Encounter/a", myCache.getEncounter(new IdType("DiagnosticReport", "1")).getReference());
+        assertEquals("Encounter/a", myCache.getEncounter(new IdType("DiagnosticReport", "1")).getReference());
+        assertEquals(1, myReads);
+    }
+
+    @Test
+    public void testSpecificVersionIsAlwaysRead() {
+        myReports.put("1", newReport("1", "Encounter/a"));
+
+        myCache.getEncounter(new IdType("DiagnosticReport", "1", "1"));
+        myCache.getEncounter(new IdType("DiagnosticReport", "1", "1"));
+        assertEquals(2, myReads);
+        assertEquals(0, myCache.size());
+    }
+
+    @Test
+    public void testUpdateIsCachedOnceCommitted() {
+        myReports.put("1", newReport("1", "Encounter/a"));
+        myCache.getEncounter(new IdType("DiagnosticReport", "1"));
+
+        TransactionSynchronizationManager.initSynchronization();
+        myCache.resourceUpdated(myReports.get("1"), newReport("1", "Encounter/b"));
+        // the previous version is current until the commit
+        assertEquals(0, myCache.size());
+        complete(TransactionSynchronization.STATUS_COMMITTED);
+
+        assertEquals("Encounter/b", myCache.getEncounter(new IdType("DiagnosticReport", "1")).getReference());
+        assertEquals(1, myReads);
+    }
+
+    @Test
+    public void testRolledBackCreateIsNotCached() {
+        TransactionSynchronizationManager.initSynchronization();
+        myCache.resourceCreated(newReport("1", "Encounter/a"));
+        complete(TransactionSynchronization.STATUS_ROLLED_BACK);
+
+        assertEquals(0, myCache.size());
+    }
+
+    @Test
+    public void testDeleteWhileReadingIsNotPutBack() {
+        DiagnosticReport report = newReport("1", "Encounter/a");
+        myReports.put("1", report);
+        // the delete commits after the report was read, but before the read result is cached
+        myDuringRead = () -> myCache.resourceDeleted(report);
+
+        assertEquals("Encounter/a", myCache.getEncounter(new IdType("DiagnosticReport", "1")).getReference());
+        assertEquals(0, myCache.size());
+
+        myDuringRead = null;
+        myCache.getEncounter(new IdType("DiagnosticReport", "1"));
+        assertEquals(1, myCache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        myReports.put("1", newReport("1", "Encounter/a"));
+        myReports.put("2", newReport("2", "Encounter/b"));
+        myReports.put("3", newReport("3", "Encounter/c"));
+        myCache.getEncounter(new IdType("DiagnosticReport", "1"));
+        myCache.getEncounter(new IdType("DiagnosticReport", "2"));
+        myCache.getEncounter(new IdType("DiagnosticReport", "1"));
+        myCache.getEncounter(new IdType("DiagnosticReport", "3"));
+        assertEquals(2, myCache.size());
+        assertEquals(3, myReads);
+
+        myCache.getEncounter(new IdType("DiagnosticReport", "1"));
+        assertEquals(3, myReads);
+        myCache.getEncounter(new IdType("DiagnosticReport", "2"));
+        assertEquals(4, myReads);
+    }
+
+    @Test
+    public void testCallersGetTheirOwnCopy() {
+        myReports.put("1", newReport("1", "Encounter/a"));
+
+        Reference encounter = myCache.getEncounter(new IdType("DiagnosticReport", "1"));
+        encounter.setReference("Encounter/changed");
+        assertEquals("Encounter/a", myCache.getEncounter(new IdType("DiagnosticReport", "1")).getReference());
+    }
+
+    private static void complete(int theStatus) {
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.afterCompletion(theStatus);
+        }
+        TransactionSynchronizationManager.clearSynchronization();
+    }
+
+    private static DiagnosticReport newReport(String theId, String theEncounter) {
+        DiagnosticReport report = new DiagnosticReport();
+        report.setId("DiagnosticReport/" + theId);
+        report.setEncounter(new Reference(theEncounter));
+        return report;
+    }
+}
@@ -0,0 +1,84 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.rest.param.DateParam;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventLogFilterTest {
+
+    @Test
+    public void testEndWithoutMillisecondsCoversTheWholePeriod() {
+        long nextMonth = new GregorianCalendar(2020, Calendar.SEPTEMBER, 1).getTimeInMillis();
+        EventLogFilter filter = EventLogFilter.of(null, new DateParam("2020-08"), null);
+        assertTrue(filter.includes(nextMonth - 1));
+        assertFalse(filter.includes(nextMonth));
+
+        long nextDay = new GregorianCalendar(2020, Calendar.AUGUST, 7).getTimeInMillis();
+        filter = EventLogFilter.of(null, new DateParam("2020-08-06"), null);
+        assertTrue(filter.includes(nextDay - 1));
+        assertFalse(filter.includes(nextDay));
+    }
+
+    @Test
+    public void testBoundsAreInclusive() {
+        EventLogFilter filter = new EventLogFilter(new Date(1000), new Date(2000));
+
+        assertFalse(filter.includes(999));
+        assertTrue(filter.includes(1000));
+        assertTrue(filter.includes(new Date(2000)));
+        assertFalse(filter.includes(2001));
+        assertTrue(filter.isValid());
+        assertFalse(filter.isEmpty());
+    }
+
+    @Test
+    public void testOpenBounds() {
+        assertTrue(new EventLogFilter(new Date(1000), null).includes(Long.MAX_VALUE));
+        assertTrue(new EventLogFilter(null, new Date(1000)).includes(Long.MIN_VALUE));
+        assertTrue(EventLogFilter.ALL.isEmpty());
+        assertTrue(EventLogFilter.ALL.includesTrace(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void testStartAfterEndIsInvalid() {
+        assertFalse(new EventLogFilter(new Date(2000), new Date(1000)).isValid());
+        assertTrue(new EventLogFilter(new Date(1000), new Date(1000)).isValid());
+    }
+
+    @Test
+    public void testSinceSelectsTracesChangedAfterTheToken() {
+        EventLogFilter filter = new EventLogFilter(null, null, new Date(5000));
+        assertFalse(filter.isEmpty());
+        assertFalse(filter.includesTrace(5000));
+        assertTrue(filter.includesTrace(5001));
+
+        Trace trace = new Trace("Encounter/1");
+        trace.add(new XESEvent("Admit", "complete", new Date(100)), new Date(4000));
+        trace.add(new XESEvent("Discharge", "complete", new Date(200)), new Date(4500));
+        assertTrue(trace.getEvents(filter).isEmpty());
+
+        // a late event makes the whole trace part of the delta, also the events recorded before the token
+        trace.add(new XESEvent("Report", "complete", new Date(300)), new Date(6000));
+        assertEquals(3, trace.getEvents(filter).size());
+        assertEquals(2, trace.getEvents(new EventLogFilter(new Date(200), null, new Date(5000))).size());
+    }
+
+    @Test
+    public void testContinuationTokenLiesTheSafetyMarginBeforeTheExport() {
+        assertEquals(40_000, EventLogFilter.newContinuationToken(100_000, 60_000).getTime());
+        // a trace changed in the very millisecond the token is taken is part of the next delta
+        assertEquals(99_999, EventLogFilter.newContinuationToken(100_000, 0).getTime());
+
+        // an event written before the export started but committed after it read the log
+        long written = 95_000;
+        EventLogFilter nextDelta = new EventLogFilter(null, null, EventLogFilter.newContinuationToken(100_000, 60_000));
+        assertTrue(nextDelta.includesTrace(written));
+    }
+}
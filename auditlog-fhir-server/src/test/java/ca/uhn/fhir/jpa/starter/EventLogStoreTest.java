@@ -0,0 +1,135 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventLogStoreTest {
+
+    private final List<IBaseResource> myAuditEvents = new ArrayList<>();
+    private final AtomicInteger mySearches = new AtomicInteger();
+    private EventLogStore myStore;
+
+    @Before
+    public void before() {
+        myStore = new EventLogStore();
+        myStore.myAuditEventDao = newAuditEventDao();
+
+        myAuditEvents.add(newAuditEvent("s1", "stroke", "Encounter/ward-4", AuditEvent.AuditEventAction.C, "Appointment", 1000));
+        myAuditEvents.add(newAuditEvent("h1", "hip-replacement", "Encounter/ortho-12", AuditEvent.AuditEventAction.C, "Appointment", 1500));
+        myAuditEvents.add(newAuditEvent("s2", "stroke", "Encounter/ward-4", AuditEvent.AuditEventAction.U, "Appointment", 2000));
+        myAuditEvents.add(newAuditEvent("a1", "asthma", "Encounter/gp-88", AuditEvent.AuditEventAction.C, "Appointment", 2500));
+        myAuditEvents.add(newAuditEvent("s3", "stroke", "Encounter/ward-9", AuditEvent.AuditEventAction.C, "DiagnosticReport", 3000));
+        // not part of the workflow
+        myAuditEvents.add(newAuditEvent("h2", "hip-replacement", "Encounter/ortho-12", AuditEvent.AuditEventAction.R, "Patient", 3500));
+    }
+
+    @Test
+    public void testLogsOfSeveralPlanDefinitionsFromOneSearch() {
+        Map<String, EventLog> eventLogs = myStore.getEventLogs(new HashSet<>(Arrays.asList("stroke", "hip-replacement", "copd")), EventLogFilter.ALL);
+
+        assertEquals(1, mySearches.get());
+        assertEquals(Arrays.asList("copd", "hip-replacement", "stroke"), new ArrayList<>(eventLogs.keySet()));
+        assertTrue(eventLogs.get("copd").getTraces().isEmpty());
+        assertEquals(Collections.singletonList("Encounter/ortho-12"), getCaseIds(eventLogs.get("hip-replacement")));
+        assertEquals(1, eventLogs.get("hip-replacement").getTraces().iterator().next().size());
+        EventLog stroke = eventLogs.get("stroke");
+        assertEquals(Arrays.asList("Encounter/ward-4", "Encounter/ward-9"), getCaseIds(stroke));
+        assertEquals(3, stroke.getTraces().stream().mapToInt(Trace::size).sum());
+
+        // kept, only the missing log is loaded
+        assertSame(stroke, myStore.getEventLog("stroke", EventLogFilter.ALL));
+        assertEquals(1, mySearches.get());
+        eventLogs = myStore.getEventLogs(new HashSet<>(Arrays.asList("stroke", "asthma")), EventLogFilter.ALL);
+        assertEquals(2, mySearches.get());
+        assertSame(stroke, eventLogs.get("stroke"));
+        assertEquals(Collections.singletonList("Encounter/gp-88"), getCaseIds(eventLogs.get("asthma")));
+    }
+
+    @Test
+    public void testLogsOfAllPlanDefinitions() {
+        Map<String, EventLog> eventLogs = myStore.getEventLogs(null, EventLogFilter.ALL);
+
+        assertEquals(1, mySearches.get());
+        assertEquals(Arrays.asList("asthma", "hip-replacement", "stroke"), new ArrayList<>(eventLogs.keySet()));
+
+        // once all logs were loaded, an event of a new PlanDefinition starts a log without a search
+        myStore.append(newAuditEvent("p1", "pneumonia", "Encounter/icu-2", AuditEvent.AuditEventAction.C, "Appointment", 4000));
+        eventLogs = myStore.getEventLogs(null, EventLogFilter.ALL);
+        assertEquals(1, mySearches.get());
+        assertEquals(Arrays.asList("asthma", "hip-replacement", "pneumonia", "stroke"), new ArrayList<>(eventLogs.keySet()));
+        assertEquals(Collections.singletonList("Encounter/icu-2"), getCaseIds(eventLogs.get("pneumonia")));
+    }
+
+    @Test
+    public void testAppendedEventsOfLogsNotLoadedAreReadFromTheDatabase() {
+        AuditEvent auditEvent = newAuditEvent("s4", "stroke", "Encounter/ward-11", AuditEvent.AuditEventAction.C, "Appointment", 4000);
+        myStore.append(auditEvent);
+        myAuditEvents.add(auditEvent);
+
+        EventLog stroke = myStore.getEventLogs(Collections.singleton("stroke"), EventLogFilter.ALL).get("stroke");
+        assertEquals(Arrays.asList("Encounter/ward-11", "Encounter/ward-4", "Encounter/ward-9"), getCaseIds(stroke));
+        assertEquals(4, stroke.getTraces().stream().mapToInt(Trace::size).sum());
+    }
+
+    private static List<String> getCaseIds(EventLog theEventLog) {
+        List<String> caseIds = new ArrayList<>();
+        for (Trace trace : theEventLog.getTraces()) {
+            caseIds.add(trace.getCaseId());
+        }
+        Collections.sort(caseIds);
+        return caseIds;
+    }
+
+    private static AuditEvent newAuditEvent(String theId, String thePlanDefinitionId, String theCaseId, AuditEvent.AuditEventAction theAction, String theType, long theRecorded) {
+        AuditEvent auditEvent = new AuditEvent();
+        auditEvent.setId(theId);
+        auditEvent.setRecorded(new Date(theRecorded));
+        auditEvent.setAction(theAction);
+        auditEvent.addEntity().setWhat(new Reference().setType(theType));
+        auditEvent.addExtension(new Extension(AuditEventSearchParameters.BASED_ON_EXTENSION_URL, new Reference("PlanDefinition/" + thePlanDefinitionId)));
+        auditEvent.addExtension(new Extension(AuditEventSearchParameters.ENCOUNTER_EXTENSION_URL, new Reference(theCaseId)));
+        return auditEvent;
+    }
+
+    /**
+     * Every search returns all AuditEvents, the events of other PlanDefinitions are skipped by the store
+     */
+    @SuppressWarnings("unchecked")
+    private IFhirResourceDao<AuditEvent> newAuditEventDao() {
+        return (IFhirResourceDao<AuditEvent>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{IFhirResourceDao.class}, (proxy, method, args) -> {
+            if (!method.getName().equals("search")) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            mySearches.incrementAndGet();
+            List<IBaseResource> auditEvents = new ArrayList<>(myAuditEvents);
+            return (IBundleProvider) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{IBundleProvider.class}, (bundleProxy, bundleMethod, bundleArgs) -> {
+                if (!bundleMethod.getName().equals("getResources")) {
+                    throw new UnsupportedOperationException(bundleMethod.getName());
+                }
+                int from = Math.min((Integer) bundleArgs[0], auditEvents.size());
+                int to = Math.min((Integer) bundleArgs[1], auditEvents.size());
+                return auditEvents.subList(from, to);
+            });
+        });
+    }
+}
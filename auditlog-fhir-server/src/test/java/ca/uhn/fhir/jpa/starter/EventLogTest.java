@@ -0,0 +1,39 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+public class EventLogTest {
+
+    @Test
+    public void testValidatorChangesWithEveryAddedEvent() {
+        EventLog eventLog = new EventLog("1");
+        String empty = eventLog.getValidator();
+
+        eventLog.add("Encounter/1", new XESEvent("Admit", "complete", new Date(1000), null, "AuditEvent/1"), null);
+        String first = eventLog.getValidator();
+        assertNotEquals(empty, first);
+
+        // the creation hook reports an event the load already found
+        assertFalse(eventLog.add("Encounter/1", new XESEvent("Admit", "complete", new Date(1000), null, "AuditEvent/1"), null));
+        assertEquals(first, eventLog.getValidator());
+
+        eventLog.add("Encounter/2", new XESEvent("Admit", "complete", new Date(500), null, "AuditEvent/2"), null);
+        assertNotEquals(first, eventLog.getValidator());
+    }
+
+    @Test
+    public void testLogLoadedAgainGetsAnotherValidator() {
+        EventLog dropped = new EventLog("1");
+        EventLog loaded = new EventLog("1");
+        dropped.add("Encounter/1", new XESEvent("Admit", "complete", new Date(1000), null, "AuditEvent/1"), null);
+        loaded.add("Encounter/1", new XESEvent("Admit", "complete", new Date(1000), null, "AuditEvent/1"), null);
+
+        assertNotEquals(dropped.getValidator(), loaded.getValidator());
+    }
+}
@@ -8,27 +8,37 @@ import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
 import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
 import ca.uhn.fhir.test.utilities.JettyUtil;
+import org.apache.commons.io.IOUtils;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.webapp.WebAppContext;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Appointment;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Subscription;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import static ca.uhn.fhir.util.TestUtil.waitForSize;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 public class ExampleServerR4IT {
 
@@ -37,6 +47,7 @@ public class ExampleServerR4IT {
     private static FhirContext ourCtx;
     private static int ourPort;
     private static Server ourServer;
+    private static String ourServerBase;
 
     static {
         HapiProperties.forceReload();
@@ -117,6 +128,41 @@ public class ExampleServerR4IT {
         ourClient.delete().resourceById(mySubscriptionId).execute();
     }
 
+    @Test
+    public void testXesExport() throws Exception {
+        IIdType encounterId = ourClient.create().resource(new Encounter().setStatus(Encounter.EncounterStatus.INPROGRESS)).execute().getId().toUnqualifiedVersionless();
+
+        Appointment appointment = new Appointment();
+        appointment.setStatus(Appointment.AppointmentStatus.BOOKED);
+        appointment.addParticipant().setStatus(Appointment.ParticipationStatus.ACCEPTED);
+        appointment.addExtension("http://aist.fh-hagenberg.at/fhir/extensions/appointment-encounter-extension", new Reference(encounterId));
+        ourClient.create().resource(appointment).execute();
+
+        HttpURLConnection connection = openConnection("AuditEvent/$xes?plandefinition=PlanDefinition/" + HapiProperties.getAuditEventPlanDefinitionId());
+        assertEquals(200, connection.getResponseCode());
+        assertNotNull(connection.getHeaderField(XESProvider.CONTINUATION_TOKEN_HEADER));
+        String eTag = connection.getHeaderField("ETag");
+        assertNotNull(eTag);
+        String xes;
+        try (InputStream inputStream = connection.getInputStream()) {
+            xes = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }
+        assertTrue(xes, xes.contains("<string key=\"concept:name\" value=\"" + encounterId.getValue() + "\"/>"));
+        assertTrue(xes, xes.contains("<string key=\"concept:name\" value=\"Schedule Appointment\"/>"));
+
+        // auditing the export did not add an event to the log, the client keeps its copy
+        connection = openConnection("AuditEvent/$xes?plandefinition=PlanDefinition/" + HapiProperties.getAuditEventPlanDefinitionId());
+        connection.setRequestProperty("If-None-Match", eTag);
+        assertEquals(304, connection.getResponseCode());
+
+        connection = openConnection("AuditEvent/$xes?plandefinition=Patient/1");
+        assertEquals(400, connection.getResponseCode());
+    }
+
+    private static HttpURLConnection openConnection(String theRelativeUrl) throws Exception {
+        return (HttpURLConnection) new URL(ourServerBase + theRelativeUrl).openConnection();
+    }
+
     @AfterClass
     public static void afterClass() throws Exception {
         ourServer.stop();
@@ -144,7 +190,6 @@ public class ExampleServerR4IT {
 
         ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
         ourCtx.getRestfulClientFactory().setSocketTimeout(1200 * 1000);
-        String ourServerBase = HapiProperties.getServerAddress();
         ourServerBase = "http://localhost:" + ourPort + "/hapi-fhir-jpaserver/fhir/";
 
         ourClient = ourCtx.newRestfulGenericClient(ourServerBase);
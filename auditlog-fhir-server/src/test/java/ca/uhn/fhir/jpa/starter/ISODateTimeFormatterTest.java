@@ -0,0 +1,113 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class ISODateTimeFormatterTest {
+
+    private static final String[] ZONES = {"UTC", "Europe/Berlin", "America/New_York", "America/St_Johns", "Asia/Kathmandu", "Australia/Lord_Howe", "Pacific/Chatham"};
+
+    @Test
+    public void testRandomTimestampsMatchIsoOffsetDateTime() {
+        Random random = new Random(42);
+        long min = Instant.parse("0001-01-01T00:00:00Z").toEpochMilli();
+        long max = Instant.parse("9999-12-31T00:00:00Z").toEpochMilli();
+        for (String zone : ZONES) {
+            ISODateTimeFormatter formatter = new ISODateTimeFormatter(ZoneId.of(zone));
+            for (int i = 0; i < 100_000; i++) {
+                long millis = min + (long) (random.nextDouble() * (max - min));
+                assertFormatted(formatter, ZoneId.of(zone), millis);
+            }
+        }
+    }
+
+    @Test
+    public void testEveryDayAroundLeapYearsAndCenturies() {
+        // civil-from-days has to get the leap days of 1900 (none), 2000 (one) and 2100 (none) right
+        ISODateTimeFormatter formatter = new ISODateTimeFormatter(ZoneOffset.UTC);
+        long first = LocalDate.of(1895, 1, 1).toEpochDay();
+        long last = LocalDate.of(2105, 12, 31).toEpochDay();
+        for (long day = first; day <= last; day++) {
+            long millis = day * 24 * 60 * 60 * 1000;
+            assertFormatted(formatter, ZoneOffset.UTC, millis);
+            assertFormatted(formatter, ZoneOffset.UTC, millis - 1);
+        }
+        assertEquals("2000-02-29T00:00:00Z", format(formatter, Instant.parse("2000-02-29T00:00:00Z").toEpochMilli()));
+        assertEquals("1900-03-01T00:00:00Z", format(formatter, Instant.parse("1900-02-28T00:00:00Z").toEpochMilli() + 24 * 60 * 60 * 1000));
+        assertEquals("1969-12-31T23:59:59.999Z", format(formatter, -1));
+        assertEquals("1970-01-01T00:00:00Z", format(formatter, 0));
+    }
+
+    @Test
+    public void testFractionWithoutTrailingZeros() {
+        ISODateTimeFormatter formatter = new ISODateTimeFormatter(ZoneOffset.UTC);
+        long second = Instant.parse("2020-08-06T10:15:30Z").toEpochMilli();
+        assertEquals("2020-08-06T10:15:30Z", format(formatter, second));
+        assertEquals("2020-08-06T10:15:30.2Z", format(formatter, second + 200));
+        assertEquals("2020-08-06T10:15:30.25Z", format(formatter, second + 250));
+        assertEquals("2020-08-06T10:15:30.251Z", format(formatter, second + 251));
+        assertEquals("2020-08-06T10:15:30.001Z", format(formatter, second + 1));
+        assertEquals("2020-08-06T10:15:30.01Z", format(formatter, second + 10));
+    }
+
+    @Test
+    public void testOffsetIsUpdatedAtEveryTransition() {
+        // the cached offset is only valid between two transitions, jumping back and forth has to look it up again
+        for (String zone : ZONES) {
+            ZoneId zoneId = ZoneId.of(zone);
+            ISODateTimeFormatter formatter = new ISODateTimeFormatter(zoneId);
+            Instant instant = Instant.parse("2015-01-01T00:00:00Z");
+            ZoneOffsetTransition transition;
+            while ((transition = zoneId.getRules().nextTransition(instant)) != null && transition.getInstant().isBefore(Instant.parse("2025-01-01T00:00:00Z"))) {
+                long millis = transition.getInstant().toEpochMilli();
+                long[] sequence = {millis - 1, millis, millis - 1, millis + 1, millis - 60 * 60 * 1000, millis + 60 * 60 * 1000, millis};
+                for (long timestamp : sequence) {
+                    assertFormatted(formatter, zoneId, timestamp);
+                }
+                instant = transition.getInstant();
+            }
+        }
+    }
+
+    @Test
+    public void testYearsWithoutFourDigits() {
+        ISODateTimeFormatter formatter = new ISODateTimeFormatter(ZoneId.of("Europe/Berlin"));
+        assertFormatted(formatter, ZoneId.of("Europe/Berlin"), Instant.parse("-0001-06-01T12:00:00Z").toEpochMilli());
+        assertFormatted(formatter, ZoneId.of("Europe/Berlin"), Instant.parse("0000-01-01T00:00:00Z").toEpochMilli());
+        assertFormatted(formatter, ZoneId.of("Europe/Berlin"), Instant.parse("+10000-01-01T00:00:00.5Z").toEpochMilli());
+        // the fast path resumes with the right offset afterwards
+        assertFormatted(formatter, ZoneId.of("Europe/Berlin"), Instant.parse("2020-07-01T00:00:00Z").toEpochMilli());
+    }
+
+    @Test
+    public void testWritesAtThePosition() {
+        ISODateTimeFormatter formatter = new ISODateTimeFormatter(ZoneOffset.ofHours(2));
+        byte[] buffer = new byte[3 + ISODateTimeFormatter.MAX_LENGTH];
+        buffer[0] = 'a';
+        buffer[1] = 'b';
+        buffer[2] = 'c';
+        int end = formatter.format(Instant.parse("2020-08-06T08:15:30.25Z").toEpochMilli(), buffer, 3);
+        assertEquals("abc2020-08-06T10:15:30.25+02:00", new String(buffer, 0, end, StandardCharsets.US_ASCII));
+    }
+
+    private static void assertFormatted(ISODateTimeFormatter theFormatter, ZoneId theZone, long theMillis) {
+        String expected = DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(Instant.ofEpochMilli(theMillis).atZone(theZone));
+        assertEquals("Epoch millis " + theMillis + " in " + theZone, expected, format(theFormatter, theMillis));
+    }
+
+    private static String format(ISODateTimeFormatter theFormatter, long theMillis) {
+        byte[] buffer = new byte[ISODateTimeFormatter.MAX_LENGTH];
+        int end = theFormatter.format(theMillis, buffer, 0);
+        return new String(buffer, 0, end, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,68 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class LongIntHashMapTest {
+
+    @Test
+    public void testPutAndGet() {
+        LongIntHashMap map = new LongIntHashMap();
+        assertEquals(-1, map.get(42));
+
+        map.put(42, 1);
+        map.put(0, 2);
+        map.put(Long.MIN_VALUE, 3);
+        map.put(Long.MAX_VALUE, 0);
+
+        assertEquals(1, map.get(42));
+        assertEquals(2, map.get(0));
+        assertEquals(3, map.get(Long.MIN_VALUE));
+        assertEquals(0, map.get(Long.MAX_VALUE));
+        assertEquals(-1, map.get(43));
+        assertEquals(4, map.size());
+    }
+
+    @Test
+    public void testPutReplacesTheValue() {
+        LongIntHashMap map = new LongIntHashMap();
+        map.put(42, 1);
+        map.put(42, 7);
+
+        assertEquals(7, map.get(42));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testGrowsLikeAHashMap() {
+        Random random = new Random(3);
+        LongIntHashMap map = new LongIntHashMap(1);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100_000; i++) {
+            // few distinct high bits, so the slots depend on the mixing of the hash
+            long key = random.nextBoolean() ? random.nextLong() : (long) random.nextInt(50_000) << 32;
+            int value = random.nextInt(Integer.MAX_VALUE);
+            map.put(key, value);
+            expected.put(key, value);
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+        }
+        for (int i = 0; i < 100_000; i++) {
+            long key = random.nextLong();
+            assertEquals(expected.containsKey(key) ? expected.get(key) : -1, map.get(key));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeValue() {
+        new LongIntHashMap().put(1, -1);
+    }
+}
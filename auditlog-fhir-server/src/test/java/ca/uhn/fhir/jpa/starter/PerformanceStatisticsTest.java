@@ -0,0 +1,118 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PerformanceStatisticsTest {
+
+    private static final long MINUTE = 60_000;
+
+    @Test
+    public void testSojournAndElapsedTimes() {
+        PerformanceStatistics statistics = new PerformanceStatistics("Sepsis", Arrays.asList("Triage", "Antibiotics", "Discharge"));
+        statistics.addTrace(newTrace("Encounter/er-1", "Triage", 0, "Antibiotics", 45, "Discharge", 300), EventLogFilter.ALL);
+        statistics.addTrace(newTrace("Encounter/er-2", "Triage", 10, "Antibiotics", 25), EventLogFilter.ALL);
+
+        assertEquals(2, statistics.getTraceCount());
+        assertEquals(5, statistics.getEventCount());
+        assertEquals(2, statistics.getActivityCount(1));
+        // Triage started both cases, it has no sojourn time
+        assertEquals(0, statistics.getSojournTimes(0).getCount());
+        assertEquals(30 * MINUTE, statistics.getSojournTimes(1).getMean(), 0);
+        assertEquals(45 * MINUTE, statistics.getElapsedTimes(1).getMax());
+        assertEquals(255 * MINUTE, statistics.getSojournTimes(2).getMax());
+        assertEquals(15 * MINUTE, statistics.getCaseDurations().getMin());
+        assertEquals(300 * MINUTE, statistics.getCaseDurations().getMax());
+    }
+
+    @Test
+    public void testOnlyEventsInTheTimeWindowAreConsidered() {
+        PerformanceStatistics statistics = new PerformanceStatistics("Sepsis", Collections.emptyList());
+        Trace trace = newTrace("Encounter/er-3", "Triage", 0, "Antibiotics", 60, "Discharge", 120);
+        statistics.addTrace(trace, new EventLogFilter(new Date(30 * MINUTE), null));
+        statistics.addTrace(trace, new EventLogFilter(new Date(500 * MINUTE), null));
+
+        assertEquals(1, statistics.getTraceCount());
+        assertEquals(Arrays.asList("Antibiotics", "Discharge"), statistics.getActivities());
+        assertEquals(60 * MINUTE, statistics.getCaseDurations().getMax());
+        assertEquals(0, statistics.getElapsedTimes(0).getMax());
+    }
+
+    @Test
+    public void testMergedStatisticsEqualStatisticsOfAllTraces() {
+        Trace[] traces = {
+            newTrace("Claim/a17", "Submit", 0, "Review", 1440, "Pay", 2880),
+            newTrace("Claim/b02", "Submit", 5, "Review", 65, "Reject", 70),
+            newTrace("Claim/c44", "Submit", 100, "Pay", 160),
+            newTrace("Claim/d90", "Submit", 0, "Review", 30, "Review", 90, "Pay", 4000)
+        };
+        PerformanceStatistics all = new PerformanceStatistics("Claims", Arrays.asList("Submit", "Review", "Pay"));
+        for (Trace trace : traces) {
+            all.addTrace(trace, EventLogFilter.ALL);
+        }
+        // the chunks learn the activities in a different order, they are matched by name
+        PerformanceStatistics first = new PerformanceStatistics("Claims", Arrays.asList("Submit", "Review", "Pay"));
+        first.addTrace(traces[0], EventLogFilter.ALL);
+        first.addTrace(traces[2], EventLogFilter.ALL);
+        PerformanceStatistics second = new PerformanceStatistics("Claims", Collections.emptyList());
+        second.addTrace(traces[1], EventLogFilter.ALL);
+        second.addTrace(traces[3], EventLogFilter.ALL);
+        assertEquals(Arrays.asList("Submit", "Review", "Reject", "Pay"), second.getActivities());
+
+        first.merge(second);
+
+        assertEquals(all.getTraceCount(), first.getTraceCount());
+        assertEquals(all.getEventCount(), first.getEventCount());
+        assertEquals(Arrays.asList("Submit", "Review", "Pay", "Reject"), first.getActivities());
+        for (int activity = 0; activity < 3; activity++) {
+            assertEquals(all.getActivityCount(activity), first.getActivityCount(activity));
+            assertSameDurations(all.getSojournTimes(activity), first.getSojournTimes(activity));
+            assertSameDurations(all.getElapsedTimes(activity), first.getElapsedTimes(activity));
+        }
+        assertEquals(1, first.getActivityCount(3));
+        assertEquals(5 * MINUTE, first.getSojournTimes(3).getMax());
+        assertSameDurations(all.getCaseDurations(), first.getCaseDurations());
+    }
+
+    @Test
+    public void testActivitiesThatNeverOccurredAreNotWritten() throws Exception {
+        PerformanceStatistics statistics = new PerformanceStatistics("Imaging", Arrays.asList("Order", "Scan", "Report"));
+        statistics.addTrace(newTrace("ServiceRequest/mri-8", "Order", 0, "Report", 90), EventLogFilter.ALL);
+
+        StringWriter writer = new StringWriter();
+        statistics.writeJson(writer);
+        String json = writer.toString();
+        assertTrue(json, json.contains("\"name\": \"Report\""));
+        assertFalse(json, json.contains("\"Scan\""));
+        assertTrue(json, json.contains("\"traces\": 1"));
+    }
+
+    private static void assertSameDurations(DurationHistogram theExpected, DurationHistogram theActual) {
+        assertEquals(theExpected.getCount(), theActual.getCount());
+        assertEquals(theExpected.getMean(), theActual.getMean(), 0);
+        assertEquals(theExpected.getMin(), theActual.getMin());
+        assertEquals(theExpected.getMax(), theActual.getMax());
+        assertEquals(theExpected.getPercentile(50), theActual.getPercentile(50));
+        assertEquals(theExpected.getPercentile(90), theActual.getPercentile(90));
+    }
+
+    /**
+     * Trace of alternating activities and minutes
+     */
+    private static Trace newTrace(String theCaseId, Object... theEvents) {
+        Trace trace = new Trace(theCaseId);
+        for (int i = 0; i < theEvents.length; i += 2) {
+            long minutes = ((Number) theEvents[i + 1]).longValue();
+            trace.add(new XESEvent((String) theEvents[i], "complete", new Date(minutes * MINUTE), null, theCaseId + "-" + i), null);
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,130 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.hl7.fhir.r4.model.PlanDefinition.ActionRelationshipType;
+import org.hl7.fhir.r4.model.PlanDefinition.PlanDefinitionActionComponent;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PlanDefinitionCompilerTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void testOrderedActions() {
+        PlanDefinition planDefinition = new PlanDefinition().setId("PlanDefinition/radiology");
+        PlanDefinitionActionComponent order = addAction(planDefinition, "order", "Order Imaging");
+        PlanDefinitionActionComponent schedule = addAction(planDefinition, "schedule", "Schedule Appointment");
+        PlanDefinitionActionComponent report = addAction(planDefinition, "report", "Write Report");
+        order.addRelatedAction().setActionId("schedule").setRelationship(ActionRelationshipType.BEFORESTART);
+        // the same ordering, declared from the other side
+        report.addRelatedAction().setActionId("schedule").setRelationship(ActionRelationshipType.AFTER);
+        schedule.addRelatedAction().setActionId("report").setRelationship(ActionRelationshipType.BEFOREEND);
+
+        PetriNet net = PlanDefinitionCompiler.compile(planDefinition);
+
+        assertEquals("PlanDefinition/radiology", net.getName());
+        assertEquals(Arrays.asList("Order Imaging", "Schedule Appointment", "Write Report"), getTransitions(net));
+        assertEquals(Arrays.asList("Order Imaging -> Schedule Appointment", "Schedule Appointment -> Write Report",
+            "start -> Order Imaging", "Write Report -> end"), getPlaces(net));
+
+        TokenReplay replay = new TokenReplay(net);
+        assertEquals(1.0, fire(replay, "Order Imaging", "Schedule Appointment", "Write Report").getFitness(), DELTA);
+        TokenReplay.CaseReplay early = fire(replay, "Order Imaging", "Write Report", "Schedule Appointment");
+        assertTrue(early.hasDeviated());
+        assertEquals(1, early.getMissing());
+        assertEquals(1, early.getRemaining());
+    }
+
+    @Test
+    public void testConcurrentActionsAreNotOrdered() {
+        PlanDefinition planDefinition = new PlanDefinition().setId("PlanDefinition/lab");
+        addAction(planDefinition, "blood", "Draw Blood");
+        addAction(planDefinition, "urine", "Collect Urine").addRelatedAction().setActionId("blood").setRelationship(ActionRelationshipType.CONCURRENT);
+
+        PetriNet net = PlanDefinitionCompiler.compile(planDefinition);
+
+        // every action starts and ends on its own
+        assertEquals(Arrays.asList("start -> Draw Blood", "Draw Blood -> end", "start -> Collect Urine", "Collect Urine -> end"), getPlaces(net));
+        TokenReplay replay = new TokenReplay(net);
+        assertFalse(fire(replay, "Collect Urine", "Draw Blood").hasDeviated());
+        // all actions have to be executed once per case
+        TokenReplay.CaseReplay incomplete = fire(replay, "Draw Blood");
+        assertEquals(1, incomplete.getMissing());
+        assertEquals(1, incomplete.getRemaining());
+    }
+
+    @Test
+    public void testNestedActionsAreFlattened() {
+        PlanDefinition planDefinition = new PlanDefinition().setId("PlanDefinition/discharge");
+        PlanDefinitionActionComponent group = planDefinition.addAction().setTitle("Discharge");
+        group.addAction().setId("letter").setTitle("Write Letter");
+        group.addAction().setTitle("Return Equipment").addRelatedAction().setActionId("letter").setRelationship(ActionRelationshipType.AFTERSTART);
+        // an action without a title can't be matched with an activity
+        planDefinition.addAction().setId("note");
+
+        PetriNet net = PlanDefinitionCompiler.compile(planDefinition);
+
+        assertEquals(Arrays.asList("Write Letter", "Return Equipment"), getTransitions(net));
+        assertEquals(Arrays.asList("Write Letter -> Return Equipment", "start -> Write Letter", "Return Equipment -> end"), getPlaces(net));
+    }
+
+    @Test
+    public void testInvalidPlanDefinitions() {
+        PlanDefinition empty = new PlanDefinition().setId("PlanDefinition/empty");
+        empty.addAction().setId("untitled");
+        try {
+            PlanDefinitionCompiler.compile(empty);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("PlanDefinition/empty has no actions with a title", e.getMessage());
+        }
+
+        PlanDefinition dangling = new PlanDefinition().setId("PlanDefinition/dangling");
+        addAction(dangling, "admit", "Admit").addRelatedAction().setActionId("transfer").setRelationship(ActionRelationshipType.BEFORE);
+        try {
+            PlanDefinitionCompiler.compile(dangling);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Action 'Admit' refers to the unknown action 'transfer'", e.getMessage());
+        }
+    }
+
+    private static PlanDefinitionActionComponent addAction(PlanDefinition thePlanDefinition, String theId, String theTitle) {
+        PlanDefinitionActionComponent action = thePlanDefinition.addAction().setTitle(theTitle);
+        action.setId(theId);
+        return action;
+    }
+
+    private static TokenReplay.CaseReplay fire(TokenReplay theReplay, String... theActivities) {
+        TokenReplay.CaseReplay replay = theReplay.start("Encounter/1");
+        for (String activity : theActivities) {
+            replay.fire(activity);
+        }
+        return replay;
+    }
+
+    private static List<String> getTransitions(PetriNet theNet) {
+        List<String> transitions = new ArrayList<>();
+        for (int transition = 0; transition < theNet.getTransitionCount(); transition++) {
+            transitions.add(theNet.getTransition(transition));
+        }
+        return transitions;
+    }
+
+    private static List<String> getPlaces(PetriNet theNet) {
+        List<String> places = new ArrayList<>();
+        for (int place = 0; place < theNet.getPlaceCount(); place++) {
+            places.add(theNet.getPlace(place));
+        }
+        return places;
+    }
+}
@@ -0,0 +1,151 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenReplayTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void testConformantCase() {
+        TokenReplay.CaseReplay replay = fire(new TokenReplay(newSequence("Register", "Examine", "Report")), "Register", "Examine", "Report");
+
+        assertFalse(replay.hasDeviated());
+        assertEquals(0, replay.getMissing());
+        assertEquals(0, replay.getRemaining());
+        assertEquals(1.0, replay.getFitness(), DELTA);
+    }
+
+    @Test
+    public void testSkippedActivityMissesAToken() {
+        TokenReplay replay = new TokenReplay(newSequence("Register", "Examine", "Report"));
+        TokenReplay.CaseReplay caseReplay = replay.start("Encounter/7");
+
+        assertTrue(caseReplay.fire("Register"));
+        // Examine was skipped, Report lacks the token Examine would have produced
+        assertFalse(caseReplay.fire("Report"));
+
+        assertTrue(caseReplay.hasDeviated());
+        assertEquals(1, caseReplay.getMissing());
+        // and the token Register produced for Examine is left behind
+        assertEquals(1, caseReplay.getRemaining());
+        // 3 consumed including the final token, 3 produced including the initial one
+        assertEquals(2.0 / 3, caseReplay.getFitness(), DELTA);
+        assertEquals(1, caseReplay.getFirings(2));
+        assertEquals(1, caseReplay.getMissingFirings(2));
+        assertEquals(0, caseReplay.getMissingFirings(0));
+    }
+
+    @Test
+    public void testRepeatedActivity() {
+        TokenReplay.CaseReplay replay = fire(new TokenReplay(newSequence("Register", "Examine", "Report")), "Register", "Examine", "Examine", "Report");
+
+        assertTrue(replay.hasDeviated());
+        assertEquals(1, replay.getMissing());
+        assertEquals(1, replay.getRemaining());
+        assertEquals(0.8, replay.getFitness(), DELTA);
+        assertEquals(2, replay.getFirings(1));
+    }
+
+    @Test
+    public void testUnfinishedCaseLeavesTokensBehind() {
+        TokenReplay.CaseReplay replay = fire(new TokenReplay(newSequence("Register", "Examine", "Report")), "Register", "Examine");
+
+        // nothing went wrong so far, the case just did not reach the final marking yet
+        assertFalse(replay.hasDeviated());
+        assertEquals(1, replay.getRemaining());
+        assertEquals(1, replay.getMissing());
+        assertEquals(2.0 / 3, replay.getFitness(), DELTA);
+    }
+
+    @Test
+    public void testTokensProducedBeyondTheFinalMarking() {
+        // Examine also produces a token for a follow-up that never happens
+        PetriNet net = newSequence("Register", "Examine");
+        int followUp = net.addPlace("Examine -> Follow-up");
+        net.addOutputArc(1, followUp);
+
+        TokenReplay.CaseReplay replay = fire(new TokenReplay(net), "Register", "Examine");
+
+        assertFalse(replay.hasDeviated());
+        assertEquals(0, replay.getMissing());
+        assertEquals(1, replay.getRemaining());
+        // 4 produced including the initial token, one of them remains
+        assertEquals(0.5 + (1 - 1.0 / 4) / 2, replay.getFitness(), DELTA);
+    }
+
+    @Test
+    public void testUnmodelledActivity() {
+        TokenReplay.CaseReplay replay = new TokenReplay(newSequence("Register", "Report")).start("Encounter/3");
+
+        assertTrue(replay.fire("Register"));
+        assertFalse(replay.fire("Phone call"));
+        assertFalse(replay.fire("Phone call"));
+        assertTrue(replay.fire("Report"));
+
+        assertTrue(replay.hasDeviated());
+        assertEquals(Collections.singletonMap("Phone call", 2), replay.getUnmodelled());
+        // activities outside of the net don't touch the marking
+        assertEquals(1.0, replay.getFitness(), DELTA);
+    }
+
+    @Test
+    public void testReplaySortsTheEvents() {
+        TokenReplay replay = new TokenReplay(newSequence("Register", "Examine", "Report"));
+
+        TokenReplay.CaseReplay caseReplay = replay.replay("Encounter/1", Arrays.asList(
+            new XESEvent("Report", "complete", new Date(3000)),
+            new XESEvent("Register", "complete", new Date(1000)),
+            new XESEvent("Examine", "complete", new Date(2000))));
+
+        assertEquals("Encounter/1", caseReplay.getCaseId());
+        assertEquals(1.0, caseReplay.getFitness(), DELTA);
+    }
+
+    @Test
+    public void testCasesAreReplayedIndependently() {
+        TokenReplay replay = new TokenReplay(newSequence("Register", "Report"));
+        TokenReplay.CaseReplay first = replay.start("Encounter/1");
+        TokenReplay.CaseReplay second = replay.start("Encounter/2");
+
+        assertTrue(first.fire("Register"));
+        assertFalse(second.fire("Report"));
+        assertTrue(first.fire("Report"));
+
+        assertFalse(first.hasDeviated());
+        assertTrue(second.hasDeviated());
+    }
+
+    /**
+     * @return net that executes the activities one after the other, with a place before the first and after the last
+     */
+    private static PetriNet newSequence(String... theActivities) {
+        PetriNet net = new PetriNet("sequence");
+        int place = net.addPlace("start");
+        net.setInitialMarking(place, 1);
+        for (String activity : theActivities) {
+            int transition = net.addTransition(activity);
+            net.addInputArc(place, transition);
+            place = net.addPlace(activity + " ->");
+            net.addOutputArc(transition, place);
+        }
+        net.setFinalMarking(place, 1);
+        return net;
+    }
+
+    private static TokenReplay.CaseReplay fire(TokenReplay theReplay, String... theActivities) {
+        TokenReplay.CaseReplay replay = theReplay.start("Encounter/1");
+        for (String activity : theActivities) {
+            replay.fire(activity);
+        }
+        return replay;
+    }
+}
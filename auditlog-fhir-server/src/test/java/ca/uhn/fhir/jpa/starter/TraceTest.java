@@ -0,0 +1,151 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TraceTest {
+
+    @Test
+    public void testSameAuditEventIsAddedOnce() {
+        Trace trace = new Trace("Encounter/1");
+
+        assertTrue(trace.add(new XESEvent("Admit", "complete", new Date(1000), null, "1"), new Date(5000)));
+        assertFalse(trace.add(new XESEvent("Admit", "complete", new Date(1000), null, "1"), null));
+        assertEquals(1, trace.size());
+    }
+
+    @Test
+    public void testDifferentAuditEventsInTheSameMillisecondAreKept() {
+        Trace trace = new Trace("Encounter/1");
+
+        assertTrue(trace.add(new XESEvent("Admit", "complete", new Date(1000), null, "1"), null));
+        assertTrue(trace.add(new XESEvent("Admit", "complete", new Date(1000), null, "2"), null));
+        assertTrue(trace.add(new XESEvent("Examine", "complete", new Date(1000), null, "3"), null));
+        assertFalse(trace.add(new XESEvent("Admit", "complete", new Date(1000), null, "2"), null));
+        assertEquals(Arrays.asList("Admit", "Admit", "Examine"), getActivities(trace.getEvents()));
+    }
+
+    @Test
+    public void testEventsWithoutIdAreAlwaysAdded() {
+        Trace trace = new Trace("Encounter/1");
+
+        assertTrue(trace.add(new XESEvent("Admit", "complete", new Date(1000)), null));
+        assertTrue(trace.add(new XESEvent("Admit", "complete", new Date(1000)), null));
+        assertEquals(2, trace.size());
+    }
+
+    @Test
+    public void testEventsAreOrderedByTimestamp() {
+        Trace trace = new Trace("Encounter/1");
+        trace.add(new XESEvent("Discharge", "complete", new Date(3000), "Device/1", "3"), null);
+        trace.add(new XESEvent("Admit", "complete", new Date(1000), null, "1"), null);
+        trace.add(new XESEvent("Examine", "start", new Date(2000), null, "2a"), null);
+        trace.add(new XESEvent("Examine", "complete", new Date(2000), null, "2b"), null);
+
+        List<XESEvent> events = trace.getEvents();
+        assertEquals(Arrays.asList("Admit", "Examine", "Examine", "Discharge"), getActivities(events));
+        // events with the same timestamp keep the order they were added in
+        assertEquals("start", events.get(1).getTransition());
+        assertEquals("complete", events.get(2).getTransition());
+        assertEquals(2000, events.get(2).getTimestamp().getTime());
+        assertEquals("Device/1", events.get(3).getResource());
+        assertNull(events.get(0).getResource());
+        assertEquals("Discharge", trace.getLatestEvent().getActivity());
+    }
+
+    @Test
+    public void testTimeWindow() {
+        Trace trace = newTrace();
+
+        assertEquals(Arrays.asList("Examine", "Discharge"), getActivities(trace.getEvents(new EventLogFilter(new Date(2000), new Date(3000)))));
+        assertEquals(Arrays.asList("Admit"), getActivities(trace.getEvents(new EventLogFilter(null, new Date(1999)))));
+
+        Trace.Events events = new Trace.Events();
+        trace.copyEvents(new EventLogFilter(new Date(2000), null), events);
+        assertEquals(2, events.size());
+        assertEquals("Examine", events.getActivity(0));
+        assertEquals(2000, events.getTimestamp(0));
+        assertEquals("complete", events.getTransition(1));
+        trace.copyEvents(EventLogFilter.ALL, events);
+        assertEquals(3, events.size());
+    }
+
+    @Test
+    public void testOnlyTracesChangedAfterTheContinuationToken() {
+        Trace trace = new Trace("Encounter/1");
+        trace.add(new XESEvent("Admit", "complete", new Date(1000), null, "1"), new Date(10_000));
+        trace.add(new XESEvent("Examine", "complete", new Date(2000), null, "2"), new Date(20_000));
+        assertEquals(20_000, trace.getLastStored());
+
+        // the whole trace is included, not only the events stored after the token
+        assertEquals(2, trace.getEvents(new EventLogFilter(null, null, new Date(19_999))).size());
+        assertEquals(0, trace.getEvents(new EventLogFilter(null, null, new Date(20_000))).size());
+        Trace.Events events = new Trace.Events();
+        trace.copyEvents(new EventLogFilter(null, null, new Date(20_000)), events);
+        assertEquals(0, events.size());
+
+        // an event that was just stored is stamped now
+        long before = System.currentTimeMillis();
+        trace.add(new XESEvent("Discharge", "complete", new Date(3000), null, "3"), null);
+        assertTrue(trace.getLastStored() >= before);
+        assertEquals(3, trace.getEvents(new EventLogFilter(null, null, new Date(before - 1))).size());
+    }
+
+    @Test
+    public void testDuplicatesDoNotChangeTheTrace() {
+        Trace trace = new Trace("Encounter/1");
+        trace.add(new XESEvent("Admit", "complete", new Date(1000), null, "1"), new Date(10_000));
+        trace.add(new XESEvent("Admit", "complete", new Date(1000), null, "1"), new Date(20_000));
+
+        assertEquals(10_000, trace.getLastStored());
+    }
+
+    @Test
+    public void testTracesOfALogShareTheirValues() {
+        Trace.Values values = new Trace.Values();
+        Trace radiology = new Trace("ServiceRequest/ct-7", values);
+        Trace cardiology = new Trace("ServiceRequest/ecg-2", values);
+        radiology.add(new XESEvent("Schedule scan", "start", new Date(1000), "Practitioner/radiographer-4", "a"), null);
+        radiology.add(new XESEvent("Report", "complete", new Date(5000), "Practitioner/radiologist-9", "b"), null);
+        cardiology.add(new XESEvent("Report", "complete", new Date(2000), "Practitioner/cardiologist-1", "c"), null);
+
+        // two activities, two transitions and three practitioners, Report and complete are kept once
+        assertEquals(7, values.size());
+
+        // one buffer is reused for traces with values of their own
+        Trace.Events events = new Trace.Events();
+        cardiology.copyEvents(EventLogFilter.ALL, events);
+        assertEquals("Practitioner/cardiologist-1", events.getResource(0));
+        Trace standalone = new Trace("ServiceRequest/lab-5");
+        standalone.add(new XESEvent("Draw blood", "complete", new Date(0), "Device/analyser", "d"), null);
+        standalone.copyEvents(EventLogFilter.ALL, events);
+        assertEquals("Draw blood", events.getActivity(0));
+        assertEquals("Device/analyser", events.getResource(0));
+        assertEquals(7, values.size());
+    }
+
+    private static Trace newTrace() {
+        Trace trace = new Trace("Encounter/1");
+        trace.add(new XESEvent("Admit", "complete", new Date(1000), null, "1"), null);
+        trace.add(new XESEvent("Examine", "complete", new Date(2000), null, "2"), null);
+        trace.add(new XESEvent("Discharge", "complete", new Date(3000), null, "3"), null);
+        return trace;
+    }
+
+    private static List<String> getActivities(List<XESEvent> theEvents) {
+        List<String> activities = new ArrayList<>();
+        for (XESEvent event : theEvents) {
+            activities.add(event.getActivity());
+        }
+        return activities;
+    }
+}
@@ -0,0 +1,130 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TraceVariantsTest {
+
+    @Test
+    public void testCountsVariants() {
+        EventLog log = new EventLog("1");
+        addTrace(log, "c1", "Admit", "Examine", "Discharge");
+        addTrace(log, "c2", "Admit", "Examine", "Discharge");
+        addTrace(log, "c3", "Admit", "Examine", "Discharge");
+        addTrace(log, "c4", "Admit", "Discharge");
+        addTrace(log, "c5", "Admit", "Discharge");
+        addTrace(log, "c6", "Admit", "Examine", "Examine", "Discharge");
+
+        TraceVariants variants = TraceVariants.of(log, EventLogFilter.ALL);
+
+        assertEquals(6, variants.getTraceCount());
+        assertEquals(3, variants.getVariantCount());
+        List<Integer> top = variants.getTopVariants(10);
+        assertEquals(3, top.size());
+        assertEquals(3, variants.getCount(top.get(0)));
+        assertEquals(Arrays.asList("Admit", "Examine", "Discharge"), variants.getActivities(top.get(0)));
+        assertEquals(Arrays.asList("c1", "c2", "c3"), variants.getExampleCases(top.get(0)));
+        assertEquals(2, variants.getCount(top.get(1)));
+        assertEquals(Arrays.asList("Admit", "Discharge"), variants.getActivities(top.get(1)));
+        assertEquals(Arrays.asList("c4", "c5"), variants.getExampleCases(top.get(1)));
+        assertEquals(1, variants.getCount(top.get(2)));
+        assertEquals(Arrays.asList("Admit", "Examine", "Examine", "Discharge"), variants.getActivities(top.get(2)));
+
+        assertEquals(top.subList(0, 2), variants.getTopVariants(2));
+    }
+
+    @Test
+    public void testEventsAreOrderedByTimestamp() {
+        EventLog log = new EventLog("1");
+        log.add("c1", new XESEvent("Discharge", "complete", new Date(3000)), null);
+        log.add("c1", new XESEvent("Admit", "complete", new Date(1000)), null);
+        addTrace(log, "c2", "Admit", "Discharge");
+
+        TraceVariants variants = TraceVariants.of(log, EventLogFilter.ALL);
+
+        assertEquals(1, variants.getVariantCount());
+        assertEquals(Arrays.asList("Admit", "Discharge"), variants.getActivities(0));
+        assertEquals(2, variants.getCount(0));
+    }
+
+    @Test
+    public void testOnlyEventsInTheTimeWindow() {
+        EventLog log = new EventLog("1");
+        addTrace(log, "c1", "Admit", "Examine", "Discharge");
+        addTrace(log, "c2", "Admit", "Discharge");
+
+        // the second event of every trace is recorded at 1000
+        TraceVariants variants = TraceVariants.of(log, new EventLogFilter(new Date(1000), null));
+
+        assertEquals(2, variants.getVariantCount());
+        assertEquals(2, variants.getTraceCount());
+        variants = TraceVariants.of(log, new EventLogFilter(new Date(2000), null));
+        assertEquals(1, variants.getVariantCount());
+        assertEquals(1, variants.getTraceCount());
+        assertEquals(Arrays.asList("Discharge"), variants.getActivities(0));
+    }
+
+    @Test
+    public void testMergedCountsOfALargeLog() {
+        // large enough to be split and counted in parallel
+        Random random = new Random(11);
+        String[] activities = {"Admit", "Examine", "Treat", "Discharge", "Not Mapped"};
+        EventLog log = new EventLog("1");
+        Map<List<String>, Integer> expected = new HashMap<>();
+        for (int trace = 0; trace < 20_000; trace++) {
+            String[] sequence = new String[1 + random.nextInt(4)];
+            for (int i = 0; i < sequence.length; i++) {
+                sequence[i] = activities[random.nextInt(activities.length)];
+            }
+            addTrace(log, "c" + trace, sequence);
+            expected.merge(Arrays.asList(sequence), 1, Integer::sum);
+        }
+
+        TraceVariants variants = TraceVariants.of(log, EventLogFilter.ALL);
+
+        assertEquals(20_000, variants.getTraceCount());
+        assertEquals(expected.size(), variants.getVariantCount());
+        long previous = Long.MAX_VALUE;
+        for (int variant : variants.getTopVariants(Integer.MAX_VALUE)) {
+            assertEquals((long) expected.get(variants.getActivities(variant)), variants.getCount(variant));
+            assertTrue(variants.getCount(variant) <= previous);
+            previous = variants.getCount(variant);
+            assertTrue(variants.getExampleCases(variant).size() <= TraceVariants.EXAMPLE_CASES);
+            assertEquals(Math.min(TraceVariants.EXAMPLE_CASES, variants.getCount(variant)), variants.getExampleCases(variant).size());
+        }
+    }
+
+    @Test
+    public void testWriteJson() throws Exception {
+        EventLog log = new EventLog("1");
+        addTrace(log, "c1", "Admit", "Discharge");
+        addTrace(log, "c2", "Admit", "Discharge");
+        addTrace(log, "c3", "Admit");
+
+        StringWriter writer = new StringWriter();
+        TraceVariants.of(log, EventLogFilter.ALL).writeJson(writer, 1);
+
+        String json = writer.toString().replaceAll("\\s", "");
+        assertEquals("{\"name\":\"PlanDefinition/1\",\"traces\":3,\"variantCount\":2,\"variants\":[" +
+            "{\"count\":2,\"activities\":[\"Admit\",\"Discharge\"],\"cases\":[\"c1\",\"c2\"]}]}", json);
+    }
+
+    /**
+     * Adds the activities to the trace of the case, one second apart
+     */
+    private static void addTrace(EventLog theLog, String theCaseId, String... theActivities) {
+        for (int i = 0; i < theActivities.length; i++) {
+            theLog.add(theCaseId, new XESEvent(theActivities[i], "complete", new Date(i * 1000L)), null);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.binstore.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.binstore.StoredDetails;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class XESExportJobSvcTest {
+
+    private final Map<String, byte[]> myBlobs = new ConcurrentHashMap<>();
+    private XESExportJobSvc mySvc;
+
+    @After
+    public void after() {
+        if (mySvc != null) {
+            mySvc.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompleteExport() throws Exception {
+        mySvc = new XESExportJobSvc(newBinaryStorage(), 2, 60_000);
+
+        XESExportJobSvc.Job job = mySvc.submit("1", "http://localhost/fhir/AuditEvent/$xes", outputStream -> outputStream.write("<log/>".getBytes(StandardCharsets.UTF_8)));
+        awaitEnd(job);
+
+        assertEquals(XESExportJobSvc.JobStatus.COMPLETE, job.getStatus());
+        assertEquals("1", job.getPlanDefinitionId());
+        assertEquals("http://localhost/fhir/AuditEvent/$xes", job.getRequest());
+        assertEquals(job, mySvc.getJob(job.getId()));
+        assertEquals("<log/>", readExport(job));
+    }
+
+    @Test
+    public void testFailedExport() throws Exception {
+        mySvc = new XESExportJobSvc(newBinaryStorage(), 2, 60_000);
+
+        XESExportJobSvc.Job job = mySvc.submit("1", "request", outputStream -> {
+            throw new IOException("Database unavailable");
+        });
+        awaitEnd(job);
+
+        assertEquals(XESExportJobSvc.JobStatus.ERROR, job.getStatus());
+        assertEquals("Database unavailable", job.getStatusMessage());
+        assertFalse(mySvc.writeExport(job, new ByteArrayOutputStream()));
+        assertTrue(myBlobs.isEmpty());
+    }
+
+    @Test
+    public void testCancelRunningExport() throws Exception {
+        mySvc = new XESExportJobSvc(newBinaryStorage(), 2, 60_000);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+
+        XESExportJobSvc.Job job = mySvc.submit("1", "request", outputStream -> {
+            started.countDown();
+            try {
+                Thread.sleep(60_000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(XESExportJobSvc.JobStatus.RUNNING, job.getStatus());
+
+        assertTrue(mySvc.cancel(job.getId()));
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        assertEquals(XESExportJobSvc.JobStatus.CANCELLED, job.getStatus());
+        assertNull(mySvc.getJob(job.getId()));
+        assertFalse(mySvc.cancel(job.getId()));
+        assertFalse(mySvc.cancel(null));
+        Thread.sleep(100);
+        assertTrue(myBlobs.isEmpty());
+    }
+
+    @Test
+    public void testJobsBeyondTheLimitWait() throws Exception {
+        mySvc = new XESExportJobSvc(newBinaryStorage(), 1, 60_000);
+        CountDownLatch release = new CountDownLatch(1);
+
+        XESExportJobSvc.Job first = mySvc.submit("1", "request", outputStream -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        XESExportJobSvc.Job second = mySvc.submit("2", "request", outputStream -> outputStream.write('x'));
+        Thread.sleep(200);
+        assertEquals(XESExportJobSvc.JobStatus.SUBMITTED, second.getStatus());
+
+        release.countDown();
+        awaitEnd(first);
+        awaitEnd(second);
+        assertEquals(XESExportJobSvc.JobStatus.COMPLETE, second.getStatus());
+        assertEquals("x", readExport(second));
+    }
+
+    @Test
+    public void testExportRemovedFromStorage() throws Exception {
+        mySvc = new XESExportJobSvc(newBinaryStorage(), 1, 60_000);
+
+        XESExportJobSvc.Job job = mySvc.submit("1", "request", outputStream -> outputStream.write('x'));
+        awaitEnd(job);
+        myBlobs.clear();
+
+        assertEquals(XESExportJobSvc.JobStatus.COMPLETE, job.getStatus());
+        assertFalse(mySvc.writeExport(job, new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void testFinishedJobsExpire() throws Exception {
+        mySvc = new XESExportJobSvc(newBinaryStorage(), 1, 0);
+
+        XESExportJobSvc.Job job = mySvc.submit("1", "request", outputStream -> outputStream.write('x'));
+        awaitEnd(job);
+        assertEquals(1, myBlobs.size());
+        Thread.sleep(10);
+
+        assertNull(mySvc.getJob(job.getId()));
+        assertTrue(myBlobs.isEmpty());
+    }
+
+    private String readExport(XESExportJobSvc.Job theJob) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        assertTrue(mySvc.writeExport(theJob, compressed));
+        try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+            return IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void awaitEnd(XESExportJobSvc.Job theJob) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!theJob.isEnded() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("Job " + theJob.getId() + " is still " + theJob.getStatus(), theJob.isEnded());
+    }
+
+    /**
+     * Binary storage keeping the blobs in memory
+     */
+    private IBinaryStorageSvc newBinaryStorage() {
+        return (IBinaryStorageSvc) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{IBinaryStorageSvc.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "storeBlob":
+                    byte[] data = IOUtils.toByteArray((InputStream) args[3]);
+                    String blobId = "blob-" + myBlobs.size();
+                    myBlobs.put(blobId, data);
+                    StoredDetails details = new StoredDetails();
+                    details.setBlobId(blobId);
+                    details.setBytes(data.length);
+                    return details;
+                case "writeBlob":
+                    byte[] blob = myBlobs.get((String) args[1]);
+                    if (blob == null) {
+                        return false;
+                    }
+                    ((OutputStream) args[2]).write(blob);
+                    return true;
+                case "expungeBlob":
+                    myBlobs.remove((String) args[1]);
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
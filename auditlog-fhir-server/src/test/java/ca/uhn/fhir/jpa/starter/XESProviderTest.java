@@ -0,0 +1,61 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletResponse;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class XESProviderTest {
+
+    @Test
+    public void testMatchesETag() {
+        assertTrue(XESProvider.matchesETag("W/\"1-2\"", "W/\"1-2\""));
+        // weak comparison, clients may drop the weak prefix
+        assertTrue(XESProvider.matchesETag("\"1-2\"", "W/\"1-2\""));
+        assertTrue(XESProvider.matchesETag("\"0-1\", W/\"1-2\"", "W/\"1-2\""));
+        assertTrue(XESProvider.matchesETag("*", "W/\"1-2\""));
+
+        assertFalse(XESProvider.matchesETag(null, "W/\"1-2\""));
+        assertFalse(XESProvider.matchesETag("W/\"1-3\"", "W/\"1-2\""));
+        assertFalse(XESProvider.matchesETag("W/\"1-2", "W/\"1-2\""));
+    }
+
+    @Test
+    public void testAcceptsGzip() {
+        assertTrue(XESProvider.acceptsGzip("gzip"));
+        assertTrue(XESProvider.acceptsGzip("deflate, GZip"));
+        assertTrue(XESProvider.acceptsGzip("br;q=1.0, gzip;q=0.5, *;q=0"));
+        assertTrue(XESProvider.acceptsGzip("gzip ; q=0.001"));
+
+        assertFalse(XESProvider.acceptsGzip(null));
+        assertFalse(XESProvider.acceptsGzip("identity"));
+        assertFalse(XESProvider.acceptsGzip("x-gzip, deflate"));
+        // the client refuses gzip explicitly
+        assertFalse(XESProvider.acceptsGzip("gzip;q=0"));
+        assertFalse(XESProvider.acceptsGzip("deflate, gzip; q=0.000"));
+        // a quality that can't be parsed is not taken as consent
+        assertFalse(XESProvider.acceptsGzip("gzip;q=high"));
+    }
+
+    @Test
+    public void testPrefersAsync() {
+        assertTrue(XESProvider.prefersAsync("respond-async"));
+        assertTrue(XESProvider.prefersAsync("return=minimal, Respond-Async"));
+        assertTrue(XESProvider.prefersAsync("respond-async; wait=10"));
+
+        assertFalse(XESProvider.prefersAsync(null));
+        assertFalse(XESProvider.prefersAsync(""));
+        assertFalse(XESProvider.prefersAsync("return=representation"));
+        assertFalse(XESProvider.prefersAsync("respond-asynchronously"));
+    }
+
+    @Test
+    public void testCancelIsOnlyAvailableAsPost() throws Exception {
+        Operation cancel = XESProvider.class.getMethod("xesCancelOperation", StringType.class, HttpServletResponse.class).getAnnotation(Operation.class);
+        assertFalse(cancel.idempotent());
+    }
+}
@@ -0,0 +1,157 @@
+package ca.uhn.fhir.jpa.starter;
+
+import org.junit.Test;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class XESWriterTest {
+
+    private static final String[] VALUES = {"Schedule Appointment", "Report & Transmission", "<Admit>", "\"quoted\"",
+        "Überweisung", "診察", "Emoji 😀", "complete", "start"};
+
+    @Test
+    public void testSameBytesAsStreamWriter() throws Exception {
+        Random random = new Random(7);
+        long max = System.currentTimeMillis() + 10L * 365 * 24 * 60 * 60 * 1000;
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        StreamXESWriter reference = new StreamXESWriter(expected);
+        XESWriter writer = new XESWriter(actual);
+        reference.startLog("PlanDefinition/1 & <2>");
+        writer.startLog("PlanDefinition/1 & <2>");
+        for (int trace = 0; trace < 2000; trace++) {
+            String caseId = "Encounter/" + trace + (trace % 10 == 0 ? VALUES[random.nextInt(VALUES.length)] : "");
+            reference.startTrace(caseId);
+            writer.startTrace(caseId);
+            for (int event = random.nextInt(20); event > 0; event--) {
+                String activity = VALUES[random.nextInt(VALUES.length)];
+                String transition = random.nextBoolean() ? "complete" : "start";
+                long timestamp = (long) (random.nextDouble() * max);
+                reference.event(activity, transition, new Date(timestamp));
+                if (random.nextBoolean()) {
+                    writer.event(activity, transition, new Date(timestamp));
+                } else {
+                    writer.event(activity, transition, timestamp);
+                }
+            }
+            reference.endTrace();
+            writer.endTrace();
+        }
+        reference.endLog();
+        writer.endLog();
+
+        assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    @Test
+    public void testWriteRawBetweenTraces() throws Exception {
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        XESWriter traceWriter = new XESWriter(trace);
+        traceWriter.startTrace("Encounter/1");
+        traceWriter.event("Admit", "complete", 0);
+        traceWriter.endTrace();
+        traceWriter.flush();
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        XESWriter writer = new XESWriter(raw);
+        writer.startLog("log");
+        writer.writeRaw(trace.toByteArray());
+        writer.endLog();
+
+        ByteArrayOutputStream direct = new ByteArrayOutputStream();
+        writer = new XESWriter(direct);
+        writer.startLog("log");
+        writer.startTrace("Encounter/1");
+        writer.event("Admit", "complete", 0);
+        writer.endTrace();
+        writer.endLog();
+
+        assertEquals(new String(direct.toByteArray(), StandardCharsets.UTF_8), new String(raw.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes XES through an XMLStreamWriter, the way it was written before the markup was pre-encoded
+     */
+    private static class StreamXESWriter {
+
+        private final XMLStreamWriter myWriter;
+
+        StreamXESWriter(ByteArrayOutputStream theOutputStream) throws XMLStreamException {
+            myWriter = XMLOutputFactory.newInstance().createXMLStreamWriter(theOutputStream, "UTF-8");
+        }
+
+        void startLog(String theLogName) throws XMLStreamException {
+            myWriter.writeStartDocument("UTF-8", "1.0");
+            myWriter.writeCharacters("\n\n");
+            myWriter.writeStartElement("log");
+            myWriter.writeAttribute("xes.version", "1.0");
+            myWriter.writeAttribute("xes.features", "");
+            myWriter.writeAttribute("openxes.version", "1.0RC7");
+            myWriter.writeDefaultNamespace("http://www.xes-standard.org/");
+            extension("Organizational", "org", "http://www.xes-standard.org/org.xesext");
+            extension("Time", "time", "http://www.xes-standard.org/time.xesext");
+            extension("Lifecycle", "lifecycle", "http://www.xes-standard.org/lifecycle.xesext");
+            extension("Concept", "concept", "http://www.xes-standard.org/concept.xesext");
+            myWriter.writeCharacters("\n");
+            attribute("\n\t", "string", "concept:name", theLogName);
+            myWriter.writeCharacters("\n\n");
+        }
+
+        void startTrace(String theCaseId) throws XMLStreamException {
+            myWriter.writeCharacters("\t");
+            myWriter.writeStartElement("trace");
+            attribute("\n\t\t", "string", "concept:name", theCaseId);
+        }
+
+        void event(String theActivity, String theTransition, Date theTimestamp) throws XMLStreamException {
+            myWriter.writeCharacters("\n\t\t");
+            myWriter.writeStartElement("event");
+            attribute("\n\t\t\t", "string", "concept:name", theActivity);
+            attribute("\n\t\t\t", "string", "lifecycle:transition", theTransition);
+            attribute("\n\t\t\t", "date", "time:timestamp", DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(theTimestamp.toInstant().atZone(ZoneId.systemDefault())));
+            myWriter.writeCharacters("\n\t\t");
+            myWriter.writeEndElement();
+        }
+
+        void endTrace() throws XMLStreamException {
+            myWriter.writeCharacters("\n\t");
+            myWriter.writeEndElement();
+            myWriter.writeCharacters("\n\n");
+        }
+
+        void endLog() throws XMLStreamException {
+            myWriter.writeEndElement();
+            myWriter.writeCharacters("\n");
+            myWriter.writeEndDocument();
+            myWriter.flush();
+        }
+
+        private void extension(String theName, String thePrefix, String theUri) throws XMLStreamException {
+            myWriter.writeCharacters("\n\t");
+            myWriter.writeEmptyElement("extension");
+            myWriter.writeAttribute("name", theName);
+            myWriter.writeAttribute("prefix", thePrefix);
+            myWriter.writeAttribute("uri", theUri);
+        }
+
+        private void attribute(String theIndent, String theType, String theKey, String theValue) throws XMLStreamException {
+            myWriter.writeCharacters(theIndent);
+            myWriter.writeEmptyElement(theType);
+            myWriter.writeAttribute("key", theKey);
+            myWriter.writeAttribute("value", theValue);
+        }
+    }
+}